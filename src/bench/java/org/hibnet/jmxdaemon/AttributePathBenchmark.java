@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Resolution of the attribute paths on values already fetched, without any remote call
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AttributePathBenchmark {
+
+    private CompositeData composite;
+
+    private Map<String, Object> map;
+
+    private List<Object> list;
+
+    private MemoryUsage bean;
+
+    private AttributePath compositePath;
+
+    private AttributePath mapPath;
+
+    private AttributePath listPath;
+
+    private AttributePath getterPath;
+
+    private AttributePath callPath;
+
+    @Setup
+    public void setup() throws Exception {
+        CompositeType type = new CompositeType("MemoryUsage", "MemoryUsage", new String[] { "used", "committed" },
+                new String[] { "used", "committed" }, new OpenType<?>[] { SimpleType.LONG, SimpleType.LONG });
+        composite = new CompositeDataSupport(type, new String[] { "used", "committed" }, new Object[] { 1L, 2L });
+        map = new HashMap<String, Object>();
+        map.put("key", 42L);
+        list = Arrays.<Object> asList(1L, 2L, 3L);
+        bean = new MemoryUsage(1, 2, 3, 4);
+        compositePath = AttributePath.compile("HeapMemoryUsage.used");
+        mapPath = AttributePath.compile("Map[key]");
+        listPath = AttributePath.compile("List[2]");
+        getterPath = AttributePath.compile("Usage.committed");
+        callPath = AttributePath.compile("Usage.toString()");
+    }
+
+    @Benchmark
+    public List<String> parsePath() {
+        return AttributePath.parsePath("HeapMemoryUsage.used");
+    }
+
+    @Benchmark
+    public AttributePath compileCached() {
+        return AttributePath.compile("HeapMemoryUsage.used");
+    }
+
+    @Benchmark
+    public Object resolveCompositeData() throws Exception {
+        return compositePath.resolve(composite);
+    }
+
+    @Benchmark
+    public Object resolveMap() throws Exception {
+        return mapPath.resolve(map);
+    }
+
+    @Benchmark
+    public Object resolveList() throws Exception {
+        return listPath.resolve(list);
+    }
+
+    @Benchmark
+    public Object resolveGetter() throws Exception {
+        return getterPath.resolve(bean);
+    }
+
+    @Benchmark
+    public Object resolveMethodCall() throws Exception {
+        return callPath.resolve(bean);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.lang.management.ManagementFactory;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.remote.JMXServiceURL;
+import javax.management.remote.rmi.RMIConnectorServer;
+import javax.naming.Context;
+
+/**
+ * In-process JMX endpoint exposing the platform MBeanServer through a local RMI connector
+ */
+public class BenchmarkJmxServer {
+
+    private final Registry registry;
+
+    private final RMIConnectorServer server;
+
+    private final String url;
+
+    public BenchmarkJmxServer(int port) throws Exception {
+        registry = LocateRegistry.createRegistry(port);
+        Map<String, Object> env = new HashMap<String, Object>();
+        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.rmi.registry.RegistryContextFactory");
+        env.put(Context.PROVIDER_URL, "rmi://localhost:" + port);
+        url = "service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jmxrmi";
+        server = new RMIConnectorServer(new JMXServiceURL(url), env, ManagementFactory.getPlatformMBeanServer());
+        server.start();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+        UnicastRemoteObject.unexportObject(registry, true);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Many threads hitting a single JMX endpoint through a shared connection, as the JMX threads of the daemon do with a
+ * hot target. The reconnect group has one thread regularly breaking the connection while the others keep reading.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectionContentionBenchmark {
+
+    private BenchmarkJmxServer jmxServer;
+
+    private JmxConnectionHolder connection;
+
+    @Setup
+    public void setup() throws Exception {
+        jmxServer = new BenchmarkJmxServer(2725);
+        connection = new JmxConnectionHolder(jmxServer.getUrl());
+        connection.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        connection.close();
+        jmxServer.stop();
+    }
+
+    @Benchmark
+    @Threads(50)
+    public Object hotTarget() throws Exception {
+        return connection.getAttribute("java.lang:type=Memory", "HeapMemoryUsage.used");
+    }
+
+    @Benchmark
+    @Group("reconnect")
+    @GroupThreads(49)
+    public Object reconnectReader() throws Exception {
+        try {
+            return connection.getAttribute("java.lang:type=Memory", "HeapMemoryUsage.used");
+        } catch (Exception e) {
+            // the connection was closed under our feet
+            return e;
+        }
+    }
+
+    @Benchmark
+    @Group("reconnect")
+    @GroupThreads(1)
+    public void reconnectBreaker() throws Exception {
+        Thread.sleep(20);
+        connection.close();
+    }
+}
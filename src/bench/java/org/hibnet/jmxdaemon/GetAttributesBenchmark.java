@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Fetch of attributes through a local RMI connector
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GetAttributesBenchmark {
+
+    private static final List<String> BEANS = Arrays.asList("java.lang:type=Memory", "java.lang:type=Memory",
+            "java.lang:type=Memory");
+
+    private static final List<String> PATHS = Arrays.asList("HeapMemoryUsage.used", "HeapMemoryUsage.committed",
+            "HeapMemoryUsage.max");
+
+    private BenchmarkJmxServer jmxServer;
+
+    private JmxConnectionHolder connection;
+
+    @Setup
+    public void setup() throws Exception {
+        jmxServer = new BenchmarkJmxServer(2724);
+        connection = new JmxConnectionHolder(jmxServer.getUrl());
+        connection.connect();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        connection.close();
+        jmxServer.stop();
+    }
+
+    @Benchmark
+    public Object getAttribute() throws Exception {
+        return connection.getAttribute("java.lang:type=Memory", "HeapMemoryUsage.used");
+    }
+
+    @Benchmark
+    public Object[] getAttributesSameBean() throws Exception {
+        return connection.getAttributes(BEANS, PATHS);
+    }
+
+    @Benchmark
+    public void getAttributeOneByOne(Blackhole blackhole) throws Exception {
+        for (int i = 0; i < BEANS.size(); i++) {
+            blackhole.consume(connection.getAttribute(BEANS.get(i), PATHS.get(i)));
+        }
+    }
+}
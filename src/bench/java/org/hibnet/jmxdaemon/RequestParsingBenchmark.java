@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestParsingBenchmark {
+
+    private String simple = "GET service:jmx:rmi:///jndi/rmi://myserver.mydomain.com:7199/jmxrmi '%d'"
+            + " java.lang:type=Memory HeapMemoryUsage.used";
+
+    private String quoted = "GET service:jmx:rmi:///jndi/rmi://myserver.mydomain.com:7199/jmxrmi"
+            + " 'used:%d committed:%d \\'max\\':%d'"
+            + " \"java.lang:type=Memory\" HeapMemoryUsage.used"
+            + " \"java.lang:type=Memory\" HeapMemoryUsage.committed"
+            + " \"java.lang:type=Memory\" HeapMemoryUsage.max";
+
+    @Benchmark
+    public List<String> parseSimple() {
+        return JmxRequestDecoder.parseRequest(simple);
+    }
+
+    @Benchmark
+    public List<String> parseQuoted() {
+        return JmxRequestDecoder.parseRequest(quoted);
+    }
+}
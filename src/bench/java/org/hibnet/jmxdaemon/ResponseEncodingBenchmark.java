@@ -0,0 +1,77 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Assembly of the bytes of a GET response, from the fetched values to the buffer written to the channel. The
+ * allocations per response are reported by the GC profiler, as <code>gc.alloc.rate.norm</code>:
+ * 
+ * <pre>
+ * ant bench -Dbench.args="ResponseEncodingBenchmark -prof gc"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseEncodingBenchmark {
+
+    private String format = "used:%d committed:%d max:%d";
+
+    private List<Object> values = Arrays.<Object> asList(123456789L, 234567890L, 345678901L);
+
+    private StringBuilder buffer = new StringBuilder();
+
+    /**
+     * As the responses were written, through an intermediate String encoded by the StringEncoder of the pipeline
+     */
+    @Benchmark
+    public ChannelBuffer stringEncoder() {
+        buffer.setLength(0);
+        buffer.append(JmxRequestHandler.RESP_OK).append(JmxRequestHandler.RESP_SEP);
+        FormatTemplate.compile(format).render(buffer, values);
+        buffer.append(JmxRequestHandler.RESP_SEP);
+        return ChannelBuffers.copiedBuffer(buffer.toString(), Charset.defaultCharset());
+    }
+
+    @Benchmark
+    public ChannelBuffer encode() {
+        buffer.setLength(0);
+        buffer.append(JmxRequestHandler.RESP_OK).append(JmxRequestHandler.RESP_SEP);
+        FormatTemplate.compile(format).render(buffer, values);
+        buffer.append(JmxRequestHandler.RESP_SEP);
+        return JmxRequestHandler.encode(buffer);
+    }
+}
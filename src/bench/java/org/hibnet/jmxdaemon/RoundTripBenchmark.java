@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full GET round trip through a daemon listening on the loopback interface
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+
+    private static final int DAEMON_PORT = 2723;
+
+    private BenchmarkJmxServer jmxServer;
+
+    private JmxDaemon daemon;
+
+    private byte[] request;
+
+    private byte[] binaryRequest;
+
+    @Setup
+    public void setup() throws Exception {
+        jmxServer = new BenchmarkJmxServer(2724);
+        daemon = new JmxDaemon(new InetSocketAddress("localhost", DAEMON_PORT), 4, 16);
+        daemon.start();
+        request = ("GET " + jmxServer.getUrl() + " 'used:%d committed:%d max:%d'"
+                + " java.lang:type=Memory HeapMemoryUsage.used java.lang:type=Memory HeapMemoryUsage.committed"
+                + " java.lang:type=Memory HeapMemoryUsage.max\n").getBytes("UTF-8");
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(frame);
+        out.writeInt(0);
+        out.writeByte(BinaryProtocol.CMD_GET);
+        out.writeUTF(jmxServer.getUrl());
+        out.writeShort(3);
+        for (String path : new String[] { "used", "committed", "max" }) {
+            out.writeUTF("java.lang:type=Memory");
+            out.writeUTF("HeapMemoryUsage." + path);
+        }
+        ByteArrayOutputStream framed = new ByteArrayOutputStream();
+        new DataOutputStream(framed).writeInt(frame.size());
+        frame.writeTo(framed);
+        binaryRequest = framed.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        daemon.stop();
+        jmxServer.stop();
+    }
+
+    /**
+     * A persistent connection per benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Session {
+
+        private Socket socket;
+
+        private OutputStream out;
+
+        private BufferedReader in;
+
+        @Setup
+        public void open() throws IOException {
+            socket = new Socket("localhost", DAEMON_PORT);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            out.write("KEEPALIVE\n".getBytes("UTF-8"));
+            readResponse(in);
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * A persistent connection per benchmark thread, with the binary protocol
+     */
+    @State(Scope.Thread)
+    public static class BinarySession {
+
+        private Socket socket;
+
+        private OutputStream out;
+
+        private DataInputStream in;
+
+        @Setup
+        public void open() throws IOException {
+            socket = new Socket("localhost", DAEMON_PORT);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(BinaryProtocol.MAGIC);
+        }
+
+        @TearDown
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static String readResponse(BufferedReader in) throws IOException {
+        StringBuilder response = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            response.append(line).append('\n');
+        }
+        return response.toString();
+    }
+
+    @Benchmark
+    public String getKeepAlive(Session session) throws IOException {
+        session.out.write(request);
+        return readResponse(session.in);
+    }
+
+    @Benchmark
+    public String getNewConnection() throws IOException {
+        Socket socket = new Socket("localhost", DAEMON_PORT);
+        try {
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(request);
+            return readResponse(new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] getBinary(BinarySession session) throws IOException {
+        session.out.write(binaryRequest);
+        byte[] response = new byte[session.in.readInt()];
+        session.in.readFully(response);
+        return response;
+    }
+}
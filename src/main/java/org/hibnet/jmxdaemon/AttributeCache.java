@@ -0,0 +1,299 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Cache of the values of the root attributes of the beans, shared by every connection.
+ * <p>
+ * The values are kept for a short time, and the least recently used ones are evicted when the cache is full. Concurrent
+ * requests of a same missing attribute are coalesced, so that only one remote call is done for it, the other requests
+ * waiting for its result at most a timeout. If that call fails, the waiting requests fail the same way rather than
+ * calling the endpoint in turn.
+ */
+public class AttributeCache {
+
+    /**
+     * Actually fetches the values of the attributes not in the cache
+     */
+    public interface Loader {
+
+        /**
+         * @return the values of the attributes, indexed by name. Every requested attribute must have a value.
+         */
+        Map<String, Object> load(Set<String> attributes) throws IOException, AttributeFetchException;
+
+    }
+
+    private final long ttl;
+
+    private final int maxSize;
+
+    private final Map<Key, CachedValue> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile long waitTimeout = 10000;
+
+    /**
+     * @param ttl
+     *            the time in milliseconds a value is kept
+     * @param maxSize
+     *            the maximum number of values kept
+     */
+    public AttributeCache(long ttl, final int maxSize) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, CachedValue>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CachedValue> eldest) {
+                return size() > AttributeCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param waitTimeout
+     *            the maximum time in milliseconds a request waits for the values being loaded by another request
+     */
+    public void setWaitTimeout(long waitTimeout) {
+        this.waitTimeout = waitTimeout;
+    }
+
+    /**
+     * Get the values of some attributes of a bean, loading the ones which are not in the cache or expired
+     * 
+     * @throws FetchTimeoutException
+     *             if the values being loaded by another request are not received within the wait timeout
+     */
+    public Map<String, Object> get(String url, ObjectName beanName, Set<String> attributes, Loader loader)
+            throws IOException, AttributeFetchException {
+        Map<String, Object> values = new HashMap<String, Object>();
+        Map<String, CachedValue> owned = new HashMap<String, CachedValue>();
+        Map<String, CachedValue> awaited = new HashMap<String, CachedValue>();
+        long now = System.nanoTime();
+        synchronized (entries) {
+            for (String attribute : attributes) {
+                Key key = new Key(url, beanName, attribute);
+                CachedValue entry = entries.get(key);
+                if (entry != null && entry.isLoaded() && now - entry.loadedAt < ttl) {
+                    hits.incrementAndGet();
+                    values.put(attribute, entry.value);
+                } else if (entry != null && !entry.isLoaded()) {
+                    // already being loaded by another request
+                    hits.incrementAndGet();
+                    awaited.put(attribute, entry);
+                } else {
+                    misses.incrementAndGet();
+                    entry = new CachedValue();
+                    entries.put(key, entry);
+                    owned.put(attribute, entry);
+                }
+            }
+        }
+
+        if (!owned.isEmpty()) {
+            load(url, beanName, owned, loader, values);
+        }
+
+        Set<String> retried = new LinkedHashSet<String>();
+        long timeout = waitTimeout;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        for (Map.Entry<String, CachedValue> e : awaited.entrySet()) {
+            CachedValue entry = e.getValue();
+            try {
+                if (!entry.latch.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    // the loading request is stuck in a remote call, don't get stuck with it
+                    throw new FetchTimeoutException(url, beanName.toString(), e.getKey(), timeout);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the attribute " + e.getKey() + " of " + beanName);
+            }
+            if (!entry.failed) {
+                values.put(e.getKey(), entry.value);
+            } else if (isSharedFailure(entry.failure, e.getKey())) {
+                rethrow(entry.failure);
+            } else {
+                // failed along with another attribute of the batch of the other request
+                retried.add(e.getKey());
+            }
+        }
+        if (!retried.isEmpty()) {
+            // coalesced again, so that a single one of the waiting requests loads them
+            values.putAll(get(url, beanName, retried, loader));
+        }
+        return values;
+    }
+
+    /**
+     * @return <code>true</code> if the failure of a load applies to an attribute of its batch
+     */
+    private static boolean isSharedFailure(Exception failure, String attribute) {
+        if (failure instanceof AttributeFetchException) {
+            String failedAttribute = ((AttributeFetchException) failure).getAttributePath();
+            // a failure on the bean fails every attribute
+            return failedAttribute == null || failedAttribute.equals(attribute);
+        }
+        return failure != null;
+    }
+
+    private static void rethrow(Exception failure) throws IOException, AttributeFetchException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof AttributeFetchException) {
+            throw (AttributeFetchException) failure;
+        }
+        throw (RuntimeException) failure;
+    }
+
+    private void load(String url, ObjectName beanName, Map<String, CachedValue> owned, Loader loader,
+            Map<String, Object> values) throws IOException, AttributeFetchException {
+        boolean success = false;
+        Exception failure = null;
+        try {
+            Map<String, Object> loaded = loader.load(owned.keySet());
+            long loadedAt = System.nanoTime();
+            for (Map.Entry<String, CachedValue> e : owned.entrySet()) {
+                Object value = loaded.get(e.getKey());
+                e.getValue().complete(value, loadedAt);
+                values.put(e.getKey(), value);
+            }
+            success = true;
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (AttributeFetchException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            if (!success) {
+                synchronized (entries) {
+                    for (Map.Entry<String, CachedValue> e : owned.entrySet()) {
+                        Key key = new Key(url, beanName, e.getKey());
+                        if (entries.get(key) == e.getValue()) {
+                            entries.remove(key);
+                        }
+                    }
+                }
+                for (CachedValue entry : owned.values()) {
+                    entry.fail(failure);
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static final class CachedValue {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile Object value;
+
+        private volatile long loadedAt;
+
+        private volatile boolean failed = false;
+
+        /**
+         * Why the load failed, <code>null</code> if unknown
+         */
+        private volatile Exception failure;
+
+        boolean isLoaded() {
+            return latch.getCount() == 0 && !failed;
+        }
+
+        void complete(Object value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+            latch.countDown();
+        }
+
+        void fail(Exception failure) {
+            this.failure = failure;
+            failed = true;
+            latch.countDown();
+        }
+    }
+
+    private static final class Key {
+
+        private final String url;
+
+        private final ObjectName beanName;
+
+        private final String attribute;
+
+        Key(String url, ObjectName beanName, String attribute) {
+            this.url = url;
+            this.beanName = beanName;
+            this.attribute = attribute;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + url.hashCode();
+            result = prime * result + beanName.hashCode();
+            result = prime * result + attribute.hashCode();
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return url.equals(other.url) && beanName.equals(other.beanName) && attribute.equals(other.attribute);
+        }
+    }
+}
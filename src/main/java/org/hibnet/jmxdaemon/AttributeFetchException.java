@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+/**
+ * Failure to get the value of one of the attributes requested in a batch
+ */
+public class AttributeFetchException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String beanName;
+
+    private final String attributePath;
+
+    public AttributeFetchException(String beanName, String attributePath, Throwable cause) {
+        super(cause);
+        this.beanName = beanName;
+        this.attributePath = attributePath;
+    }
+
+    public String getBeanName() {
+        return beanName;
+    }
+
+    public String getAttributePath() {
+        return attributePath;
+    }
+
+}
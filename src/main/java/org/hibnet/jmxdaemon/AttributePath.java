@@ -0,0 +1,268 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Compiled path to a value within an attribute, like <code>HeapMemoryUsage.used</code>, <code>Map[key]</code> or
+ * <code>List[2].toString()</code>.
+ * <p>
+ * The paths are parsed once and cached. The getters, fields and methods accessed along the path are looked up once per
+ * concrete class of the traversed values.
+ */
+public class AttributePath {
+
+    private static final BoundedCache<String, AttributePath> cache = new BoundedCache<String, AttributePath>(10000);
+
+    private final String path;
+
+    private final String root;
+
+    private final Segment[] segments;
+
+    private AttributePath(String path, String root, Segment[] segments) {
+        this.path = path;
+        this.root = root;
+        this.segments = segments;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the path is malformed
+     */
+    public static AttributePath compile(String attributePath) {
+        AttributePath compiled = cache.get(attributePath);
+        if (compiled == null) {
+            compiled = cache.put(attributePath, doCompile(attributePath));
+        }
+        return compiled;
+    }
+
+    private static AttributePath doCompile(String attributePath) {
+        List<String> fields = parsePath(attributePath);
+        if (fields.isEmpty() || fields.get(0).length() == 0) {
+            throw new IllegalArgumentException("Missing attribute name in path " + attributePath);
+        }
+        Segment[] segments = new Segment[fields.size() - 1];
+        for (int i = 1; i < fields.size(); i++) {
+            String field = fields.get(i);
+            if (field.length() == 0) {
+                throw new IllegalArgumentException("Empty field in path " + attributePath);
+            }
+            if (field.charAt(0) == '[') {
+                if (field.length() < 2 || field.charAt(field.length() - 1) != ']') {
+                    throw new IllegalArgumentException("Incorrect selector " + field + " in path " + attributePath);
+                }
+                segments[i - 1] = new KeySegment(field.substring(1, field.length() - 1), attributePath);
+            } else if (field.charAt(field.length() - 1) == ')') {
+                if (field.length() < 2 || field.charAt(field.length() - 2) != '(') {
+                    throw new IllegalArgumentException("Incorrect function call " + field + " in path "
+                            + attributePath);
+                }
+                segments[i - 1] = new CallSegment(field.substring(0, field.length() - 2));
+            } else {
+                segments[i - 1] = new PropertySegment(field);
+            }
+        }
+        return new AttributePath(attributePath, fields.get(0), segments);
+    }
+
+    /**
+     * @return the name of the attribute of the bean
+     */
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * Navigate along the path from the value of the attribute
+     */
+    public Object resolve(Object value) throws IllegalAccessException, InvocationTargetException,
+            NoSuchFieldException, NoSuchMethodException {
+        for (Segment segment : segments) {
+            if (value == null) {
+                return value;
+            }
+            value = segment.resolve(value);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+
+    private static abstract class Segment {
+
+        abstract Object resolve(Object value) throws IllegalAccessException, InvocationTargetException,
+                NoSuchFieldException, NoSuchMethodException;
+
+    }
+
+    private static class KeySegment extends Segment {
+
+        private final String key;
+
+        private final int index;
+
+        private final String attributePath;
+
+        KeySegment(String key, String attributePath) {
+            this.key = key;
+            this.attributePath = attributePath;
+            int x;
+            try {
+                x = Integer.parseInt(key);
+            } catch (NumberFormatException e) {
+                x = -1;
+            }
+            this.index = x;
+        }
+
+        @Override
+        Object resolve(Object value) {
+            if (value instanceof Map) {
+                return ((Map<?, ?>) value).get(key);
+            } else if (value instanceof List) {
+                if (index < 0) {
+                    throw new IllegalArgumentException("Incorrect array index " + key + " in path " + attributePath);
+                }
+                return ((List<?>) value).get(index);
+            }
+            return value;
+        }
+    }
+
+    private static class CallSegment extends Segment {
+
+        private final String methodName;
+
+        private final Map<Class<?>, Method> methods = new ConcurrentHashMap<Class<?>, Method>();
+
+        CallSegment(String methodName) {
+            this.methodName = methodName;
+        }
+
+        @Override
+        Object resolve(Object value) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException {
+            Method method = methods.get(value.getClass());
+            if (method == null) {
+                method = value.getClass().getMethod(methodName);
+                methods.put(value.getClass(), method);
+            }
+            return method.invoke(value);
+        }
+    }
+
+    private static class PropertySegment extends Segment {
+
+        private final String name;
+
+        private final String getterName;
+
+        private final Map<Class<?>, Object> accessors = new ConcurrentHashMap<Class<?>, Object>();
+
+        PropertySegment(String name) {
+            this.name = name;
+            this.getterName = "get" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        }
+
+        @Override
+        Object resolve(Object value) throws IllegalAccessException, InvocationTargetException, NoSuchFieldException {
+            if (value instanceof CompositeData) {
+                return ((CompositeData) value).get(name);
+            }
+            Object accessor = accessors.get(value.getClass());
+            if (accessor == null) {
+                accessor = findAccessor(value.getClass());
+                accessors.put(value.getClass(), accessor);
+            }
+            if (accessor instanceof Method) {
+                return ((Method) accessor).invoke(value);
+            }
+            return ((Field) accessor).get(value);
+        }
+
+        private Object findAccessor(Class<?> type) throws NoSuchFieldException {
+            try {
+                return type.getMethod(getterName);
+            } catch (NoSuchMethodException e) {
+                // no getter, try access directly the field
+                return type.getField(name);
+            }
+        }
+    }
+
+    static List<String> parsePath(String attributePath) {
+        List<String> path = new ArrayList<String>();
+        int p = 0;
+        while (p < attributePath.length()) {
+            if (attributePath.charAt(p) == '[') {
+                StringBuilder buffer = new StringBuilder();
+                while (p < attributePath.length()) {
+                    int end = attributePath.indexOf(']', p + 1);
+                    if (end == -1) {
+                        buffer.append(attributePath.substring(p));
+                        p = attributePath.length();
+                        break;
+                    }
+                    int i = attributePath.indexOf('\\', p + 1);
+                    if (i == -1 || i > end) {
+                        buffer.append(attributePath.substring(p, end + 1));
+                        p = end + 1;
+                        break;
+                    }
+                    buffer.append(attributePath.substring(p, i));
+                    if (i + 1 < attributePath.length()) {
+                        buffer.append(attributePath.charAt(i + 1));
+                    }
+                    p = i + 2;
+                }
+                path.add(buffer.toString());
+            } else {
+                int i = Integer.MAX_VALUE;
+                for (char c : new char[] { '.', '[' }) {
+                    int ic = attributePath.indexOf(c, p);
+                    if (ic != -1) {
+                        i = Math.min(i, ic);
+                    }
+                }
+                if (i == Integer.MAX_VALUE) {
+                    path.add(attributePath.substring(p));
+                    p = attributePath.length();
+                } else {
+                    path.add(attributePath.substring(p, i));
+                    if (attributePath.charAt(i) == '[') {
+                        p = i;
+                    } else {
+                        p = i + 1;
+                    }
+                }
+            }
+        }
+        return path;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * Cache of the names of the beans matching the patterns requested on a JMX endpoint.
+ * <p>
+ * Each pattern is queried on the endpoint at most once per TTL. In between, if it is registered as a listener of the
+ * MBeanServerDelegate, the cached names are updated incrementally as the beans are registered and unregistered. As
+ * the patterns come from the clients, only a bounded number of them is kept.
+ */
+public class BeanNameIndex implements NotificationListener {
+
+    private static final int MAX_PATTERNS = 1000;
+
+    private final long ttl;
+
+    private final BoundedCache<ObjectName, Names> names = new BoundedCache<ObjectName, Names>(MAX_PATTERNS);
+
+    /**
+     * @param ttl
+     *            the time in milliseconds the result of a query is kept
+     */
+    public BeanNameIndex(long ttl) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * @return the names of the beans matching the pattern, sorted
+     */
+    public Set<ObjectName> query(ObjectName pattern, MBeanServerConnection server) throws IOException {
+        Names cached = names.get(pattern);
+        long now = System.nanoTime();
+        if (cached != null && now - cached.loadedAt < ttl) {
+            return cached.names;
+        }
+        Names loaded = new Names(now, server.queryNames(pattern, null));
+        if (cached != null) {
+            // expired
+            names.remove(pattern);
+        }
+        return names.put(pattern, loaded).names;
+    }
+
+    /**
+     * Forget a bean which is known to not exist anymore
+     */
+    public void remove(ObjectName name) {
+        for (Map.Entry<ObjectName, Names> entry : names.entrySet()) {
+            entry.getValue().names.remove(name);
+        }
+    }
+
+    public void clear() {
+        names.clear();
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!(notification instanceof MBeanServerNotification)) {
+            return;
+        }
+        ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+        if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            for (Map.Entry<ObjectName, Names> entry : names.entrySet()) {
+                if (entry.getKey().apply(name)) {
+                    entry.getValue().names.add(name);
+                }
+            }
+        } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            remove(name);
+        }
+    }
+
+    private static class Names {
+
+        private final long loadedAt;
+
+        private final Set<ObjectName> names;
+
+        private Names(long loadedAt, Set<ObjectName> names) {
+            this.loadedAt = loadedAt;
+            this.names = new ConcurrentSkipListSet<ObjectName>(names);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * The binary protocol, for the clients sending many requests.
+ * <p>
+ * A client switches to it by sending the {@link #MAGIC} byte right after connecting. The connection is then kept open
+ * and both ways carry frames prefixed by their length, as a 4 bytes integer. The responses are sent in the order of
+ * the requests. A string is encoded as its length in bytes, as an unsigned 2 bytes integer, followed by its UTF-8
+ * bytes.
+ * <p>
+ * Request frame:
+ * 
+ * <pre>
+ * int    request id, echoed in the response
+ * byte   command: {@link #CMD_GET} or {@link #CMD_CLOSE}
+ * string jmx url
+ * (GET only)
+ * short  number of attributes
+ * string bean name, string attribute path (for each attribute)
+ * </pre>
+ * 
+ * Response frame:
+ * 
+ * <pre>
+ * int    request id
+ * byte   {@link #STATUS_OK} or {@link #STATUS_ERR}
+ * (OK)
+ * short  number of values, the maps and lists being flattened as in the text protocol
+ * byte   type, followed by the value: {@link #TYPE_NULL} (nothing), {@link #TYPE_LONG} (8 bytes),
+ *        {@link #TYPE_DOUBLE} (8 bytes), {@link #TYPE_BOOLEAN} (1 byte) or {@link #TYPE_STRING} (string)
+ * (ERR)
+ * string error code, string message
+ * </pre>
+ */
+public final class BinaryProtocol {
+
+    public static final byte MAGIC = (byte) 0xB1;
+
+    public static final byte CMD_GET = 1;
+
+    public static final byte CMD_CLOSE = 2;
+
+    public static final byte STATUS_OK = 0;
+
+    public static final byte STATUS_ERR = 1;
+
+    public static final byte TYPE_NULL = 'N';
+
+    public static final byte TYPE_LONG = 'J';
+
+    public static final byte TYPE_DOUBLE = 'D';
+
+    public static final byte TYPE_BOOLEAN = 'Z';
+
+    public static final byte TYPE_STRING = 'S';
+
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    /**
+     * The strings already decoded, indexed by their bytes, so that the urls, bean names and attribute paths sent over
+     * and over are not decoded again each time
+     */
+    private static final BoundedCache<ChannelBuffer, String> strings = new BoundedCache<ChannelBuffer, String>(10000);
+
+    private BinaryProtocol() {
+        // constants and helpers only
+    }
+
+    static String readString(ChannelBuffer buffer) {
+        int length = buffer.readUnsignedShort();
+        ChannelBuffer bytes = buffer.slice(buffer.readerIndex(), length);
+        buffer.skipBytes(length);
+        String string = strings.get(bytes);
+        if (string == null) {
+            // copy the bytes, the slice being a view over the reused receive buffer
+            string = strings.put(ChannelBuffers.copiedBuffer(bytes), bytes.toString(CharsetUtil.UTF_8));
+        }
+        return string;
+    }
+
+    /**
+     * Write a string in UTF-8 directly into the buffer, truncated if its encoding is too long for the protocol
+     */
+    static void writeString(ChannelBuffer buffer, String string) {
+        int lengthIndex = buffer.writerIndex();
+        buffer.writeShort(0);
+        int start = buffer.writerIndex();
+        int limit = start + MAX_STRING_LENGTH - 4;
+        for (int i = 0; i < string.length() && buffer.writerIndex() <= limit; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer.writeByte(c);
+            } else if (c < 0x800) {
+                buffer.writeByte(0xC0 | (c >> 6));
+                buffer.writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer.writeByte(0xF0 | (codePoint >> 18));
+                buffer.writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                buffer.writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                buffer.writeByte(0x80 | (codePoint & 0x3F));
+            } else {
+                buffer.writeByte(0xE0 | (c >> 12));
+                buffer.writeByte(0x80 | ((c >> 6) & 0x3F));
+                buffer.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+        buffer.setShort(lengthIndex, buffer.writerIndex() - start);
+    }
+
+    static void writeValue(ChannelBuffer buffer, Object value) {
+        if (value == null) {
+            buffer.writeByte(TYPE_NULL);
+        } else if (value instanceof Double || value instanceof Float) {
+            buffer.writeByte(TYPE_DOUBLE);
+            buffer.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte || value instanceof AtomicLong || value instanceof AtomicInteger) {
+            buffer.writeByte(TYPE_LONG);
+            buffer.writeLong(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            buffer.writeByte(TYPE_BOOLEAN);
+            buffer.writeByte(((Boolean) value) ? 1 : 0);
+        } else {
+            buffer.writeByte(TYPE_STRING);
+            writeString(buffer, value.toString());
+        }
+    }
+}
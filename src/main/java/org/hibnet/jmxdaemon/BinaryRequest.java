@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.List;
+
+import org.hibnet.jmxdaemon.ResponseSequencer.Response;
+
+/**
+ * A request decoded from the {@link BinaryProtocol}, along with the place reserved for its response
+ */
+public class BinaryRequest {
+
+    private final int id;
+
+    private final byte command;
+
+    private final String url;
+
+    private final List<String> beanNames;
+
+    private final List<String> attributePaths;
+
+    private final Response response;
+
+    public BinaryRequest(int id, byte command, String url, List<String> beanNames, List<String> attributePaths,
+            Response response) {
+        this.id = id;
+        this.command = command;
+        this.url = url;
+        this.beanNames = beanNames;
+        this.attributePaths = attributePaths;
+        this.response = response;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public byte getCommand() {
+        return command;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public List<String> getBeanNames() {
+        return beanNames;
+    }
+
+    public List<String> getAttributePaths() {
+        return attributePaths;
+    }
+
+    public Response getResponse() {
+        return response;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.CorruptedFrameException;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+
+/**
+ * Decodes the frames of the {@link BinaryProtocol} right from the received bytes, and reserves in the order of
+ * reception the place of their response
+ */
+public class BinaryRequestDecoder extends FrameDecoder {
+
+    private final ResponseSequencer sequencer;
+
+    public BinaryRequestDecoder(Channel channel) {
+        sequencer = new ResponseSequencer(channel, true);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (buffer.readableBytes() < 4) {
+            return null;
+        }
+        int length = buffer.getInt(buffer.readerIndex());
+        if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+            throw new TooLongFrameException("Invalid frame length " + length);
+        }
+        if (buffer.readableBytes() < 4 + length) {
+            return null;
+        }
+        buffer.skipBytes(4);
+        int end = buffer.readerIndex() + length;
+        try {
+            int id = buffer.readInt();
+            byte command = buffer.readByte();
+            String url = BinaryProtocol.readString(buffer);
+            List<String> beanNames = Collections.emptyList();
+            List<String> attributePaths = Collections.emptyList();
+            if (command == BinaryProtocol.CMD_GET) {
+                int n = buffer.readUnsignedShort();
+                beanNames = new ArrayList<String>(n);
+                attributePaths = new ArrayList<String>(n);
+                for (int i = 0; i < n; i++) {
+                    beanNames.add(BinaryProtocol.readString(buffer));
+                    attributePaths.add(BinaryProtocol.readString(buffer));
+                }
+            }
+            if (buffer.readerIndex() != end) {
+                throw new CorruptedFrameException("Frame of " + length + " bytes not matching its content");
+            }
+            return new BinaryRequest(id, command, url, beanNames, attributePaths, sequencer.newResponse());
+        } catch (IndexOutOfBoundsException e) {
+            throw new CorruptedFrameException("Truncated frame of " + length + " bytes");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrent map with a maximum size, for caching things which are costly to compute.
+ * <p>
+ * The lookups are not locking. When the cache is full, some arbitrary entry is evicted for each new one.
+ */
+public class BoundedCache<K, V> {
+
+    private final ConcurrentMap<K, V> map = new ConcurrentHashMap<K, V>();
+
+    private final int maxSize;
+
+    public BoundedCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public V get(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * @return the value actually in the cache, which may have been put concurrently by another thread
+     */
+    public V put(K key, V value) {
+        if (map.size() >= maxSize) {
+            Iterator<K> it = map.keySet().iterator();
+            if (it.hasNext()) {
+                map.remove(it.next());
+            }
+        }
+        V previous = map.putIfAbsent(key, value);
+        return previous == null ? value : previous;
+    }
+
+    public void remove(K key) {
+        map.remove(key);
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    /**
+     * @return a live view of the entries, not failing on concurrent modifications
+     */
+    public Set<Map.Entry<K, V>> entrySet() {
+        return map.entrySet();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+/**
+ * Circuit breaker protecting the daemon from a JMX endpoint which keeps failing.
+ * <p>
+ * After a number of consecutive failures, the circuit opens and the requests are rejected right away. Once the backoff
+ * delay is elapsed, a single request is let through: if it succeeds the circuit closes again, otherwise it opens again
+ * with a doubled backoff delay.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long initialBackoff;
+
+    private final long maxBackoff;
+
+    private volatile State state = State.CLOSED;
+
+    private volatile int failures = 0;
+
+    private long backoff;
+
+    private long openUntil;
+
+    private boolean trialInProgress = false;
+
+    /**
+     * @param failureThreshold
+     *            the number of consecutive failures opening the circuit
+     * @param initialBackoff
+     *            the time in milliseconds the circuit stays open the first time
+     * @param maxBackoff
+     *            the maximum time in milliseconds the circuit stays open
+     */
+    public CircuitBreaker(int failureThreshold, long initialBackoff, long maxBackoff) {
+        this.failureThreshold = failureThreshold;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.backoff = initialBackoff;
+    }
+
+    /**
+     * @return <code>true</code> if a request can be tried
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (System.currentTimeMillis() < openUntil) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialInProgress = true;
+            return true;
+        case HALF_OPEN:
+            if (trialInProgress) {
+                return false;
+            }
+            trialInProgress = true;
+            return true;
+        default:
+            throw new IllegalStateException("Unknown state " + state);
+        }
+    }
+
+    public void recordSuccess() {
+        if (state == State.CLOSED && failures == 0) {
+            // nothing to reset, avoid the synchronization
+            return;
+        }
+        synchronized (this) {
+            state = State.CLOSED;
+            failures = 0;
+            backoff = initialBackoff;
+            trialInProgress = false;
+        }
+    }
+
+    public synchronized void recordFailure() {
+        if (state == State.HALF_OPEN) {
+            backoff = Math.min(backoff * 2, maxBackoff);
+            open();
+        } else if (state == State.CLOSED) {
+            failures++;
+            if (failures >= failureThreshold) {
+                open();
+            }
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        trialInProgress = false;
+        openUntil = System.currentTimeMillis() + backoff;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the time in milliseconds before a request could be tried again
+     */
+    public synchronized long getRetryDelay() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, openUntil - System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * An attribute the daemon collects by itself at a fixed interval.
+ * <p>
+ * The jobs are configured in a file, one per line, with the same quoting rules as the commands:
+ * 
+ * <pre>
+ * &lt;interval&gt; &lt;jmxurl&gt; &lt;metricname&gt; &lt;beanname&gt; &lt;attribute&gt;
+ * </pre>
+ * 
+ * The interval is in milliseconds. Empty lines and lines starting with <code>#</code> are ignored.
+ */
+public class CollectionJob {
+
+    private final long interval;
+
+    private final String url;
+
+    private final String metricName;
+
+    private final String beanName;
+
+    private final String attributePath;
+
+    public CollectionJob(long interval, String url, String metricName, String beanName, String attributePath) {
+        this.interval = interval;
+        this.url = url;
+        this.metricName = metricName;
+        this.beanName = beanName;
+        this.attributePath = attributePath;
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getMetricName() {
+        return metricName;
+    }
+
+    public String getBeanName() {
+        return beanName;
+    }
+
+    public String getAttributePath() {
+        return attributePath;
+    }
+
+    public static List<CollectionJob> load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), CharsetUtil.UTF_8);
+        try {
+            return parse(reader, file.getPath());
+        } finally {
+            reader.close();
+        }
+    }
+
+    static List<CollectionJob> parse(Reader reader, String source) throws IOException {
+        List<CollectionJob> jobs = new ArrayList<CollectionJob>();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            List<String> args = JmxRequestDecoder.parseRequest(line);
+            if (args.size() != 5) {
+                throw new IOException("Invalid collection job in " + source + " at line " + lineNumber
+                        + ": expecting <interval> <jmxurl> <metricname> <beanname> <attribute>");
+            }
+            long interval;
+            try {
+                interval = Long.parseLong(args.get(0));
+            } catch (NumberFormatException e) {
+                interval = -1;
+            }
+            if (interval <= 0) {
+                throw new IOException("Invalid interval in " + source + " at line " + lineNumber + ": "
+                        + args.get(0));
+            }
+            jobs.add(new CollectionJob(interval, args.get(1), args.get(2), args.get(3), args.get(4)));
+        }
+        return jobs;
+    }
+
+    @Override
+    public String toString() {
+        return metricName + " (" + url + " " + beanName + " " + attributePath + " every " + interval + "ms)";
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects periodically some attributes and pushes them to some {@link MetricSink}s.
+ * <p>
+ * The jobs targeting the same JMX endpoint at the same interval are fetched together, in a single batch per tick.
+ * Each batch starts at a random offset within its interval, so that the endpoints are not all requested at the same
+ * time.
+ */
+public class CollectionScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(CollectionScheduler.class);
+
+    private final JmxConnectionCache connectionCache;
+
+    private final List<MetricSink> sinks;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final Random random = new Random();
+
+    public CollectionScheduler(JmxConnectionCache connectionCache, List<MetricSink> sinks, int threads) {
+        this.connectionCache = connectionCache;
+        this.sinks = sinks;
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jmx-collect-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void start(List<CollectionJob> jobs) {
+        Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+        for (CollectionJob job : jobs) {
+            String key = job.getInterval() + " " + job.getUrl();
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(job.getUrl());
+                batches.put(key, batch);
+            }
+            batch.jobs.add(job);
+        }
+        for (Batch batch : batches.values()) {
+            long interval = batch.jobs.get(0).getInterval();
+            long jitter = (long) (random.nextDouble() * interval);
+            log.info("Collecting {} attributes from {} every {}ms",
+                    new Object[] { batch.jobs.size(), batch.url, interval });
+            executor.scheduleAtFixedRate(batch, jitter, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+        for (MetricSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (Throwable e) {
+                log.warn("Error while closing the metric sink {}", sink, e);
+            }
+        }
+    }
+
+    /**
+     * @return the value as expected by the sinks, <code>null</code> if it is not numeric
+     */
+    static String toMetricValue(Object value) {
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? "1" : "0";
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) {
+                return null;
+            }
+            return value.toString();
+        }
+        if (value instanceof Number) {
+            return value.toString();
+        }
+        return null;
+    }
+
+    private class Batch implements Runnable {
+
+        private final String url;
+
+        private final List<CollectionJob> jobs = new ArrayList<CollectionJob>();
+
+        private Batch(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public void run() {
+            // never let an exception escape, it would cancel the next executions
+            try {
+                collect();
+            } catch (Throwable e) {
+                log.warn("Unexpected error while collecting attributes from {}", url, e);
+            }
+        }
+
+        private void collect() {
+            List<String> beanNames = new ArrayList<String>(jobs.size());
+            List<String> attributePaths = new ArrayList<String>(jobs.size());
+            for (CollectionJob job : jobs) {
+                beanNames.add(job.getBeanName());
+                attributePaths.add(job.getAttributePath());
+            }
+            JmxConnectionHolder connection = connectionCache.get(url);
+            Object[] values;
+            try {
+                connection.connect();
+                try {
+                    values = connection.getAttributes(beanNames, attributePaths);
+                } catch (AttributeFetchException e) {
+                    // don't let a single failing attribute discard the whole batch
+                    values = new Object[jobs.size()];
+                    for (int i = 0; i < jobs.size(); i++) {
+                        try {
+                            values[i] = connection.getAttribute(beanNames.get(i), attributePaths.get(i));
+                        } catch (AttributeFetchException e2) {
+                            log.debug("Unable to collect {}", jobs.get(i), e2.getCause());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("Unable to collect attributes from {}", url, e);
+                return;
+            }
+            long timestamp = System.currentTimeMillis();
+            List<Metric> metrics = new ArrayList<Metric>(jobs.size());
+            for (int i = 0; i < jobs.size(); i++) {
+                String value = toMetricValue(values[i]);
+                if (value != null) {
+                    metrics.add(new Metric(jobs.get(i).getMetricName(), value, timestamp));
+                }
+            }
+            if (metrics.isEmpty()) {
+                return;
+            }
+            for (MetricSink sink : sinks) {
+                try {
+                    sink.send(metrics);
+                } catch (IOException e) {
+                    log.warn("Unable to send metrics to {}: {}", sink, e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a JMX endpoint is not requested because there are already too many calls in flight to it
+ */
+public class ConcurrencyLimitException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConcurrencyLimitException(String url, int limit) {
+        super("Too many concurrent requests to " + url + ", limited to " + limit);
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit of the concurrent calls to a JMX endpoint, so that an endpoint slowing down, typically under GC
+ * pressure, is not buried under the requests piling up.
+ * <p>
+ * The limit follows an AIMD scheme driven by the latency of the calls. The recent latency, a short moving average, is
+ * compared to the baseline latency of the endpoint, a long moving average. A call failing, or the recent latency going
+ * above twice the baseline, decreases the limit by 10%, at most once per round trip. A call succeeding while the calls
+ * in flight are near the limit increases it by 1 per round of calls. Below 5 milliseconds the latencies are not
+ * compared, their variations being rather noise than the endpoint slowing down.
+ * <p>
+ * Acquiring a permit doesn't lock, only the release does, to update the limit.
+ */
+public class ConcurrencyLimiter {
+
+    private static final double BACKOFF_RATIO = 0.9;
+
+    private static final long TOLERANCE = 2;
+
+    private static final long MIN_LATENCY = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * The weight of a new sample in the moving averages of the latency
+     */
+    private static final double RECENT_WEIGHT = 1 / 8.0;
+
+    private static final double BASELINE_WEIGHT = 1 / 256.0;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile int limit;
+
+    private double estimatedLimit;
+
+    private double recent;
+
+    private double baseline;
+
+    private long lastDecrease;
+
+    /**
+     * @param maxLimit
+     *            the maximum number of concurrent calls, which is also the initial limit
+     */
+    public ConcurrencyLimiter(int maxLimit) {
+        this.minLimit = 1;
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        this.limit = this.maxLimit;
+        this.estimatedLimit = this.maxLimit;
+    }
+
+    /**
+     * @return <code>true</code> if a call can be done, which must then be followed by a
+     *         {@link #release(long, boolean)}
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latency
+     *            the time in nanoseconds spent in remote calls, 0 if there was none, like when every value was cached
+     * @param failed
+     *            <code>true</code> if the call failed because of the endpoint or of the network
+     */
+    public void release(long latency, boolean failed) {
+        int concurrent = inFlight.getAndDecrement();
+        if (latency <= 0 && !failed) {
+            // nothing learnt about the endpoint
+            return;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (!failed) {
+                if (baseline == 0) {
+                    recent = latency;
+                    baseline = latency;
+                } else {
+                    recent += (latency - recent) * RECENT_WEIGHT;
+                    baseline += (latency - baseline) * BASELINE_WEIGHT;
+                }
+            }
+            if (failed || recent > Math.max(baseline, MIN_LATENCY) * TOLERANCE) {
+                // the calls started before the previous decrease have not seen it yet
+                if (lastDecrease == 0 || now - lastDecrease > Math.max(latency, recent)) {
+                    estimatedLimit = Math.max(minLimit, estimatedLimit * BACKOFF_RATIO);
+                    lastDecrease = now;
+                }
+            } else if (concurrent * 2 >= limit) {
+                estimatedLimit = Math.min(maxLimit, estimatedLimit + 1 / estimatedLimit);
+            }
+            limit = (int) estimatedLimit;
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+}
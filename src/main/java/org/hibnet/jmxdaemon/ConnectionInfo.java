@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * State of a cached connection to a JMX endpoint, as exposed by the management bean of the daemon
+ */
+public class ConnectionInfo {
+
+    private final String url;
+
+    private final long lastUsed;
+
+    private final long requests;
+
+    private final int connected;
+
+    private final int concurrencyLimit;
+
+    @ConstructorProperties({ "url", "lastUsed", "requests", "connected", "concurrencyLimit" })
+    public ConnectionInfo(String url, long lastUsed, long requests, int connected, int concurrencyLimit) {
+        this.url = url;
+        this.lastUsed = lastUsed;
+        this.requests = requests;
+        this.connected = connected;
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch at which the connection was last requested
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * @return the number of requests done through the connection
+     */
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the number of connectors currently connected
+     */
+    public int getConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the current limit of the concurrent calls to the endpoint, 0 if there is none
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+/**
+ * Settings of the connections to the JMX endpoints
+ */
+public class ConnectionSettings {
+
+    private long connectTimeout = 10000;
+
+    private int failureThreshold = 3;
+
+    private long initialBackoff = 1000;
+
+    private long maxBackoff = 60000;
+
+    private long queryNamesTtl = 60000;
+
+    private int poolSize = 1;
+
+    private long healthCheckInterval = 30000;
+
+    private int maxConnections = 1000;
+
+    private long idleTimeout = 600000;
+
+    private int maxConcurrency = 0;
+
+    /**
+     * @return the maximum time in milliseconds to wait for a connection to be established
+     */
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return the number of consecutive failures after which an endpoint is not requested anymore for a while
+     */
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * @return the time in milliseconds a failing endpoint is not requested, doubled on each new failure
+     */
+    public long getInitialBackoff() {
+        return initialBackoff;
+    }
+
+    public void setInitialBackoff(long initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    /**
+     * @return the maximum time in milliseconds a failing endpoint is not requested
+     */
+    public long getMaxBackoff() {
+        return maxBackoff;
+    }
+
+    public void setMaxBackoff(long maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * @return the time in milliseconds the names of the beans matching a pattern are kept before being queried again
+     */
+    public long getQueryNamesTtl() {
+        return queryNamesTtl;
+    }
+
+    public void setQueryNamesTtl(long queryNamesTtl) {
+        this.queryNamesTtl = queryNamesTtl;
+    }
+
+    /**
+     * @return the maximum number of connectors opened to a same endpoint, the extra ones being opened only when the
+     *         others are busy
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @return the time in milliseconds between the checks of the idle connectors, 0 to disable them
+     */
+    public long getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    public void setHealthCheckInterval(long healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    /**
+     * @return the maximum number of endpoints the daemon keeps a connection to, the least recently used ones being
+     *         closed first
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return the time in milliseconds after which the connection to an endpoint not requested is closed, 0 to keep
+     *         it forever
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return the maximum number of concurrent calls to a same endpoint, lowered adaptively when it slows down, 0 for
+     *         no limit
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+}
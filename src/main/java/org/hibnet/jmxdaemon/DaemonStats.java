@@ -0,0 +1,253 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Measures of the activity of the daemon itself, exposed by its management bean and the STATS command.
+ * <p>
+ * Everything recorded on the path of the requests is striped and preallocated, so recording neither locks nor
+ * allocates. Only the first request to a new JMX endpoint allocates its counter.
+ */
+public class DaemonStats {
+
+    static final String CMD_BINARY_GET = "BINARY_GET";
+
+    static final String CMD_BINARY_CLOSE = "BINARY_CLOSE";
+
+    static final String CMD_HTTP = "HTTP";
+
+    static final String CMD_UNKNOWN = "UNKNOWN";
+
+    static final String ERR_OTHER = "OTHER";
+
+    /**
+     * Where the requests to the endpoints beyond the maximum number tracked are counted
+     */
+    static final String TARGET_OTHER = "other";
+
+    private static final String[] COMMANDS = { JmxRequestHandler.REQ_CMD_GET, JmxRequestHandler.REQ_CMD_GETJSON,
+            JmxRequestHandler.REQ_CMD_MGET, JmxRequestHandler.REQ_CMD_CLOSE, JmxRequestHandler.REQ_CMD_KEEPALIVE,
+            JmxRequestHandler.REQ_CMD_SUBSCRIBE, JmxRequestHandler.REQ_CMD_STATS, JmxRequestHandler.REQ_CMD_RATE,
+            JmxRequestHandler.REQ_CMD_INVOKE, JmxRequestHandler.REQ_CMD_PEER, CMD_BINARY_GET, CMD_BINARY_CLOSE,
+            CMD_HTTP, CMD_UNKNOWN };
+
+    private static final String[] ERRORS = { JmxRequestHandler.RESP_ERR_NO_CMD,
+            JmxRequestHandler.RESP_ERR_UNKNOWN_CMD, JmxRequestHandler.RESP_ERR_ARGS_LEN,
+            JmxRequestHandler.RESP_ERR_CONN, JmxRequestHandler.RESP_ERR_GET_ATT, JmxRequestHandler.RESP_ERR_FORMAT,
+            JmxRequestHandler.RESP_ERR_IO, JmxRequestHandler.RESP_ERR_CIRCUIT_OPEN, JmxRequestHandler.RESP_ERR_TIMEOUT,
+            JmxRequestHandler.RESP_ERR_SUBSCRIBE, JmxRequestHandler.RESP_ERR_SUBSCRIBED,
+            JmxRequestHandler.RESP_ERR_NOT_NUMBER, JmxRequestHandler.RESP_ERR_TARGET_OVERLOADED,
+            JmxRequestHandler.RESP_ERR_OVERLOADED, JmxRequestHandler.RESP_ERR_NOT_ALLOWED,
+            JmxRequestHandler.RESP_ERR_INVOKE, JmxRequestHandler.RESP_ERR_PEER, ERR_OTHER };
+
+    private final Map<String, StripedCounter> commands;
+
+    private final Map<String, StripedCounter> errors;
+
+    private final ConcurrentMap<String, StripedCounter> targets = new ConcurrentHashMap<String, StripedCounter>();
+
+    private final int maxTargets;
+
+    private final StripedCounter inFlight = new StripedCounter();
+
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    private final LatencyHistogram connect = new LatencyHistogram();
+
+    private final LatencyHistogram remoteFetch = new LatencyHistogram();
+
+    private final LatencyHistogram pathResolution = new LatencyHistogram();
+
+    private final LatencyHistogram formatting = new LatencyHistogram();
+
+    public DaemonStats() {
+        this(1000);
+    }
+
+    /**
+     * @param maxTargets
+     *            the maximum number of JMX endpoints which requests are counted separately
+     */
+    public DaemonStats(int maxTargets) {
+        this.maxTargets = maxTargets;
+        commands = counters(COMMANDS);
+        errors = counters(ERRORS);
+        targets.put(TARGET_OTHER, new StripedCounter());
+    }
+
+    private static Map<String, StripedCounter> counters(String[] names) {
+        // never modified afterwards, the lookups are safe without locking
+        Map<String, StripedCounter> counters = new HashMap<String, StripedCounter>();
+        for (String name : names) {
+            counters.put(name, new StripedCounter());
+        }
+        return counters;
+    }
+
+    /**
+     * @param command
+     *            one of the commands, anything else being counted as {@link #CMD_UNKNOWN}
+     */
+    public void recordCommand(String command) {
+        StripedCounter counter = commands.get(command);
+        if (counter == null) {
+            counter = commands.get(CMD_UNKNOWN);
+        }
+        counter.increment();
+    }
+
+    /**
+     * @param code
+     *            one of the <code>RESP_ERR_*</code> codes, anything else being counted as {@link #ERR_OTHER}
+     */
+    public void recordError(String code) {
+        StripedCounter counter = errors.get(code);
+        if (counter == null) {
+            counter = errors.get(ERR_OTHER);
+        }
+        counter.increment();
+    }
+
+    public void recordTarget(String url) {
+        StripedCounter counter = targets.get(url);
+        if (counter == null) {
+            if (targets.size() > maxTargets) {
+                counter = targets.get(TARGET_OTHER);
+            } else {
+                counter = new StripedCounter();
+                StripedCounter existing = targets.putIfAbsent(url, counter);
+                if (existing != null) {
+                    counter = existing;
+                }
+            }
+        }
+        counter.increment();
+    }
+
+    public void enterRequest() {
+        inFlight.increment();
+    }
+
+    public void exitRequest() {
+        inFlight.decrement();
+    }
+
+    /**
+     * @return the time the requests wait for a thread once received
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * @return the time to establish a connection to a JMX endpoint
+     */
+    public LatencyHistogram getConnect() {
+        return connect;
+    }
+
+    /**
+     * @return the time to get the attributes from a JMX endpoint, or from the attribute cache
+     */
+    public LatencyHistogram getRemoteFetch() {
+        return remoteFetch;
+    }
+
+    /**
+     * @return the time to resolve the attribute paths against the fetched values
+     */
+    public LatencyHistogram getPathResolution() {
+        return pathResolution;
+    }
+
+    /**
+     * @return the time to format the values into a response
+     */
+    public LatencyHistogram getFormatting() {
+        return formatting;
+    }
+
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    public Map<String, Long> getCommandCounts() {
+        return sums(commands, COMMANDS);
+    }
+
+    public Map<String, Long> getErrorCounts() {
+        return sums(errors, ERRORS);
+    }
+
+    /**
+     * @return the number of requests per JMX endpoint, sorted by endpoint
+     */
+    public Map<String, Long> getTargetCounts() {
+        List<String> urls = new ArrayList<String>(targets.keySet());
+        Collections.sort(urls);
+        return sums(targets, urls.toArray(new String[urls.size()]));
+    }
+
+    private static Map<String, Long> sums(Map<String, StripedCounter> counters, String[] names) {
+        Map<String, Long> sums = new LinkedHashMap<String, Long>();
+        for (String name : names) {
+            sums.put(name, counters.get(name).sum());
+        }
+        return sums;
+    }
+
+    /**
+     * @return the latencies of the steps of the requests, in microseconds
+     */
+    public List<LatencyInfo> getLatencies() {
+        List<LatencyInfo> latencies = new ArrayList<LatencyInfo>();
+        latencies.add(queueWait.snapshot("queue_wait"));
+        latencies.add(connect.snapshot("connect"));
+        latencies.add(remoteFetch.snapshot("remote_fetch"));
+        latencies.add(pathResolution.snapshot("path_resolution"));
+        latencies.add(formatting.snapshot("formatting"));
+        return latencies;
+    }
+
+    /**
+     * Write every measure, one per line, as responded to the STATS command
+     */
+    public void format(StringBuilder out) {
+        out.append("inflight ").append(getInFlight()).append('\n');
+        append(out, "command.", getCommandCounts());
+        append(out, "error.", getErrorCounts());
+        append(out, "target.", getTargetCounts());
+        for (LatencyInfo latency : getLatencies()) {
+            out.append("latency.").append(latency).append('\n');
+        }
+    }
+
+    private static void append(StringBuilder out, String prefix, Map<String, Long> counts) {
+        for (Entry<String, Long> entry : counts.entrySet()) {
+            out.append(prefix).append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the value of an attribute, being loaded by another request, is not received in time
+ */
+public class FetchTimeoutException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FetchTimeoutException(String url, String beanName, String attribute, long timeout) {
+        super("No value of the attribute " + attribute + " of " + beanName + " on " + url + " within " + timeout
+                + "ms");
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Formattable;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A format string of a GET command, compiled once and cached, then rendered without {@link java.util.Formatter}.
+ * <p>
+ * Only the <code>%d</code>, <code>%s</code>, <code>%f</code> and <code>%%</code> conversions without flag, width nor
+ * precision are rendered directly, producing the same output as <code>String.format(Locale.ENGLISH, ...)</code>. Any
+ * other format string, or an argument not matching its conversion, is handed to {@link String#format}, so that the
+ * output, or the error, is still the one of the standard formatter.
+ */
+public class FormatTemplate {
+
+    private static final BoundedCache<String, FormatTemplate> cache = new BoundedCache<String, FormatTemplate>(10000);
+
+    /**
+     * The number of digits after the decimal point of <code>%f</code>
+     */
+    private static final int FLOAT_PRECISION = 6;
+
+    private final String format;
+
+    /**
+     * The literal text before each conversion, and then after the last one
+     */
+    private final String[] literals;
+
+    /**
+     * The conversions, <code>null</code> if the format string is not supported
+     */
+    private final char[] conversions;
+
+    private FormatTemplate(String format, String[] literals, char[] conversions) {
+        this.format = format;
+        this.literals = literals;
+        this.conversions = conversions;
+    }
+
+    public static FormatTemplate compile(String format) {
+        FormatTemplate compiled = cache.get(format);
+        if (compiled == null) {
+            compiled = cache.put(format, doCompile(format));
+        }
+        return compiled;
+    }
+
+    private static FormatTemplate doCompile(String format) {
+        List<String> literals = new ArrayList<String>();
+        StringBuilder conversions = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < format.length()) {
+            char c = format.charAt(i++);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i == format.length()) {
+                return new FormatTemplate(format, null, null);
+            }
+            char conversion = format.charAt(i++);
+            if (conversion == '%') {
+                literal.append('%');
+            } else if (conversion == 'd' || conversion == 's' || conversion == 'f') {
+                literals.add(literal.toString());
+                literal.setLength(0);
+                conversions.append(conversion);
+            } else {
+                // flags, width, precision, index or another conversion
+                return new FormatTemplate(format, null, null);
+            }
+        }
+        literals.add(literal.toString());
+        char[] chars = new char[conversions.length()];
+        conversions.getChars(0, chars.length, chars, 0);
+        return new FormatTemplate(format, literals.toArray(new String[literals.size()]), chars);
+    }
+
+    /**
+     * @return <code>true</code> if the template is rendered without the standard formatter, for valid arguments
+     */
+    public boolean isCompiled() {
+        return conversions != null;
+    }
+
+    /**
+     * Append the formatted values
+     * 
+     * @throws java.util.IllegalFormatException
+     *             as {@link String#format} does
+     */
+    public void render(StringBuilder out, List<Object> values) {
+        if (conversions == null || values.size() < conversions.length) {
+            out.append(String.format(Locale.ENGLISH, format, values.toArray()));
+            return;
+        }
+        int start = out.length();
+        for (int i = 0; i < conversions.length; i++) {
+            out.append(literals[i]);
+            if (!append(out, conversions[i], values.get(i))) {
+                // let the standard formatter deal with it, or fail as it does
+                out.setLength(start);
+                out.append(String.format(Locale.ENGLISH, format, values.toArray()));
+                return;
+            }
+        }
+        out.append(literals[conversions.length]);
+    }
+
+    /**
+     * @return <code>false</code> if the value is not supported by the conversion
+     */
+    private static boolean append(StringBuilder out, char conversion, Object value) {
+        if (value == null) {
+            out.append("null");
+            return true;
+        }
+        switch (conversion) {
+        case 's':
+            if (value instanceof Formattable) {
+                return false;
+            }
+            out.append(value.toString());
+            return true;
+        case 'd':
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.append(((Number) value).longValue());
+                return true;
+            }
+            if (value instanceof BigInteger) {
+                out.append(value.toString());
+                return true;
+            }
+            return false;
+        case 'f':
+            if (value instanceof Double || value instanceof Float) {
+                appendFloat(out, ((Number) value).doubleValue());
+                return true;
+            }
+            if (value instanceof BigDecimal) {
+                out.append(((BigDecimal) value).setScale(FLOAT_PRECISION, RoundingMode.HALF_UP).toPlainString());
+                return true;
+            }
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    private static void appendFloat(StringBuilder out, double value) {
+        if (Double.isNaN(value)) {
+            out.append("NaN");
+        } else if (Double.isInfinite(value)) {
+            out.append(value > 0 ? "Infinity" : "-Infinity");
+        } else {
+            // like the standard formatter, round the shortest decimal representation of the value, half up
+            BigDecimal decimal = new BigDecimal(Double.toString(value)).setScale(FLOAT_PRECISION, RoundingMode.HALF_UP);
+            if (decimal.signum() == 0 && (value < 0 || 1 / value < 0)) {
+                out.append('-');
+            }
+            out.append(decimal.toPlainString());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return format;
+    }
+}
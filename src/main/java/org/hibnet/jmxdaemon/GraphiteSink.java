@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Pushes the metrics to Graphite with its plaintext protocol over TCP. The connection is kept open, and reopened on
+ * the next batch if it failed.
+ */
+public class GraphiteSink implements MetricSink {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final InetSocketAddress address;
+
+    private Socket socket;
+
+    private OutputStream out;
+
+    public GraphiteSink(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    @Override
+    public synchronized void send(List<Metric> metrics) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        for (Metric metric : metrics) {
+            buffer.append(metric.getName()).append(' ').append(metric.getValue()).append(' ')
+                    .append(metric.getTimestamp() / 1000).append('\n');
+        }
+        try {
+            if (socket == null) {
+                socket = new Socket();
+                socket.connect(address, CONNECT_TIMEOUT);
+                out = socket.getOutputStream();
+            }
+            out.write(buffer.toString().getBytes(CharsetUtil.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // don't care
+            }
+            socket = null;
+            out = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "graphite " + address;
+    }
+}
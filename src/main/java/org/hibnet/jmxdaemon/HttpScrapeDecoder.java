@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+/**
+ * Reserves, in the order of reception, the place of the response of the decoded HTTP requests. The responses frame
+ * themselves, so the channel stays open unless a request asks for it to be closed.
+ */
+public class HttpScrapeDecoder extends OneToOneDecoder {
+
+    private final ResponseSequencer sequencer;
+
+    public HttpScrapeDecoder(Channel channel) {
+        sequencer = new ResponseSequencer(channel, true);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+        if (!(msg instanceof HttpRequest)) {
+            return msg;
+        }
+        HttpRequest request = (HttpRequest) msg;
+        if (!HttpHeaders.isKeepAlive(request)) {
+            sequencer.setKeepAlive(false);
+        }
+        return new HttpScrapeRequest(request, sequencer.newResponse());
+    }
+}
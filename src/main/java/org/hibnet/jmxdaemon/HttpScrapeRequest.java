@@ -0,0 +1,43 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import org.hibnet.jmxdaemon.ResponseSequencer.Response;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * An HTTP request received on the daemon port, along with the place reserved for its response
+ */
+public class HttpScrapeRequest {
+
+    private final HttpRequest request;
+
+    private final Response response;
+
+    public HttpScrapeRequest(HttpRequest request, Response response) {
+        this.request = request;
+        this.response = response;
+    }
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    public Response getResponse() {
+        return response;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * The operations the INVOKE command is allowed to call. Nothing is allowed unless listed.
+ * <p>
+ * The operations are listed in a file, one per line: a bean name, which may be a pattern, and an operation name, or
+ * <code>*</code> for every operation of the matching beans, separated by spaces. Empty lines and lines starting with
+ * <code>#</code> are ignored. For instance:
+ *
+ * <pre>
+ * java.lang:type=Memory gc
+ * com.sun.management:type=HotSpotDiagnostic getVMOption
+ * java.lang:type=Threading *
+ * </pre>
+ */
+public class InvokeAllowlist {
+
+    private static final String ANY_OPERATION = "*";
+
+    private final List<ObjectName> beans;
+
+    private final List<String> operations;
+
+    private InvokeAllowlist(List<ObjectName> beans, List<String> operations) {
+        this.beans = beans;
+        this.operations = operations;
+    }
+
+    /**
+     * @return the allowlist allowing nothing
+     */
+    public static InvokeAllowlist none() {
+        return new InvokeAllowlist(new ArrayList<ObjectName>(), new ArrayList<String>());
+    }
+
+    public static InvokeAllowlist load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), CharsetUtil.UTF_8);
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @throws IOException
+     *             if a line is malformed
+     */
+    static InvokeAllowlist parse(Reader reader) throws IOException {
+        List<ObjectName> beans = new ArrayList<ObjectName>();
+        List<String> operations = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            if (fields.length != 2) {
+                throw new IOException("Expecting a bean name and an operation on line " + lineNumber + ": " + line);
+            }
+            try {
+                beans.add(new ObjectName(fields[0]));
+            } catch (MalformedObjectNameException e) {
+                throw new IOException("Incorrect bean name on line " + lineNumber + ": " + e.getMessage());
+            }
+            operations.add(fields[1]);
+        }
+        return new InvokeAllowlist(beans, operations);
+    }
+
+    /**
+     * @param beanName
+     *            the name of the bean on which the operation is called, not a pattern
+     */
+    public boolean isAllowed(ObjectName beanName, String operation) {
+        for (int i = 0; i < beans.size(); i++) {
+            if ((operations.get(i).equals(ANY_OPERATION) || operations.get(i).equals(operation))
+                    && beans.get(i).apply(beanName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return beans.size();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The connections to the JMX endpoints, shared by the clients of the daemon and its own collection of metrics.
+ * <p>
+ * The number of cached connections is bounded, the least recently used one being evicted when a new endpoint is
+ * requested while the cache is full. The connections not requested for a while are evicted too. The evicted
+ * connections are closed in the background.
+ */
+public class JmxConnectionCache {
+
+    private static final Logger log = LoggerFactory.getLogger(JmxConnectionCache.class);
+
+    private final ConcurrentMap<String, JmxConnectionHolder> connectionCache =
+            new ConcurrentHashMap<String, JmxConnectionHolder>();
+
+    private final ConnectionSettings connectionSettings;
+
+    private final AttributeCache attributeCache;
+
+    private final DaemonStats stats;
+
+    /**
+     * Runs the health checks, the idle evictions and the closing of the evicted connections
+     */
+    private final ScheduledExecutorService maintenance;
+
+    public JmxConnectionCache(ConnectionSettings connectionSettings, AttributeCache attributeCache) {
+        this(connectionSettings, attributeCache, null);
+    }
+
+    /**
+     * @param attributeCache
+     *            the cache of the attribute values shared by the connections, <code>null</code> if disabled
+     * @param stats
+     *            where the connections record their latencies, <code>null</code> if disabled
+     */
+    public JmxConnectionCache(ConnectionSettings connectionSettings, AttributeCache attributeCache,
+            DaemonStats stats) {
+        this.connectionSettings = connectionSettings;
+        this.attributeCache = attributeCache;
+        this.stats = stats;
+        maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jmx-connection-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = connectionSettings.getHealthCheckInterval();
+        if (interval > 0) {
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (JmxConnectionHolder connection : connectionCache.values()) {
+                        connection.checkHealth();
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        long idleTimeout = connectionSettings.getIdleTimeout();
+        if (idleTimeout > 0) {
+            long period = Math.max(1000, Math.min(idleTimeout / 2, 60000));
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the connection to a JMX endpoint, creating it if needed. The connection may not be connected yet.
+     */
+    public JmxConnectionHolder get(String url) {
+        JmxConnectionHolder connection = connectionCache.get(url);
+        if (connection == null) {
+            // not connected yet, so cheap to create even if another thread wins the race
+            JmxConnectionHolder created = new JmxConnectionHolder(url, connectionSettings, attributeCache, stats);
+            connection = connectionCache.putIfAbsent(url, created);
+            if (connection == null) {
+                connection = created;
+                if (connectionCache.size() > connectionSettings.getMaxConnections()) {
+                    evictLeastRecentlyUsed(created);
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * @return the connection to a JMX endpoint, <code>null</code> if there is none
+     */
+    public JmxConnectionHolder getIfPresent(String url) {
+        return connectionCache.get(url);
+    }
+
+    public int size() {
+        return connectionCache.size();
+    }
+
+    /**
+     * @return the state of every cached connection
+     */
+    public List<ConnectionInfo> getConnectionInfos() {
+        List<ConnectionInfo> infos = new ArrayList<ConnectionInfo>(connectionCache.size());
+        for (JmxConnectionHolder connection : connectionCache.values()) {
+            ConcurrencyLimiter limiter = connection.getConcurrencyLimiter();
+            infos.add(new ConnectionInfo(connection.getUrl(), connection.getLastUsed(), connection.getRequests(),
+                    connection.getConnectedCount(), limiter == null ? 0 : limiter.getLimit()));
+        }
+        return infos;
+    }
+
+    private void evictLeastRecentlyUsed(JmxConnectionHolder keep) {
+        while (connectionCache.size() > connectionSettings.getMaxConnections()) {
+            JmxConnectionHolder oldest = null;
+            for (JmxConnectionHolder connection : connectionCache.values()) {
+                // a connection streaming notifications is in use, however old its last request is
+                if (connection != keep && connection.getSubscriptionCount() == 0
+                        && (oldest == null || connection.getLastUsed() < oldest.getLastUsed())) {
+                    oldest = connection;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            evict(oldest, "the cache is full");
+        }
+    }
+
+    /**
+     * Evict the connections not requested within the idle timeout, and not streaming notifications
+     */
+    void evictIdle() {
+        long limit = System.currentTimeMillis() - connectionSettings.getIdleTimeout();
+        for (JmxConnectionHolder connection : connectionCache.values()) {
+            if (connection.getLastUsed() < limit && connection.getSubscriptionCount() == 0) {
+                evict(connection, "it is idle");
+            }
+        }
+    }
+
+    private void evict(final JmxConnectionHolder connection, String reason) {
+        if (!connectionCache.remove(connection.getUrl(), connection)) {
+            // already evicted
+            return;
+        }
+        log.info("Closing the connection to {} as {}", connection, reason);
+        maintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    connection.retire();
+                } catch (Throwable e) {
+                    log.warn("Error while closing connection {}", connection, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Close every connection and stop maintaining them
+     */
+    public void closeAll() {
+        maintenance.shutdownNow();
+        for (JmxConnectionHolder connection : connectionCache.values()) {
+            connectionCache.remove(connection.getUrl(), connection);
+            try {
+                connection.retire();
+            } catch (Throwable e) {
+                log.warn("Error while closing connection {}", connection, e);
+            }
+        }
+    }
+}
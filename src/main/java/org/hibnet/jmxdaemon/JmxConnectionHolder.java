@@ -16,22 +16,43 @@
 package org.hibnet.jmxdaemon;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
-import javax.management.AttributeNotFoundException;
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.InstanceNotFoundException;
+import javax.management.JMRuntimeException;
+import javax.management.ListenerNotFoundException;
 import javax.management.MBeanException;
 import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
 import javax.management.MalformedObjectNameException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
-import javax.management.openmbean.CompositeData;
+import javax.management.relation.MBeanServerNotificationFilter;
+import javax.management.remote.JMXConnectionNotification;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
@@ -43,164 +64,754 @@ public class JmxConnectionHolder {
 
     private static final Logger log = LoggerFactory.getLogger(JmxConnectionHolder.class);
 
+    private static final ExecutorService connectExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "jmx-connect-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final BoundedCache<String, ObjectName> objectNames = new BoundedCache<String, ObjectName>(10000);
+
     private String url;
 
-    private JMXConnector jmxc;
+    private final ConnectionSettings settings;
+
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * <code>null</code> if the concurrent calls are not limited
+     */
+    private final ConcurrencyLimiter concurrencyLimiter;
+
+    private final AttributeCache attributeCache;
+
+    private final DaemonStats stats;
+
+    private final BeanNameIndex beanNameIndex;
+
+    /**
+     * The single connection on which the bean name index listens to the registrations, <code>null</code> if none
+     */
+    private ConnectionState registrationSource;
+
+    private final Object registrationLock = new Object();
+
+    /**
+     * The connectors to the endpoint, connected lazily when the already connected ones are busy
+     */
+    private final PooledConnector[] connectors;
+
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private final AtomicLong requests = new AtomicLong();
 
-    private MBeanServerConnection server;
+    /**
+     * Set once evicted from the cache, the requests still using it close it when they are done
+     */
+    private volatile boolean retired = false;
 
-    private ReentrantReadWriteLock connectionStateLock = new ReentrantReadWriteLock();
+    /**
+     * The number of notification listeners registered and not yet released
+     */
+    private final AtomicInteger subscriptions = new AtomicInteger();
 
-    public JmxConnectionHolder(String url) throws IOException {
+    public JmxConnectionHolder(String url) {
+        this(url, new ConnectionSettings(), null);
+    }
+
+    public JmxConnectionHolder(String url, ConnectionSettings settings, AttributeCache attributeCache) {
+        this(url, settings, attributeCache, null);
+    }
+
+    /**
+     * @param attributeCache
+     *            the cache of the attribute values shared by the connections, <code>null</code> if disabled
+     * @param stats
+     *            where to record the latencies of the connections and of the fetches, <code>null</code> if disabled
+     */
+    public JmxConnectionHolder(String url, ConnectionSettings settings, AttributeCache attributeCache,
+            DaemonStats stats) {
         this.url = url;
-        ensureConnected(false);
+        this.settings = settings;
+        this.attributeCache = attributeCache;
+        this.stats = stats;
+        this.beanNameIndex = new BeanNameIndex(settings.getQueryNamesTtl());
+        this.concurrencyLimiter = settings.getMaxConcurrency() > 0 ? new ConcurrencyLimiter(
+                settings.getMaxConcurrency()) : null;
+        this.circuitBreaker = new CircuitBreaker(settings.getFailureThreshold(), settings.getInitialBackoff(),
+                settings.getMaxBackoff());
+        this.connectors = new PooledConnector[Math.max(1, settings.getPoolSize())];
+        for (int i = 0; i < connectors.length; i++) {
+            connectors[i] = new PooledConnector(i);
+        }
+    }
+
+    /**
+     * Connect to the JMX endpoint if not already connected
+     * 
+     * @throws CircuitOpenException
+     *             if the endpoint failed too much recently
+     */
+    public void connect() throws IOException {
+        selectConnector().ensureConnected();
     }
 
-    private void ensureConnected(boolean forRead) throws IOException {
-        if (server == null) {
-            if (forRead) {
-                connectionStateLock.readLock().unlock();
+    /**
+     * @return the connector with the least outstanding requests, preferring the already connected ones
+     */
+    private PooledConnector selectConnector() {
+        PooledConnector best = connectors[0];
+        if (connectors.length == 1) {
+            return best;
+        }
+        int bestOutstanding = best.outstanding.get();
+        boolean bestConnected = best.isConnected();
+        for (int i = 1; i < connectors.length; i++) {
+            PooledConnector connector = connectors[i];
+            int outstanding = connector.outstanding.get();
+            boolean connected = connector.isConnected();
+            if (outstanding < bestOutstanding || (outstanding == bestOutstanding && connected && !bestConnected)) {
+                best = connector;
+                bestOutstanding = outstanding;
+                bestConnected = connected;
             }
-            connectionStateLock.writeLock().lock();
+        }
+        return best;
+    }
+
+    /**
+     * @return the number of connectors currently connected to the endpoint
+     */
+    public int getConnectedCount() {
+        int count = 0;
+        for (PooledConnector connector : connectors) {
+            if (connector.isConnected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Check in the background that the idle connectors are still working, dropping the broken ones so that they are
+     * reconnected on the next request rather than failing it. The busy connectors are already checked by their
+     * requests.
+     */
+    public void checkHealth() {
+        for (final PooledConnector connector : connectors) {
+            final ConnectionState connection = connector.state.get();
+            if (connection.server == null || connector.outstanding.get() > 0
+                    || !connector.checking.compareAndSet(false, true)) {
+                continue;
+            }
+            connectExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        connection.server.getMBeanCount();
+                    } catch (IOException e) {
+                        log.info("Health check of the connection to {} failed: {}", url, e.getMessage());
+                        connector.invalidate(connection);
+                    } catch (RuntimeException e) {
+                        log.info("Health check of the connection to {} failed: {}", url, e.getMessage());
+                        connector.invalidate(connection);
+                    } finally {
+                        connector.checking.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Keep the bean name index up to date with the beans registered and unregistered on the endpoint, listening on a
+     * new connection unless already listening on another one of the pool
+     */
+    private void listenRegistrations(ConnectionState connection) throws IOException {
+        synchronized (registrationLock) {
+            if (registrationSource != null) {
+                return;
+            }
+            // the registrations were not followed until now
+            beanNameIndex.clear();
+            MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+            filter.enableAllObjectNames();
             try {
-                if (server == null) {
-                    JMXServiceURL jmxurl = new JMXServiceURL(url);
-                    jmxc = JMXConnectorFactory.connect(jmxurl, null);
-                    server = jmxc.getMBeanServerConnection();
+                connection.server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, beanNameIndex, filter,
+                        null);
+            } catch (InstanceNotFoundException e) {
+                // the patterns will just be queried again once expired
+                log.debug("No MBeanServerDelegate on {}", url, e);
+            } catch (SecurityException e) {
+                log.debug("Not allowed to listen to the MBeanServerDelegate of {}", url, e);
+            }
+            registrationSource = connection;
+        }
+    }
+
+    /**
+     * Stop relying on the registrations listened on a dropped connection, listening instead on another connected
+     * one of the pool if any
+     * 
+     * @param move
+     *            <code>false</code> if the pool is being closed
+     */
+    private void unlistenRegistrations(ConnectionState dropped, boolean move) {
+        synchronized (registrationLock) {
+            if (registrationSource != dropped) {
+                return;
+            }
+            registrationSource = null;
+            beanNameIndex.clear();
+            if (!move) {
+                return;
+            }
+            for (PooledConnector connector : connectors) {
+                ConnectionState connection = connector.state.get();
+                if (connection.server != null && connection != dropped) {
+                    try {
+                        listenRegistrations(connection);
+                        return;
+                    } catch (IOException e) {
+                        // the next connection established will listen
+                        log.debug("Unable to listen to the registrations on {}", url, e);
+                    }
                 }
-            } finally {
-                if (forRead) {
-                    connectionStateLock.readLock().lock();
+            }
+        }
+    }
+
+    private JMXConnector connectWithTimeout() throws IOException {
+        final JMXServiceURL jmxurl = new JMXServiceURL(url);
+        final AtomicBoolean abandoned = new AtomicBoolean(false);
+        Future<JMXConnector> future = connectExecutor.submit(new Callable<JMXConnector>() {
+            @Override
+            public JMXConnector call() throws Exception {
+                JMXConnector connector = JMXConnectorFactory.connect(jmxurl, null);
+                if (abandoned.get()) {
+                    // too late, nobody is waiting for it anymore
+                    closeQuietly(connector);
                 }
-                connectionStateLock.writeLock().unlock();
+                return connector;
             }
+        });
+        try {
+            return future.get(settings.getConnectTimeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            abandoned.set(true);
+            future.cancel(true);
+            throw new IOException("Connection to " + url + " timed out after " + settings.getConnectTimeout() + "ms");
+        } catch (InterruptedException e) {
+            abandoned.set(true);
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + url);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
         }
     }
 
-    public Object getAttribute(String beanName, String attributePath) throws AttributeNotFoundException,
-            InstanceNotFoundException, MBeanException, ReflectionException, IOException, SecurityException,
-            MalformedObjectNameException, IllegalAccessException, IllegalArgumentException, InvocationTargetException,
-            NoSuchFieldException, NoSuchMethodException {
-        ObjectName mxbeanName = new ObjectName(beanName);
-        List<String> path = parsePath(attributePath);
-        connectionStateLock.readLock().lock();
+    private void closeQuietly(JMXConnector connector) {
+        if (connector != null) {
+            try {
+                connector.close();
+            } catch (IOException e) {
+                log.debug("IO error while closing connection to {}", url, e);
+            }
+        }
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the limiter of the concurrent calls to the endpoint, <code>null</code> if they are not limited
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    public Object getAttribute(String beanName, String attributePath) throws IOException, AttributeFetchException {
+        return getAttributes(Collections.singletonList(beanName), Collections.singletonList(attributePath))[0];
+    }
+
+    public Object[] getAttributes(List<String> beanNames, List<String> attributePaths) throws IOException,
+            AttributeFetchException {
+        return getAttributes(beanNames, attributePaths, true);
+    }
+
+    /**
+     * Get the values of several attributes at once. The attributes of a same bean are all fetched in a single remote
+     * call, and then the paths are resolved locally against the fetched values.
+     * <p>
+     * A bean name may be a pattern, in which case its value is a map of the canonical names of the matching beans to
+     * their value, sorted by name.
+     * 
+     * @param cached
+     *            <code>false</code> to fetch fresh values even if the attribute cache is enabled
+     * @return the values, in the order of the requested attributes
+     * @throws IOException
+     *             if the communication with the JMX endpoint failed
+     * @throws AttributeFetchException
+     *             if one the attributes could not be retrieved
+     */
+    @SuppressWarnings("unchecked")
+    public Object[] getAttributes(List<String> beanNames, List<String> attributePaths, boolean cached)
+            throws IOException, AttributeFetchException {
+        int n = beanNames.size();
+        AttributePath[] paths = new AttributePath[n];
+        ObjectName[] patterns = new ObjectName[n];
+        // group the root attributes by bean, keeping the order of the request
+        Map<String, Set<String>> rootsByBean = new LinkedHashMap<String, Set<String>>();
+        for (int i = 0; i < n; i++) {
+            try {
+                paths[i] = AttributePath.compile(attributePaths.get(i));
+            } catch (IllegalArgumentException e) {
+                throw new AttributeFetchException(beanNames.get(i), attributePaths.get(i), e);
+            }
+            try {
+                ObjectName objectName = getObjectName(beanNames.get(i));
+                if (objectName.isPattern()) {
+                    patterns[i] = objectName;
+                    continue;
+                }
+            } catch (MalformedObjectNameException e) {
+                throw new AttributeFetchException(beanNames.get(i), attributePaths.get(i), e);
+            }
+            addRoot(rootsByBean, beanNames.get(i), paths[i].getRoot());
+        }
+
+        Map<String, Map<String, Object>> valuesByBean = new HashMap<String, Map<String, Object>>();
+        // the beans matching each pattern, null for the plain bean names
+        List<Set<ObjectName>> matches = new ArrayList<Set<ObjectName>>(n);
+        lastUsed = System.currentTimeMillis();
+        requests.incrementAndGet();
+        // reject right away rather than adding up to the load of an endpoint already struggling
+        if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+            throw new ConcurrencyLimitException(url, concurrencyLimiter.getLimit());
+        }
+        long[] remoteTime = new long[1];
+        boolean failed = false;
+        PooledConnector connector = selectConnector();
+        connector.outstanding.incrementAndGet();
+        ConnectionState connection = null;
         try {
-            ensureConnected(true);
-            Object value = server.getAttribute(mxbeanName, path.get(0));
-            for (String field : path.subList(1, path.size())) {
-                if (value == null) {
-                    return value;
-                }
-                if (field.charAt(0) == '[') {
-                    if (field.charAt(field.length() - 1) != ']') {
-                        throw new IllegalArgumentException("Incorrect selector " + field + " in path " + attributePath);
+            connection = connector.ensureConnected();
+            long fetchStart = System.nanoTime();
+            Map<String, ObjectName> matchingBeans = null;
+            for (int i = 0; i < n; i++) {
+                matches.add(patterns[i] == null ? null : beanNameIndex.query(patterns[i], connection.server));
+                if (patterns[i] != null) {
+                    if (matchingBeans == null) {
+                        matchingBeans = new HashMap<String, ObjectName>();
                     }
-                    String key = field.substring(1, field.length() - 1);
-                    if (value instanceof Map) {
-                        value = ((Map) value).get(key);
-                    } else if (value instanceof List) {
-                        int x;
-                        try {
-                            x = Integer.parseInt(key);
-                        } catch (NumberFormatException e) {
-                            throw new IllegalArgumentException("Incorrect array index " + key + " in path "
-                                    + attributePath);
-                        }
-                        value = ((List) value).get(x);
-                    }
-                } else if (field.charAt(field.length() - 1) == ')') {
-                    if (field.charAt(field.length() - 2) != '(') {
-                        throw new IllegalArgumentException("Incorrect function call " + field + " in path "
-                                + attributePath);
-                    }
-                    String methodName = field.substring(0, field.length() - 2);
-                    Method method = value.getClass().getMethod(methodName);
-                    value = method.invoke(value);
-                } else if (value instanceof CompositeData) {
-                    value = ((CompositeData) value).get(field);
-                } else {
-                    try {
-                        Method getter = value.getClass().getMethod(
-                                "get" + Character.toUpperCase(field.charAt(0)) + field.substring(1));
-                        value = getter.invoke(value);
-                    } catch (NoSuchMethodException e) {
-                        // no getter, try access directly the field
-                        Field f = value.getClass().getField(field);
-                        value = f.get(value);
+                    for (ObjectName match : matches.get(i)) {
+                        addRoot(rootsByBean, match.getCanonicalName(), paths[i].getRoot());
+                        matchingBeans.put(match.getCanonicalName(), match);
                     }
                 }
             }
-            return value;
-        } finally {
-            connectionStateLock.readLock().unlock();
-        }
-    }
-
-    private List<String> parsePath(String attributePath) {
-        List<String> path = new ArrayList<String>();
-        int p = 0;
-        while (p < attributePath.length()) {
-            if (attributePath.charAt(p) == '[') {
-                StringBuilder buffer = new StringBuilder();
-                while (p < attributePath.length()) {
-                    int end = attributePath.indexOf(']', p + 1);
-                    if (end == -1) {
-                        buffer.append(attributePath.substring(p));
-                        p = attributePath.length();
-                        break;
-                    }
-                    int i = attributePath.indexOf('\\', p + 1);
-                    if (i == -1 || i > end) {
-                        buffer.append(attributePath.substring(p, end + 1));
-                        p = end + 1;
-                        break;
-                    }
-                    buffer.append(attributePath.substring(p, i));
-                    if (i + 1 < attributePath.length()) {
-                        buffer.append(attributePath.charAt(i + 1));
+            for (Entry<String, Set<String>> entry : rootsByBean.entrySet()) {
+                try {
+                    valuesByBean.put(entry.getKey(),
+                            fetchAttributes(connection.server, entry.getKey(), entry.getValue(), cached,
+                                    remoteTime));
+                } catch (AttributeFetchException e) {
+                    if (matchingBeans != null && matchingBeans.containsKey(entry.getKey())
+                            && e.getCause() instanceof InstanceNotFoundException) {
+                        // unregistered since the pattern was queried, it just doesn't match anymore
+                        beanNameIndex.remove(matchingBeans.get(entry.getKey()));
+                        continue;
                     }
-                    p = i + 2;
+                    throw e;
+                }
+            }
+            if (stats != null) {
+                stats.getRemoteFetch().recordSince(fetchStart);
+            }
+            circuitBreaker.recordSuccess();
+        } catch (CircuitOpenException e) {
+            throw e;
+        } catch (FetchTimeoutException e) {
+            // another request is waiting on the endpoint, it is up to it to report the failure
+            throw e;
+        } catch (IOException e) {
+            failed = true;
+            if (connection != null) {
+                // not a failure to connect, already handled
+                circuitBreaker.recordFailure();
+                connector.invalidate(connection);
+            }
+            throw e;
+        } catch (AttributeFetchException e) {
+            // report the failure on the first requested path of the failing attribute
+            for (int i = 0; i < n; i++) {
+                if (beanNames.get(i).equals(e.getBeanName())
+                        && (e.getAttributePath() == null || paths[i].getRoot().equals(e.getAttributePath()))) {
+                    throw new AttributeFetchException(e.getBeanName(), attributePaths.get(i), e.getCause());
                 }
-                path.add(buffer.toString());
+            }
+            throw e;
+        } finally {
+            int stillOutstanding = connector.outstanding.decrementAndGet();
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.release(remoteTime[0], failed);
+            }
+            if (retired && stillOutstanding == 0) {
+                // evicted while in use, don't leave the connection open behind the cache
+                connector.close();
+            }
+        }
+
+        long resolveStart = System.nanoTime();
+        Object[] values = new Object[n];
+        for (int i = 0; i < n; i++) {
+            if (patterns[i] == null) {
+                values[i] = resolve(valuesByBean.get(beanNames.get(i)), beanNames.get(i), paths[i]);
             } else {
-                int i = Integer.MAX_VALUE;
-                for (char c : new char[] { '.', '[' }) {
-                    int ic = attributePath.indexOf(c, p);
-                    if (ic != -1) {
-                        i = Math.min(i, ic);
+                Map<String, Object> matchValues = new LinkedHashMap<String, Object>();
+                for (ObjectName match : matches.get(i)) {
+                    String name = match.getCanonicalName();
+                    if (valuesByBean.containsKey(name)) {
+                        matchValues.put(name, resolve(valuesByBean.get(name), name, paths[i]));
                     }
                 }
-                if (i == Integer.MAX_VALUE) {
-                    path.add(attributePath.substring(p));
-                    p = attributePath.length();
-                } else {
-                    path.add(attributePath.substring(p, i));
-                    if (attributePath.charAt(i) == '[') {
-                        p = i;
-                    } else {
-                        p = i + 1;
-                    }
+                values[i] = matchValues;
+            }
+        }
+        if (stats != null) {
+            stats.getPathResolution().recordSince(resolveStart);
+        }
+        return values;
+    }
+
+    /**
+     * Call some operations of beans, one after the other, through a single connector. The results are then navigated
+     * locally as attribute values would be.
+     * 
+     * @return the results, in the order of the calls
+     * @throws IOException
+     *             if the communication with the JMX endpoint failed
+     * @throws AttributeFetchException
+     *             if one the operations failed, the attribute path being the call
+     */
+    public Object[] invoke(List<String> beanNames, List<OperationCall> calls) throws IOException,
+            AttributeFetchException {
+        int n = beanNames.size();
+        ObjectName[] objectNames = new ObjectName[n];
+        for (int i = 0; i < n; i++) {
+            try {
+                objectNames[i] = getObjectName(beanNames.get(i));
+            } catch (MalformedObjectNameException e) {
+                throw new AttributeFetchException(beanNames.get(i), calls.get(i).toString(), e);
+            }
+        }
+        Object[] results = new Object[n];
+        lastUsed = System.currentTimeMillis();
+        requests.incrementAndGet();
+        if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+            throw new ConcurrencyLimitException(url, concurrencyLimiter.getLimit());
+        }
+        long remoteStart = 0;
+        boolean failed = false;
+        PooledConnector connector = selectConnector();
+        connector.outstanding.incrementAndGet();
+        ConnectionState connection = null;
+        try {
+            connection = connector.ensureConnected();
+            remoteStart = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                OperationCall call = calls.get(i);
+                try {
+                    results[i] = connection.server.invoke(objectNames[i], call.getOperation(), call.getParams(),
+                            call.getSignature());
+                } catch (MBeanException e) {
+                    throw new AttributeFetchException(beanNames.get(i), call.toString(), e.getTargetException());
+                } catch (InstanceNotFoundException e) {
+                    throw new AttributeFetchException(beanNames.get(i), call.toString(), e);
+                } catch (ReflectionException e) {
+                    throw new AttributeFetchException(beanNames.get(i), call.toString(), e);
+                } catch (JMRuntimeException e) {
+                    // the operation itself threw a runtime exception or an error
+                    throw new AttributeFetchException(beanNames.get(i), call.toString(), e.getCause() == null ? e
+                            : e.getCause());
                 }
             }
+            if (stats != null) {
+                stats.getRemoteFetch().recordSince(remoteStart);
+            }
+            circuitBreaker.recordSuccess();
+        } catch (CircuitOpenException e) {
+            throw e;
+        } catch (IOException e) {
+            failed = true;
+            if (connection != null) {
+                circuitBreaker.recordFailure();
+                connector.invalidate(connection);
+            }
+            throw e;
+        } finally {
+            int stillOutstanding = connector.outstanding.decrementAndGet();
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.release(remoteStart == 0 ? 0 : System.nanoTime() - remoteStart, failed);
+            }
+            if (retired && stillOutstanding == 0) {
+                connector.close();
+            }
+        }
+
+        long resolveStart = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            AttributePath path = calls.get(i).getPath();
+            try {
+                results[i] = path.resolve(results[i]);
+            } catch (Exception e) {
+                throw new AttributeFetchException(beanNames.get(i), calls.get(i).toString(), e);
+            }
         }
-        return path;
+        if (stats != null) {
+            stats.getPathResolution().recordSince(resolveStart);
+        }
+        return results;
     }
 
-    public void close() {
-        connectionStateLock.writeLock().lock();
+    /**
+     * Listen to the notifications of a bean. The listener is registered through a single connector: it is also
+     * registered as a listener of that connector, so that it is notified with a {@link JMXConnectionNotification} if
+     * the connection is lost and its registration with it.
+     * 
+     * @throws AttributeFetchException
+     *             if the bean name is invalid or the bean doesn't exist
+     */
+    public NotificationRegistration addNotificationListener(String beanName, NotificationListener listener,
+            NotificationFilter filter) throws IOException, AttributeFetchException {
+        ObjectName objectName;
+        try {
+            objectName = getObjectName(beanName);
+        } catch (MalformedObjectNameException e) {
+            throw new AttributeFetchException(beanName, null, e);
+        }
+        lastUsed = System.currentTimeMillis();
+        requests.incrementAndGet();
+        PooledConnector connector = selectConnector();
+        ConnectionState connection = connector.ensureConnected();
+        connection.connector.addConnectionNotificationListener(listener, null, null);
+        try {
+            connection.server.addNotificationListener(objectName, listener, filter, null);
+        } catch (InstanceNotFoundException e) {
+            removeConnectionListener(connection, listener);
+            throw new AttributeFetchException(beanName, null, e);
+        } catch (IOException e) {
+            removeConnectionListener(connection, listener);
+            circuitBreaker.recordFailure();
+            connector.invalidate(connection);
+            throw e;
+        }
+        subscriptions.incrementAndGet();
+        return new NotificationRegistration(connection, objectName, listener);
+    }
+
+    private void removeConnectionListener(ConnectionState connection, NotificationListener listener) {
         try {
-            if (server != null) {
+            connection.connector.removeConnectionNotificationListener(listener);
+        } catch (ListenerNotFoundException e) {
+            // already removed
+        }
+    }
+
+    /**
+     * The registration of a listener of notifications
+     */
+    public class NotificationRegistration {
+
+        private final ConnectionState connection;
+
+        private final ObjectName objectName;
+
+        private final NotificationListener listener;
+
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private NotificationRegistration(ConnectionState connection, ObjectName objectName,
+                NotificationListener listener) {
+            this.connection = connection;
+            this.objectName = objectName;
+            this.listener = listener;
+        }
+
+        /**
+         * Stop listening, doing a remote call if the connection is still open
+         */
+        public void remove() {
+            release();
+            removeConnectionListener(connection, listener);
+            try {
+                connection.server.removeNotificationListener(objectName, listener);
+            } catch (Exception e) {
+                // most probably the connection is already closed, or the bean unregistered
+                log.debug("Unable to remove the listener of {} on {}", new Object[] { objectName, url, e });
+            }
+        }
+
+        /**
+         * Stop counting the listener as registered, without any remote call as its connection is already gone
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                subscriptions.decrementAndGet();
+            }
+        }
+    }
+
+    private static void addRoot(Map<String, Set<String>> rootsByBean, String beanName, String root) {
+        Set<String> roots = rootsByBean.get(beanName);
+        if (roots == null) {
+            roots = new LinkedHashSet<String>();
+            rootsByBean.put(beanName, roots);
+        }
+        roots.add(root);
+    }
+
+    private static Object resolve(Map<String, Object> beanValues, String beanName, AttributePath path)
+            throws AttributeFetchException {
+        try {
+            return path.resolve(beanValues.get(path.getRoot()));
+        } catch (Exception e) {
+            throw new AttributeFetchException(beanName, path.toString(), e);
+        }
+    }
+
+    /**
+     * @param remoteTime
+     *            where to add the time in nanoseconds spent calling the endpoint, the values found in the cache not
+     *            costing any
+     */
+    private Map<String, Object> fetchAttributes(final MBeanServerConnection server, final String beanName,
+            Set<String> roots, boolean cached, final long[] remoteTime) throws IOException, AttributeFetchException {
+        final ObjectName mxbeanName;
+        try {
+            mxbeanName = getObjectName(beanName);
+        } catch (MalformedObjectNameException e) {
+            throw new AttributeFetchException(beanName, null, e);
+        }
+        if (attributeCache == null || !cached) {
+            return loadAttributes(server, beanName, mxbeanName, roots, remoteTime);
+        }
+        return attributeCache.get(url, mxbeanName, roots, new AttributeCache.Loader() {
+            @Override
+            public Map<String, Object> load(Set<String> attributes) throws IOException, AttributeFetchException {
+                return loadAttributes(server, beanName, mxbeanName, attributes, remoteTime);
+            }
+        });
+    }
+
+    static ObjectName getObjectName(String beanName) throws MalformedObjectNameException {
+        ObjectName objectName = objectNames.get(beanName);
+        if (objectName == null) {
+            objectName = objectNames.put(beanName, new ObjectName(beanName));
+        }
+        return objectName;
+    }
+
+    /**
+     * Actually fetch the values of some attributes of a bean from the JMX endpoint
+     * 
+     * @throws AttributeFetchException
+     *             failure on an attribute of the bean, or on the bean itself if the attribute path is
+     *             <code>null</code>
+     */
+    private static Map<String, Object> loadAttributes(MBeanServerConnection server, String beanName,
+            ObjectName mxbeanName, Set<String> roots, long[] remoteTime) throws IOException, AttributeFetchException {
+        long start = System.nanoTime();
+        try {
+            return loadAttributes(server, beanName, mxbeanName, roots);
+        } finally {
+            remoteTime[0] += System.nanoTime() - start;
+        }
+    }
+
+    private static Map<String, Object> loadAttributes(MBeanServerConnection server, String beanName,
+            ObjectName mxbeanName, Set<String> roots) throws IOException, AttributeFetchException {
+        Map<String, Object> values = new HashMap<String, Object>();
+        try {
+            AttributeList attributes = server.getAttributes(mxbeanName, roots.toArray(new String[roots.size()]));
+            for (Attribute attribute : attributes.asList()) {
+                values.put(attribute.getName(), attribute.getValue());
+            }
+        } catch (InstanceNotFoundException e) {
+            throw new AttributeFetchException(beanName, null, e);
+        } catch (ReflectionException e) {
+            throw new AttributeFetchException(beanName, null, e);
+        }
+        for (String root : roots) {
+            if (!values.containsKey(root)) {
+                // getAttributes silently drops the attributes it failed to get, so get it alone to know why
                 try {
-                    jmxc.close();
+                    values.put(root, server.getAttribute(mxbeanName, root));
                 } catch (IOException e) {
-                    log.warn("IO error while closong connection to {}", url, e);
+                    throw e;
+                } catch (Exception e) {
+                    throw new AttributeFetchException(beanName, root, e);
                 }
-                jmxc = null;
-                server = null;
             }
-        } finally {
-            connectionStateLock.writeLock().unlock();
         }
+        return values;
+    }
+
+    public void close() {
+        for (PooledConnector connector : connectors) {
+            connector.close();
+        }
+    }
+
+    /**
+     * Close the connection for good, as it is not cached anymore. The connectors still in use are closed by the last
+     * request using them.
+     */
+    public void retire() {
+        retired = true;
+        for (PooledConnector connector : connectors) {
+            if (connector.outstanding.get() == 0) {
+                connector.close();
+            }
+        }
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch at which the connection was last requested
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * @return the number of notification listeners currently registered through the connection
+     */
+    public int getSubscriptionCount() {
+        return subscriptions.get();
+    }
+
+    /**
+     * @return the number of requests done through the connection
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public String getUrl() {
+        return url;
     }
 
     @Override
@@ -238,4 +849,135 @@ public class JmxConnectionHolder {
         return true;
     }
 
+    /**
+     * One of the connectors of the pool, connected and reconnected independently of the others
+     */
+    private class PooledConnector {
+
+        private final int index;
+
+        /**
+         * The current connection, replaced as a whole so that the readers never have to lock
+         */
+        private final AtomicReference<ConnectionState> state = new AtomicReference<ConnectionState>(
+                new ConnectionState(null, null, 0));
+
+        /**
+         * Held only while connecting, so that a single thread connects at a time
+         */
+        private final Object connectLock = new Object();
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private final AtomicBoolean checking = new AtomicBoolean(false);
+
+        private PooledConnector(int index) {
+            this.index = index;
+        }
+
+        private boolean isConnected() {
+            return state.get().server != null;
+        }
+
+        /**
+         * @return the established connection
+         */
+        private ConnectionState ensureConnected() throws IOException {
+            if (retired) {
+                throw new IOException("The connection to " + url + " has been evicted");
+            }
+            ConnectionState current = state.get();
+            if (current.server != null) {
+                return current;
+            }
+            // fail fast rather than piling up behind the connecting thread while the endpoint is down
+            if (!circuitBreaker.allowRequest()) {
+                throw new CircuitOpenException(url, circuitBreaker.getRetryDelay());
+            }
+            synchronized (connectLock) {
+                current = state.get();
+                if (current.server != null) {
+                    return current;
+                }
+                if (circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+                    // the connection attempts done while we were waiting for the lock did fail
+                    throw new CircuitOpenException(url, circuitBreaker.getRetryDelay());
+                }
+                JMXConnector connector = null;
+                ConnectionState connected;
+                long connectStart = System.nanoTime();
+                try {
+                    connector = connectWithTimeout();
+                    connected = new ConnectionState(connector, connector.getMBeanServerConnection(),
+                            current.generation + 1);
+                    listenRegistrations(connected);
+                } catch (IOException e) {
+                    circuitBreaker.recordFailure();
+                    closeQuietly(connector);
+                    throw e;
+                } catch (RuntimeException e) {
+                    circuitBreaker.recordFailure();
+                    closeQuietly(connector);
+                    throw e;
+                }
+                if (stats != null) {
+                    stats.getConnect().recordSince(connectStart);
+                }
+                circuitBreaker.recordSuccess();
+                state.set(connected);
+                if (retired && outstanding.get() == 0) {
+                    // evicted while connecting, and no request is there to close it when done
+                    close();
+                }
+                return connected;
+            }
+        }
+
+        /**
+         * Drop a connection which failed. Only the first reader noticing the failure actually closes it, and a
+         * connection established since by another thread is kept.
+         */
+        private void invalidate(ConnectionState broken) {
+            if (state.compareAndSet(broken, new ConnectionState(null, null, broken.generation))) {
+                log.debug("Dropping the connection {}#{} to {}", new Object[] { index, broken.generation, url });
+                unlistenRegistrations(broken, true);
+                closeQuietly(broken.connector);
+            }
+        }
+
+        private void close() {
+            ConnectionState current;
+            do {
+                current = state.get();
+                if (current.server == null) {
+                    return;
+                }
+            } while (!state.compareAndSet(current, new ConnectionState(null, null, current.generation)));
+            unlistenRegistrations(current, false);
+            try {
+                current.connector.close();
+            } catch (IOException e) {
+                log.warn("IO error while closong connection to {}", url, e);
+            }
+        }
+    }
+
+    /**
+     * An immutable snapshot of the connection to the endpoint
+     */
+    private static final class ConnectionState {
+
+        private final JMXConnector connector;
+
+        private final MBeanServerConnection server;
+
+        private final long generation;
+
+        private ConnectionState(JMXConnector connector, MBeanServerConnection server, long generation) {
+            this.connector = connector;
+            this.server = server;
+            this.generation = generation;
+        }
+    }
+
 }
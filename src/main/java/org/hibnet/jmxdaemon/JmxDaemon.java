@@ -15,10 +15,21 @@
  */
 package org.hibnet.jmxdaemon;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -26,35 +37,226 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.jboss.netty.bootstrap.ServerBootstrap;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
 import org.jboss.netty.handler.codec.string.StringDecoder;
 import org.jboss.netty.handler.codec.string.StringEncoder;
+import org.jboss.netty.handler.execution.ExecutionHandler;
+import org.jboss.netty.handler.execution.MemoryAwareThreadPoolExecutor;
 import org.jboss.netty.logging.InternalLoggerFactory;
 import org.jboss.netty.logging.Slf4JLoggerFactory;
-import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class JmxDaemon {
+public class JmxDaemon implements JmxDaemonMXBean {
 
     private static final Logger log = LoggerFactory.getLogger(JmxDaemon.class);
 
+    private static final long MAX_CHANNEL_QUEUED_MEMORY = 1024 * 1024;
+
+    private static final long MAX_TOTAL_QUEUED_MEMORY = 64 * 1024 * 1024;
+
     private SocketAddress listenAddress;
 
     private ServerBootstrap bootstrap;
 
     private JmxRequestHandler jmxRequestHandler;
 
+    private JmxConnectionCache connectionCache;
+
+    private final ChannelGroup channels = new DefaultChannelGroup("jmx-daemon");
+
+    private ExecutionHandler executionHandler;
+
+    private ThreadPoolExecutor jmxPool;
+
     private final int workers;
 
+    private final int jmxThreads;
+
+    private ConnectionSettings connectionSettings = new ConnectionSettings();
+
+    private AttributeCache attributeCache;
+
+    private int multiGetThreads = 50;
+
+    private long multiGetTimeout = 10000;
+
+    private Timer timer;
+
+    private ExecutorService multiGetPool;
+
+    private List<CollectionJob> collectionJobs = Collections.emptyList();
+
+    private List<MetricSink> metricSinks = Collections.emptyList();
+
+    private int collectionThreads = 10;
+
+    private CollectionScheduler collectionScheduler;
+
+    private int subscriptionBufferSize = 1000;
+
+    private Map<String, ScrapeModule> scrapeModules = Collections.emptyMap();
+
+    private DaemonStats stats;
+
+    private long maxQueueWait = 10000;
+
+    private int rateSeries = 100000;
+
+    private long rateStaleAfter = 900000;
+
+    private TargetRegistry targetRegistry;
+
+    private long prewarmWait = 10000;
+
+    private InvokeAllowlist invokeAllowlist = InvokeAllowlist.none();
+
+    private PeerGroup peerGroup;
+
+    private long peerTimeout = 20000;
+
     public JmxDaemon(SocketAddress listenAddress, int workers) {
+        this(listenAddress, workers, workers);
+    }
+
+    public JmxDaemon(SocketAddress listenAddress, int workers, int jmxThreads) {
         this.listenAddress = listenAddress;
         this.workers = workers;
+        this.jmxThreads = jmxThreads;
+    }
+
+    public void setConnectionSettings(ConnectionSettings connectionSettings) {
+        this.connectionSettings = connectionSettings;
+    }
+
+    /**
+     * @param multiGetThreads
+     *            the number of threads fetching concurrently the endpoints of the MGET commands
+     */
+    public void setMultiGetThreads(int multiGetThreads) {
+        this.multiGetThreads = multiGetThreads;
+    }
+
+    /**
+     * @param multiGetTimeout
+     *            the time in milliseconds a MGET command waits for the responses of the endpoints, and a request
+     *            waits for the values of the attribute cache being loaded by another one
+     */
+    public void setMultiGetTimeout(long multiGetTimeout) {
+        this.multiGetTimeout = multiGetTimeout;
+    }
+
+    /**
+     * Enable the caching of the attribute values
+     * 
+     * @param ttl
+     *            the time in milliseconds a value is kept
+     * @param maxSize
+     *            the maximum number of values kept
+     */
+    public void setAttributeCache(long ttl, int maxSize) {
+        this.attributeCache = new AttributeCache(ttl, maxSize);
+    }
+
+    /**
+     * Make the daemon collect by itself some attributes
+     * 
+     * @param jobs
+     *            the attributes to collect
+     * @param sinks
+     *            where to push the collected values
+     */
+    public void setCollection(List<CollectionJob> jobs, List<MetricSink> sinks) {
+        this.collectionJobs = jobs;
+        this.metricSinks = sinks;
+    }
+
+    /**
+     * @param collectionThreads
+     *            the number of threads collecting the attributes configured with
+     *            {@link #setCollection(List, List)}
+     */
+    public void setCollectionThreads(int collectionThreads) {
+        this.collectionThreads = collectionThreads;
+    }
+
+    /**
+     * @param subscriptionBufferSize
+     *            the maximum number of notifications buffered per SUBSCRIBE client not reading fast enough, the
+     *            oldest ones being dropped
+     */
+    public void setSubscriptionBufferSize(int subscriptionBufferSize) {
+        this.subscriptionBufferSize = subscriptionBufferSize;
+    }
+
+    /**
+     * @param scrapeModules
+     *            the modules served to Prometheus on <code>/metrics</code>, by name
+     */
+    public void setScrapeModules(Map<String, ScrapeModule> scrapeModules) {
+        this.scrapeModules = scrapeModules;
+    }
+
+    /**
+     * @param maxQueueWait
+     *            the maximum time in milliseconds a request waits for a thread to be executed, the requests waiting
+     *            longer being rejected with a DAEMON_OVERLOADED error, 0 for no limit
+     */
+    public void setMaxQueueWait(long maxQueueWait) {
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    /**
+     * Bound the memory used by the RATE command
+     * 
+     * @param maxSeries
+     *            the maximum number of counters which previous sample is kept
+     * @param staleAfter
+     *            the time in milliseconds after which the previous sample of a counter is forgotten
+     */
+    public void setRateStore(int maxSeries, long staleAfter) {
+        this.rateSeries = maxSeries;
+        this.rateStaleAfter = staleAfter;
+    }
+
+    /**
+     * Connect to some JMX endpoints before accepting requests
+     * 
+     * @param targetRegistry
+     *            the endpoints to connect to
+     * @param maxWait
+     *            the maximum time in milliseconds the startup waits for the connections, the slower ones being
+     *            opened in the background
+     */
+    public void setTargetRegistry(TargetRegistry targetRegistry, long maxWait) {
+        this.targetRegistry = targetRegistry;
+        this.prewarmWait = maxWait;
+    }
+
+    /**
+     * @param invokeAllowlist
+     *            the operations the INVOKE command is allowed to call, none by default
+     */
+    public void setInvokeAllowlist(InvokeAllowlist invokeAllowlist) {
+        this.invokeAllowlist = invokeAllowlist;
+    }
+
+    /**
+     * Share the JMX endpoints with other daemons, each endpoint being served by a single daemon of the group
+     * 
+     * @param peerTimeout
+     *            the time in milliseconds a request forwarded to a peer waits for its response
+     */
+    public void setPeerGroup(PeerGroup peerGroup, long peerTimeout) {
+        this.peerGroup = peerGroup;
+        this.peerTimeout = peerTimeout;
     }
 
     public void start() {
@@ -62,53 +264,403 @@ public class JmxDaemon {
         log.info("Creating worker thread pool with " + workers + " threads.");
         ExecutorService workerPool = Executors.newFixedThreadPool(workers);
         bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(bossPool, workerPool));
-        jmxRequestHandler = new JmxRequestHandler();
+        // responses are small and may be written in several parts, don't let Nagle delay them
+        bootstrap.setOption("child.tcpNoDelay", true);
+        timer = new HashedWheelTimer();
+        multiGetPool = Executors.newFixedThreadPool(multiGetThreads);
+        stats = new DaemonStats(connectionSettings.getMaxConnections());
+        if (attributeCache != null) {
+            // the requests waiting on a value loaded by another one give up with it
+            attributeCache.setWaitTimeout(multiGetTimeout);
+        }
+        connectionCache = new JmxConnectionCache(connectionSettings, attributeCache, stats);
+        jmxRequestHandler = new JmxRequestHandler(channels, connectionCache, timer, multiGetPool, multiGetTimeout,
+                stats);
+        jmxRequestHandler.setSubscriptionBufferSize(subscriptionBufferSize);
+        jmxRequestHandler.setRateStore(new RateStore(rateSeries, rateStaleAfter));
+        jmxRequestHandler.setMaxQueueWait(maxQueueWait);
+        jmxRequestHandler.setTargetRegistry(targetRegistry);
+        jmxRequestHandler.setInvokeAllowlist(invokeAllowlist);
+        jmxRequestHandler.setPeerGroup(peerGroup, peerTimeout);
+        // the beans of a scrape are fetched concurrently by the MGET threads, within the same timeout
+        jmxRequestHandler.setExporter(new OpenMetricsExporter(scrapeModules, multiGetPool, multiGetTimeout,
+                stats));
+        final JmxRequestDecoder jmxRequestDecoder = new JmxRequestDecoder();
+        log.info("Creating JMX thread pool with " + jmxThreads + " threads.");
+        // the requests are not ordered per channel, the ResponseSequencer takes care of the order of the responses
+        jmxPool = new MemoryAwareThreadPoolExecutor(jmxThreads, MAX_CHANNEL_QUEUED_MEMORY, MAX_TOTAL_QUEUED_MEMORY);
+        executionHandler = new ExecutionHandler(jmxPool);
+        final StringDecoder stringDecoder = new StringDecoder();
+        final StringEncoder stringEncoder = new StringEncoder();
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             public ChannelPipeline getPipeline() throws Exception {
-                return Channels.pipeline(
-                        new DelimiterBasedFrameDecoder(1024 * 1024, ChannelBuffers
-                                .copiedBuffer("\n", CharsetUtil.UTF_8)), new StringDecoder(), new StringEncoder(),
-                        jmxRequestHandler);
+                // the decoders of the text, binary or HTTP protocol are added once the first bytes are received
+                return Channels.pipeline(new ProtocolDetector(stringDecoder, stringEncoder, jmxRequestDecoder),
+                        executionHandler, jmxRequestHandler);
             };
         });
-        bootstrap.bind(listenAddress);
+        if (targetRegistry != null) {
+            if (targetRegistry.getUrls().size() > connectionSettings.getMaxConnections()) {
+                log.warn("There are more JMX endpoints to connect to at startup ({}) than connections kept ({})",
+                        targetRegistry.getUrls().size(), connectionSettings.getMaxConnections());
+            }
+            try {
+                targetRegistry.warm(connectionCache, connectionSettings, prewarmWait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channels.add(bootstrap.bind(listenAddress));
         log.info("Starting listening to {}", listenAddress);
+        registerMBean();
+        if (!collectionJobs.isEmpty() && !metricSinks.isEmpty()) {
+            log.info("Starting the collection of {} attributes with {} threads", collectionJobs.size(),
+                    collectionThreads);
+            collectionScheduler = new CollectionScheduler(connectionCache, metricSinks, collectionThreads);
+            collectionScheduler.start(collectionJobs);
+        }
     }
 
     public void stop() {
-        jmxRequestHandler.closeJmxConnections();
+        unregisterMBean();
+        if (collectionScheduler != null) {
+            collectionScheduler.stop();
+            collectionScheduler = null;
+        }
+        if (targetRegistry != null) {
+            targetRegistry.stop();
+        }
+        if (peerGroup != null) {
+            peerGroup.stop();
+        }
+        channels.close().awaitUninterruptibly();
+        executionHandler.releaseExternalResources();
+        timer.stop();
+        multiGetPool.shutdownNow();
+        connectionCache.closeAll();
         bootstrap.releaseExternalResources();
     }
 
+    ObjectName getObjectName() throws MalformedObjectNameException {
+        return new ObjectName("org.hibnet.jmxdaemon:type=JmxDaemon,name=" + ObjectName.quote(listenAddress.toString()));
+    }
+
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, getObjectName());
+        } catch (Exception e) {
+            log.warn("Unable to register the management bean of the daemon", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (Exception e) {
+            log.warn("Unable to unregister the management bean of the daemon", e);
+        }
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        return jmxPool.getQueue().size();
+    }
+
+    @Override
+    public int getActiveRequests() {
+        return jmxPool.getActiveCount();
+    }
+
+    @Override
+    public int getActiveFetches() {
+        return jmxRequestHandler.getActiveFetches();
+    }
+
+    @Override
+    public int getJmxThreads() {
+        return jmxThreads;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return attributeCache == null ? 0 : attributeCache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return attributeCache == null ? 0 : attributeCache.getMisses();
+    }
+
+    @Override
+    public int getCacheSize() {
+        return attributeCache == null ? 0 : attributeCache.size();
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return connectionCache.size();
+    }
+
+    @Override
+    public List<ConnectionInfo> getConnections() {
+        return connectionCache.getConnectionInfos();
+    }
+
+    @Override
+    public long getInFlightRequests() {
+        return stats.getInFlight();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return stats.getCommandCounts();
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        return stats.getErrorCounts();
+    }
+
+    @Override
+    public Map<String, Long> getTargetRequestCounts() {
+        return stats.getTargetCounts();
+    }
+
+    @Override
+    public List<LatencyInfo> getLatencies() {
+        return stats.getLatencies();
+    }
+
+    @Override
+    public int getRateSeries() {
+        return jmxRequestHandler.getRateSeries();
+    }
+
+    @Override
+    public boolean isReady() {
+        return jmxRequestHandler.isReady();
+    }
+
     public static void main(String[] args) {
         String listendAddress = "localhost";
         int port = 2713;
         int workers = 50;
+        int jmxThreads = 50;
+        ConnectionSettings connectionSettings = new ConnectionSettings();
+        long cacheTtl = 0;
+        int multiGetThreads = 50;
+        long multiGetTimeout = 10000;
+        int cacheSize = 10000;
+        List<CollectionJob> collectionJobs = Collections.emptyList();
+        List<MetricSink> metricSinks = new ArrayList<MetricSink>();
+        int collectionThreads = 10;
+        int subscriptionBufferSize = 1000;
+        Map<String, ScrapeModule> scrapeModules = Collections.emptyMap();
+        long maxQueueWait = 10000;
+        int rateSeries = 100000;
+        long rateStaleAfter = 900000;
+        List<String> targets = null;
+        int prewarmThreads = 20;
+        long prewarmWait = 10000;
+        int readyPercent = 90;
+        InvokeAllowlist invokeAllowlist = InvokeAllowlist.none();
+        List<String> peers = null;
+        String peerSelf = null;
+        long peerTimeout = 20000;
 
         Options options = new Options();
         options.addOption("p", "port", true, "the port number to listen to (defaults to 2713)");
         options.addOption("l", "listen", true, "the address the daemon will listen to (defaults to localhost)");
         options.addOption("h", "help", false, "displays this message");
         options.addOption("w", "workers", true, "number of worker threads, (default 50)");
+        options.addOption("j", "jmx-threads", true, "number of threads doing the JMX requests, (default 50)");
+        options.addOption(null, "connect-timeout", true,
+                "maximum time in ms to connect to a JMX endpoint, (default 10000)");
+        options.addOption(null, "read-timeout", true,
+                "maximum time in ms to wait for the response of a JMX endpoint, (default none)");
+        options.addOption(null, "failure-threshold", true,
+                "number of consecutive failures after which a JMX endpoint is not requested for a while, (default 3)");
+        options.addOption(null, "backoff", true,
+                "time in ms a failing JMX endpoint is not requested, doubled on each new failure, (default 1000)");
+        options.addOption(null, "max-backoff", true,
+                "maximum time in ms a failing JMX endpoint is not requested, (default 60000)");
+        options.addOption(null, "pool-size", true,
+                "maximum number of connections opened to a same JMX endpoint when it is requested concurrently,"
+                        + " (default 1)");
+        options.addOption(null, "health-check", true,
+                "time in ms between the checks of the idle connections to the JMX endpoints, (default 30000, 0 none)");
+        options.addOption(null, "max-connections", true,
+                "maximum number of JMX endpoints to keep a connection to, (default 1000)");
+        options.addOption(null, "idle-timeout", true,
+                "time in ms after which the connection to a JMX endpoint not requested is closed,"
+                        + " (default 600000, 0 never)");
+        options.addOption(null, "max-concurrency", true,
+                "maximum number of concurrent requests to a same JMX endpoint, lowered when it slows down, the"
+                        + " requests beyond being rejected, (default 0, no limit)");
+        options.addOption(null, "max-queue-wait", true,
+                "maximum time in ms a request waits to be executed, the requests waiting longer being rejected,"
+                        + " (default 10000, 0 no limit)");
+        options.addOption(null, "query-ttl", true,
+                "time in ms the names of the beans matching a pattern are cached, per JMX endpoint, (default 60000)");
+        options.addOption(null, "cache-ttl", true,
+                "time in ms the attribute values are cached, shared by every client, (default 0, no cache)");
+        options.addOption(null, "cache-size", true, "maximum number of attribute values cached, (default 10000)");
+        options.addOption(null, "mget-threads", true,
+                "number of threads fetching concurrently the JMX endpoints of the MGET commands, (default 50)");
+        options.addOption(null, "mget-timeout", true,
+                "maximum time in ms a MGET command waits for the JMX endpoints, and a request for the cached"
+                        + " values being loaded by another one, (default 10000)");
+        options.addOption(null, "subscribe-buffer", true,
+                "maximum number of notifications buffered per SUBSCRIBE client not reading fast enough,"
+                        + " (default 1000)");
+        options.addOption(null, "collect", true,
+                "file listing the attributes the daemon collects by itself, one per line:"
+                        + " <interval> <jmxurl> <metricname> <beanname> <attribute>");
+        options.addOption(null, "collect-threads", true,
+                "number of threads collecting the attributes of the --collect file, (default 10)");
+        options.addOption(null, "graphite", true, "host:port of a Graphite server to push the collected values to");
+        options.addOption(null, "statsd", true, "host:port of a StatsD server to push the collected values to");
+        options.addOption(null, "collect-file", true, "local file to append the collected values to");
+        options.addOption(null, "collect-file-size", true,
+                "size in bytes above which the --collect-file is rolled, (default 10485760)");
+        options.addOption(null, "collect-file-count", true, "number of rolled --collect-file kept, (default 5)");
+        options.addOption(null, "rate-series", true,
+                "maximum number of counters which previous sample is kept for the RATE command, (default 100000)");
+        options.addOption(null, "rate-stale", true,
+                "time in ms after which a counter not requested by a RATE command is forgotten, (default 900000)");
+        options.addOption(null, "targets", true,
+                "file listing the urls of the JMX endpoints to connect to before accepting requests, one per line");
+        options.addOption(null, "prewarm-threads", true,
+                "number of threads connecting to the --targets endpoints at startup, (default 20)");
+        options.addOption(null, "prewarm-wait", true,
+                "maximum time in ms the startup waits for the --targets endpoints, the slower ones being connected"
+                        + " in the background, (default 10000)");
+        options.addOption(null, "ready-percent", true,
+                "percentage of the --targets endpoints to be connected for the daemon to be ready, (default 90)");
+        options.addOption(null, "invoke-allow", true,
+                "file listing the operations the INVOKE command is allowed to call, one per line:"
+                        + " <beanname> <operation|*>, (default none)");
+        options.addOption(null, "peers", true,
+                "file listing the daemons sharing the JMX endpoints, one host:port per line, each endpoint being"
+                        + " served by a single daemon, the others forwarding it the requests");
+        options.addOption(null, "peer-self", true,
+                "host:port of this daemon in the --peers file, (default <listen>:<port>)");
+        options.addOption(null, "peer-timeout", true,
+                "maximum time in ms a request forwarded to a peer waits for its response, (default 20000)");
+        options.addOption(null, "metrics-modules", true,
+                "file listing the attributes served to Prometheus on /metrics, one per line:"
+                        + " <module> <gauge|counter|unknown> <metricname> <beanname> <attribute>");
         CommandLineParser parser = new BasicParser();
         try {
             CommandLine cmd = parser.parse(options, args);
-            if (cmd.hasOption("p")) {
+            port = (int) parseNumber(cmd, "p", port, "Port number");
+            workers = (int) parseNumber(cmd, "w", workers, "workers number");
+            jmxThreads = (int) parseNumber(cmd, "j", jmxThreads, "JMX threads number");
+            connectionSettings.setConnectTimeout(parseNumber(cmd, "connect-timeout",
+                    connectionSettings.getConnectTimeout(), "connect timeout"));
+            connectionSettings.setFailureThreshold((int) parseNumber(cmd, "failure-threshold",
+                    connectionSettings.getFailureThreshold(), "failure threshold"));
+            connectionSettings.setInitialBackoff(parseNumber(cmd, "backoff", connectionSettings.getInitialBackoff(),
+                    "backoff"));
+            connectionSettings.setMaxBackoff(parseNumber(cmd, "max-backoff", connectionSettings.getMaxBackoff(),
+                    "max backoff"));
+            connectionSettings.setPoolSize((int) parseNumber(cmd, "pool-size", connectionSettings.getPoolSize(),
+                    "pool size"));
+            connectionSettings.setHealthCheckInterval(parseNumber(cmd, "health-check",
+                    connectionSettings.getHealthCheckInterval(), "health check interval"));
+            connectionSettings.setMaxConnections((int) parseNumber(cmd, "max-connections",
+                    connectionSettings.getMaxConnections(), "max connections"));
+            connectionSettings.setIdleTimeout(parseNumber(cmd, "idle-timeout", connectionSettings.getIdleTimeout(),
+                    "idle timeout"));
+            connectionSettings.setMaxConcurrency((int) parseNumber(cmd, "max-concurrency",
+                    connectionSettings.getMaxConcurrency(), "max concurrency"));
+            maxQueueWait = parseNumber(cmd, "max-queue-wait", maxQueueWait, "max queue wait");
+            connectionSettings.setQueryNamesTtl(parseNumber(cmd, "query-ttl", connectionSettings.getQueryNamesTtl(),
+                    "query ttl"));
+            cacheTtl = parseNumber(cmd, "cache-ttl", cacheTtl, "cache ttl");
+            cacheSize = (int) parseNumber(cmd, "cache-size", cacheSize, "cache size");
+            multiGetThreads = (int) parseNumber(cmd, "mget-threads", multiGetThreads, "MGET threads number");
+            multiGetTimeout = parseNumber(cmd, "mget-timeout", multiGetTimeout, "MGET timeout");
+            if (cmd.hasOption("read-timeout")) {
+                // RMI has no per connection setting, and it must be set before any RMI call is done
+                System.setProperty("sun.rmi.transport.tcp.responseTimeout",
+                        Long.toString(parseNumber(cmd, "read-timeout", 0, "read timeout")));
+            }
+            subscriptionBufferSize = (int) parseNumber(cmd, "subscribe-buffer", subscriptionBufferSize,
+                    "subscribe buffer size");
+            rateSeries = (int) parseNumber(cmd, "rate-series", rateSeries, "rate series number");
+            if (rateSeries <= 0) {
+                System.err.println("Invalid rate series number: " + rateSeries);
+                System.exit(1);
+            }
+            rateStaleAfter = parseNumber(cmd, "rate-stale", rateStaleAfter, "rate stale time");
+            if (cmd.hasOption("targets")) {
+                try {
+                    targets = TargetRegistry.load(new File(cmd.getOptionValue("targets")));
+                } catch (IOException e) {
+                    System.err.println("Unable to load the targets: " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            prewarmThreads = (int) parseNumber(cmd, "prewarm-threads", prewarmThreads, "prewarm threads number");
+            prewarmWait = parseNumber(cmd, "prewarm-wait", prewarmWait, "prewarm wait");
+            readyPercent = (int) parseNumber(cmd, "ready-percent", readyPercent, "ready percentage");
+            collectionThreads = (int) parseNumber(cmd, "collect-threads", collectionThreads,
+                    "collection threads number");
+            if (cmd.hasOption("collect")) {
                 try {
-                    port = Integer.parseInt(cmd.getOptionValue("p"));
-                } catch (NumberFormatException nfe) {
-                    System.err.println("Invalid Port number: " + cmd.getOptionValue("p"));
+                    collectionJobs = CollectionJob.load(new File(cmd.getOptionValue("collect")));
+                } catch (IOException e) {
+                    System.err.println("Unable to load the collection jobs: " + e.getMessage());
                     System.exit(1);
                 }
             }
-            if (cmd.hasOption("w")) {
+            if (cmd.hasOption("invoke-allow")) {
+                try {
+                    invokeAllowlist = InvokeAllowlist.load(new File(cmd.getOptionValue("invoke-allow")));
+                } catch (IOException e) {
+                    System.err.println("Unable to load the invoke allowlist: " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            if (cmd.hasOption("peers")) {
+                try {
+                    peers = PeerGroup.load(new File(cmd.getOptionValue("peers")));
+                } catch (IOException e) {
+                    System.err.println("Unable to load the peers: " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            peerSelf = cmd.getOptionValue("peer-self");
+            peerTimeout = parseNumber(cmd, "peer-timeout", peerTimeout, "peer timeout");
+            if (cmd.hasOption("metrics-modules")) {
+                try {
+                    scrapeModules = ScrapeModule.load(new File(cmd.getOptionValue("metrics-modules")));
+                } catch (IOException e) {
+                    System.err.println("Unable to load the metrics modules: " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+            if (cmd.hasOption("graphite")) {
+                metricSinks.add(new GraphiteSink(parseAddress(cmd, "graphite")));
+            }
+            if (cmd.hasOption("statsd")) {
                 try {
-                    workers = Integer.parseInt(cmd.getOptionValue("w"));
-                } catch (NumberFormatException nfe) {
-                    System.err.println("Invalid workers number: " + cmd.getOptionValue("w"));
+                    metricSinks.add(new StatsdSink(parseAddress(cmd, "statsd")));
+                } catch (IOException e) {
+                    System.err.println("Unable to open the StatsD socket: " + e.getMessage());
                     System.exit(1);
                 }
             }
+            if (cmd.hasOption("collect-file")) {
+                metricSinks.add(new RollingFileSink(new File(cmd.getOptionValue("collect-file")), parseNumber(cmd,
+                        "collect-file-size", 10 * 1024 * 1024, "collect file size"), (int) parseNumber(cmd,
+                        "collect-file-count", 5, "collect file count")));
+            }
+            if (!collectionJobs.isEmpty() && metricSinks.isEmpty()) {
+                System.err.println("No --graphite, --statsd or --collect-file to push the collected values to");
+                System.exit(1);
+            }
             if (cmd.hasOption("l")) {
                 listendAddress = cmd.getOptionValue("l");
             }
@@ -122,10 +674,83 @@ public class JmxDaemon {
         }
 
         InternalLoggerFactory.setDefaultFactory(new Slf4JLoggerFactory());
-        JmxDaemon daemon = new JmxDaemon(new InetSocketAddress(listendAddress, port), workers);
+        JmxDaemon daemon = new JmxDaemon(new InetSocketAddress(listendAddress, port), workers, jmxThreads);
+        daemon.setConnectionSettings(connectionSettings);
+        daemon.setMultiGetThreads(multiGetThreads);
+        daemon.setMultiGetTimeout(multiGetTimeout);
+        if (cacheTtl > 0) {
+            daemon.setAttributeCache(cacheTtl, cacheSize);
+        }
+        daemon.setCollectionThreads(collectionThreads);
+        daemon.setSubscriptionBufferSize(subscriptionBufferSize);
+        daemon.setScrapeModules(scrapeModules);
+        daemon.setRateStore(rateSeries, rateStaleAfter);
+        daemon.setMaxQueueWait(maxQueueWait);
+        daemon.setInvokeAllowlist(invokeAllowlist);
+        if (peers != null) {
+            PeerGroup peerGroup = null;
+            try {
+                peerGroup = new PeerGroup(peers, peerSelf == null ? listendAddress + ":" + port : peerSelf,
+                        connectionSettings);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            daemon.setPeerGroup(peerGroup, peerTimeout);
+            if (targets != null) {
+                // only the endpoints owned by this daemon are connected to
+                List<String> owned = new ArrayList<String>();
+                for (String url : targets) {
+                    if (peerGroup.isLocal(url)) {
+                        owned.add(url);
+                    }
+                }
+                targets = owned;
+            }
+            // each daemon of the group collects the attributes of its own endpoints
+            List<CollectionJob> ownedJobs = new ArrayList<CollectionJob>();
+            for (CollectionJob job : collectionJobs) {
+                if (peerGroup.isLocal(job.getUrl())) {
+                    ownedJobs.add(job);
+                }
+            }
+            collectionJobs = ownedJobs;
+        }
+        daemon.setCollection(collectionJobs, metricSinks);
+        if (targets != null) {
+            daemon.setTargetRegistry(new TargetRegistry(targets, prewarmThreads, readyPercent), prewarmWait);
+        }
         daemon.start();
     }
 
+    private static long parseNumber(CommandLine cmd, String option, long defaultValue, String name) {
+        if (!cmd.hasOption(option)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(cmd.getOptionValue(option));
+        } catch (NumberFormatException nfe) {
+            System.err.println("Invalid " + name + ": " + cmd.getOptionValue(option));
+            System.exit(1);
+            return defaultValue;
+        }
+    }
+
+    private static InetSocketAddress parseAddress(CommandLine cmd, String option) {
+        String value = cmd.getOptionValue(option);
+        int i = value.lastIndexOf(':');
+        try {
+            if (i > 0) {
+                return new InetSocketAddress(value.substring(0, i), Integer.parseInt(value.substring(i + 1)));
+            }
+        } catch (IllegalArgumentException e) {
+            // reported below
+        }
+        System.err.println("Invalid " + option + " address, expecting host:port: " + value);
+        System.exit(1);
+        return null;
+    }
+
     private static void displayHelp(Options o) {
         HelpFormatter formatter = new HelpFormatter();
         formatter.printHelp("jmxdaemon", o);
@@ -134,7 +759,27 @@ public class JmxDaemon {
         System.out.println();
         displayHelpGET();
         System.out.println();
+        displayHelpGETJSON();
+        System.out.println();
+        displayHelpRATE();
+        System.out.println();
+        displayHelpINVOKE();
+        System.out.println();
+        displayHelpMGET();
+        System.out.println();
         displayHelpCLOSE();
+        System.out.println();
+        displayHelpKEEPALIVE();
+        System.out.println();
+        displayHelpSUBSCRIBE();
+        System.out.println();
+        displayHelpSTATS();
+        System.out.println();
+        displayHelpBinary();
+        System.out.println();
+        displayHelpMetrics();
+        System.out.println();
+        displayHelpPeers();
     }
 
     private static void displayHelpGET() {
@@ -152,6 +797,80 @@ public class JmxDaemon {
         System.out.println("    java.lang:type=Memory HeapMemoryUsage.used \\");
         System.out.println("    java.lang:type=Memory HeapMemoryUsage.committed \\");
         System.out.println("    java.lang:type=Memory HeapMemoryUsage.max");
+        System.out.println("The bean name can be a pattern, the attribute of every matching bean is then formatted as");
+        System.out.println("  a pair of arguments, the name of the bean and the value, sorted by bean name.");
+        System.out.println("Exemple:");
+        System.out.println("  GET service:jmx:rmi:///jndi/rmi://myserver.mydomain.com:7199/jmxrmi \\");
+        System.out.println("    '%s:%d %s:%d' java.lang:type=GarbageCollector,* CollectionCount");
+    }
+
+    private static void displayHelpGETJSON() {
+        System.out.println("The GETJSON command retrieve values from JMX beans and returns them as a JSON array, on a");
+        System.out.println("  single line. The composite and tabular values are returned whole, as objects and arrays");
+        System.out.println("  of rows. The value of a bean pattern is an object with a field per matching bean.");
+        System.out.println("Usage:");
+        System.out.println("  GETJSON <jmxurl> [<beanname> <attribute>]+");
+        System.out.println("    jmxurl       : the url of the JMX endpoint");
+        System.out.println("    beanname     : the name of the JMX bean to query");
+        System.out.println("    attribute    : the name of the attribute to get the value from");
+        System.out.println("Exemple:");
+        System.out.println("  GETJSON service:jmx:rmi:///jndi/rmi://myserver.mydomain.com:7199/jmxrmi \\");
+        System.out.println("    java.lang:type=Memory HeapMemoryUsage java.lang:type=MemoryPool,* Usage");
+        System.out.println("Response exemple:");
+        System.out.println("  OK");
+        System.out.println("  [{\"committed\":257425408,\"init\":264241152,\"max\":3709861888,\"used\":10485760},"
+                + "{\"java.lang:name=Metaspace,type=MemoryPool\":{...},...}]");
+    }
+
+    private static void displayHelpRATE() {
+        System.out.println("The RATE command retrieve counters from JMX beans and returns their rates per second");
+        System.out.println("  since the previous RATE command requesting them, formatted as GET does. The first rate");
+        System.out.println("  of a counter is NaN. A counter decreasing, or the JVM of the endpoint restarting, as");
+        System.out.println("  seen by the StartTime of java.lang:type=Runtime, is considered as reset to 0.");
+        System.out.println("Usage:");
+        System.out.println("  RATE <jmxurl> <stringformat> [<beanname> <attribute>]+");
+        System.out.println("Exemple:");
+        System.out.println("  RATE service:jmx:rmi:///jndi/rmi://myserver.mydomain.com:7199/jmxrmi \\");
+        System.out.println("    '%s:%f %s:%f' java.lang:type=GarbageCollector,* CollectionCount");
+    }
+
+    private static void displayHelpINVOKE() {
+        System.out.println("The INVOKE command calls operations of JMX beans and returns their results formatted as");
+        System.out.println("  GET does. Only the operations listed in the --invoke-allow file can be called. The");
+        System.out.println("  operations are called one after the other, unless a concurrency is specified.");
+        System.out.println("Usage:");
+        System.out.println("  INVOKE <jmxurl> <stringformat> [<concurrency>] [<beanname> <operation>]+");
+        System.out.println("    concurrency  : the maximum number of operations called concurrently, (default 1)");
+        System.out.println("    operation    : the name of the operation followed by its arguments in parenthesis,");
+        System.out.println("                   separated by commas, optionally prefixed by their type: string, int,");
+        System.out.println("                   long, boolean, double, float, short, byte or char. The result can be");
+        System.out.println("                   navigated as an attribute value.");
+        System.out.println("Exemple:");
+        System.out.println("  INVOKE service:jmx:rmi:///jndi/rmi://myserver.mydomain.com:7199/jmxrmi '%s %s' 2 \\");
+        System.out.println("    java.lang:type=Memory 'gc()' \\");
+        System.out.println("    com.sun.management:type=HotSpotDiagnostic 'getVMOption(MaxHeapSize).value'");
+    }
+
+    private static void displayHelpMGET() {
+        System.out.println("The MGET command retrieve the same values from several JMX endpoints concurrently. The first");
+        System.out.println("  line of the response is OK, then for each endpoint, as soon as it responded, a line with");
+        System.out.println("  its url followed by the response it would have had with GET, on a single line.");
+        System.out.println("Usage:");
+        System.out.println("  MGET <jmxurls> <stringformat> [<beanname> <attribute>]+");
+        System.out.println("    jmxurls      : the urls of the JMX endpoints, separated by spaces");
+        System.out.println("    stringformat : the string format of how attributes should be outputed back");
+        System.out.println("    beanname     : the name of the JMX bean to query");
+        System.out.println("    attribute    : the name of the attribute to get the value from");
+        System.out.println("Exemple:");
+        System.out.println("  MGET 'service:jmx:rmi:///jndi/rmi://myserver1.mydomain.com:7199/jmxrmi \\");
+        System.out.println("        service:jmx:rmi:///jndi/rmi://myserver2.mydomain.com:7199/jmxrmi' \\");
+        System.out.println("    'used:%d max:%d' \\");
+        System.out.println("    java.lang:type=Memory HeapMemoryUsage.used \\");
+        System.out.println("    java.lang:type=Memory HeapMemoryUsage.max");
+        System.out.println("Response exemple:");
+        System.out.println("  OK");
+        System.out.println("  service:jmx:rmi:///jndi/rmi://myserver2.mydomain.com:7199/jmxrmi OK used:1234 max:5678");
+        System.out.println("  service:jmx:rmi:///jndi/rmi://myserver1.mydomain.com:7199/jmxrmi ERR TIMEOUT ...");
     }
 
     private static void displayHelpCLOSE() {
@@ -162,4 +881,76 @@ public class JmxDaemon {
         System.out.println("Exemple:");
         System.out.println("  CLOSE service:jmx:rmi:///jndi/rmi://myserver.mydomain.com:7199/jmxrmi");
     }
+
+    private static void displayHelpSUBSCRIBE() {
+        System.out.println("The SUBSCRIBE command streams the notifications of a JMX bean, one per line, until the");
+        System.out.println("  connection is closed. The fields of the lines are separated by tabs. When the client");
+        System.out.println("  doesn't read fast enough, the oldest notifications are dropped.");
+        System.out.println("Usage:");
+        System.out.println("  SUBSCRIBE <jmxurl> <beanname> [<type>]");
+        System.out.println("    jmxurl   : the url of the JMX endpoint");
+        System.out.println("    beanname : the name of the JMX bean emitting the notifications");
+        System.out.println("    type     : only stream the notifications which type starts with this prefix");
+        System.out.println("Exemple:");
+        System.out.println("  SUBSCRIBE service:jmx:rmi:///jndi/rmi://myserver.mydomain.com:7199/jmxrmi \\");
+        System.out.println("    java.lang:type=GarbageCollector,name=ConcurrentMarkSweep");
+        System.out.println("Response exemple:");
+        System.out.println("  OK");
+        System.out.println("  NOTIF <timestamp> <sequence> <type> <source> <message> [<key>=<value>]*");
+        System.out.println("  DROPPED <count>");
+        System.out.println("  END <reason>");
+    }
+
+    private static void displayHelpSTATS() {
+        System.out.println("The STATS command responds the measures of the daemon itself, one per line, as exposed by");
+        System.out.println("  its management bean: the requests in flight and per command, the errors per code, the");
+        System.out.println("  requests per JMX endpoint and the latencies in microseconds of the steps of the");
+        System.out.println("  requests.");
+        System.out.println("Usage:");
+        System.out.println("  STATS");
+        System.out.println("Response exemple:");
+        System.out.println("  OK");
+        System.out.println("  connections 1");
+        System.out.println("  inflight 1");
+        System.out.println("  command.GET 12");
+        System.out.println("  error.CONNECTION_FAILED 1");
+        System.out.println("  target.service:jmx:rmi:///jndi/rmi://myserver.mydomain.com:7199/jmxrmi 12");
+        System.out.println("  latency.remote_fetch count=11 mean=850 p50=767 p90=1151 p99=2047 p999=2047 max=1985");
+    }
+
+    private static void displayHelpBinary() {
+        System.out.println("A client sending the byte 0xB1 right after connecting switches to the binary protocol:");
+        System.out.println("  length prefixed frames carrying the GET and CLOSE commands, responded with typed values");
+        System.out.println("  instead of a formatted string. See the javadoc of org.hibnet.jmxdaemon.BinaryProtocol.");
+    }
+
+    private static void displayHelpMetrics() {
+        System.out.println("An HTTP GET on /metrics scrapes a module of the --metrics-modules file on a JMX endpoint,");
+        System.out.println("  and responds in the OpenMetrics text format, as expected by Prometheus.");
+        System.out.println("Usage:");
+        System.out.println("  GET /metrics?target=<jmxurl>&module=<module>");
+        System.out.println("Exemple:");
+        System.out.println("  curl 'http://localhost:2713/metrics?module=jvm&target=service:jmx:rmi:///jndi/rmi://"
+                + "myserver.mydomain.com:7199/jmxrmi'");
+        System.out.println("An HTTP GET on /ready responds 200 once enough of the --targets endpoints are connected,");
+        System.out.println("  503 before.");
+    }
+
+    private static void displayHelpPeers() {
+        System.out.println("With --peers, the daemons of the group share the JMX endpoints by consistent hashing");
+        System.out.println("  of their url. The GET, GETJSON, RATE, INVOKE and CLOSE commands, and each endpoint");
+        System.out.println("  of a MGET, and the GET of the binary protocol, are forwarded to the daemon owning the");
+        System.out.println("  endpoint. The /metrics scrapes are redirected to it. Of the --collect file, each daemon");
+        System.out.println("  collects the attributes of its own endpoints, so they can share the same file. The");
+        System.out.println("  SUBSCRIBE command is served locally.");
+    }
+
+    private static void displayHelpKEEPALIVE() {
+        System.out.println("The KEEPALIVE command keeps the connection open after the responses, so that several");
+        System.out.println("  commands can be sent on it, even without waiting for the previous responses.");
+        System.out.println("  The responses are sent back in the order of the commands, each one followed by an");
+        System.out.println("  empty line.");
+        System.out.println("Usage:");
+        System.out.println("  KEEPALIVE");
+    }
 }
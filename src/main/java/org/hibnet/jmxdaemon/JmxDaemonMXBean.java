@@ -0,0 +1,107 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Management interface of the daemon itself
+ */
+public interface JmxDaemonMXBean {
+
+    /**
+     * @return the number of requests waiting for a thread to be executed
+     */
+    int getQueuedRequests();
+
+    /**
+     * @return the number of requests being executed
+     */
+    int getActiveRequests();
+
+    /**
+     * @return the number of requests currently waiting for a response of a JMX endpoint
+     */
+    int getActiveFetches();
+
+    /**
+     * @return the maximum number of requests executed concurrently
+     */
+    int getJmxThreads();
+
+    /**
+     * @return the number of attribute values found in the cache
+     */
+    long getCacheHits();
+
+    /**
+     * @return the number of attribute values not found in the cache
+     */
+    long getCacheMisses();
+
+    /**
+     * @return the number of attribute values in the cache
+     */
+    int getCacheSize();
+
+    /**
+     * @return the number of JMX endpoints the daemon keeps a connection to
+     */
+    int getConnectionCount();
+
+    /**
+     * @return the state of the connections to the JMX endpoints
+     */
+    List<ConnectionInfo> getConnections();
+
+    /**
+     * @return the number of requests received and not responded yet
+     */
+    long getInFlightRequests();
+
+    /**
+     * @return the number of requests received, per command
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * @return the number of errors responded, per error code
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * @return the number of requests to each JMX endpoint
+     */
+    Map<String, Long> getTargetRequestCounts();
+
+    /**
+     * @return the latencies in microseconds of the queuing, the connection, the remote fetch, the path resolution and
+     *         the formatting of the requests
+     */
+    List<LatencyInfo> getLatencies();
+
+    /**
+     * @return the number of counters which previous sample is kept for the RATE command
+     */
+    int getRateSeries();
+
+    /**
+     * @return <code>true</code> once enough of the JMX endpoints listed at startup are connected, or if there is none
+     */
+    boolean isReady();
+
+}
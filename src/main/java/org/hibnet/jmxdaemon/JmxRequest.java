@@ -0,0 +1,62 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.List;
+
+import org.hibnet.jmxdaemon.ResponseSequencer.Response;
+
+/**
+ * A parsed request, along with the place reserved for its response
+ */
+public class JmxRequest {
+
+    private final List<String> args;
+
+    private final Response response;
+
+    private final boolean forwarded;
+
+    public JmxRequest(List<String> args, Response response) {
+        this(args, response, false);
+    }
+
+    /**
+     * @param forwarded
+     *            <code>true</code> if the request is received from a peer daemon, which expects a framed response
+     */
+    public JmxRequest(List<String> args, Response response, boolean forwarded) {
+        this.args = args;
+        this.response = response;
+        this.forwarded = forwarded;
+    }
+
+    public List<String> getArgs() {
+        return args;
+    }
+
+    public Response getResponse() {
+        return response;
+    }
+
+    /**
+     * @return <code>true</code> if the request is forwarded by a peer daemon, it must then be served locally
+     */
+    public boolean isForwarded() {
+        return forwarded;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.oneone.OneToOneDecoder;
+
+/**
+ * Parses the request lines and reserves, in the order of reception, the place of their response in the channel's
+ * {@link ResponseSequencer}.
+ */
+public class JmxRequestDecoder extends OneToOneDecoder {
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+        if (!(msg instanceof String)) {
+            return msg;
+        }
+        ResponseSequencer sequencer = (ResponseSequencer) ctx.getAttachment();
+        List<String> args = parseRequest((String) msg);
+        if (sequencer == null) {
+            // a peer daemon opens its link with a PEER command, the responses are then framed by their length
+            sequencer = new ResponseSequencer(channel, args.size() == 1
+                    && args.get(0).equals(JmxRequestHandler.REQ_CMD_PEER));
+            ctx.setAttachment(sequencer);
+        }
+        if (args.size() == 1 && args.get(0).equals(JmxRequestHandler.REQ_CMD_KEEPALIVE)) {
+            // switch right away, so that the requests pipelined behind are not answered by closing the channel
+            sequencer.setKeepAlive(true);
+        }
+        return new JmxRequest(args, sequencer.newResponse(), sequencer.isFramed());
+    }
+
+    static List<String> parseRequest(String input) {
+        List<String> request = new ArrayList<String>();
+        int p = 0;
+        while (p < input.length()) {
+            p = skipWhiteSpace(input, p);
+            if (p >= input.length()) {
+                break;
+            }
+            if (input.charAt(p) == '\'' || input.charAt(p) == '\"') {
+                char delim = input.charAt(p);
+                StringBuilder buffer = new StringBuilder();
+                while (p < input.length()) {
+                    int end = input.indexOf(delim, p + 1);
+                    if (end == -1) {
+                        buffer.append(input.substring(p + 1));
+                        p = input.length();
+                        break;
+                    }
+                    int i = input.indexOf('\\', p + 1);
+                    if (i == -1 || i > end) {
+                        buffer.append(input.substring(p + 1, end));
+                        p = end + 1;
+                        break;
+                    }
+                    buffer.append(input.substring(p + 1, i));
+                    if (i + 1 < input.length()) {
+                        buffer.append(input.charAt(i + 1));
+                    }
+                    // the next part starts right after the escaped character
+                    p = i + 1;
+                }
+                request.add(buffer.toString());
+            } else {
+                int i = Integer.MAX_VALUE;
+                for (char c : new char[] { ' ', '\n', '\r', '\t' }) {
+                    int ic = input.indexOf(c, p);
+                    if (ic != -1) {
+                        i = Math.min(i, ic);
+                    }
+                }
+                if (i == Integer.MAX_VALUE) {
+                    request.add(input.substring(p));
+                    p = input.length();
+                } else {
+                    request.add(input.substring(p, i));
+                    p = i + 1;
+                }
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Format a parsed request back into a request line, quoting the arguments as needed
+     */
+    static String formatRequest(List<String> args) {
+        StringBuilder line = new StringBuilder();
+        for (String arg : args) {
+            if (line.length() > 0) {
+                line.append(' ');
+            }
+            boolean plain = arg.length() > 0;
+            for (int i = 0; i < arg.length() && plain; i++) {
+                char c = arg.charAt(i);
+                plain = c != ' ' && c != '\t' && c != '\r' && c != '\n' && c != '\'' && c != '"';
+            }
+            if (plain) {
+                line.append(arg);
+            } else {
+                char delim = arg.indexOf('\'') < 0 ? '\'' : '"';
+                line.append(delim);
+                for (int i = 0; i < arg.length(); i++) {
+                    char c = arg.charAt(i);
+                    if (c == delim || c == '\\') {
+                        line.append('\\');
+                    }
+                    line.append(c);
+                }
+                line.append(delim);
+            }
+        }
+        return line.toString();
+    }
+
+    private static int skipWhiteSpace(String input, int p) {
+        while (p < input.length()
+                && (input.charAt(p) == ' ' || input.charAt(p) == '\n' || input.charAt(p) == '\r' || input.charAt(p) == '\t')) {
+            p++;
+        }
+        return p;
+    }
+}
@@ -16,23 +16,53 @@
 package org.hibnet.jmxdaemon;
 
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.MalformedObjectNameException;
+import javax.management.NotificationFilterSupport;
+import javax.management.ObjectName;
+
+import org.hibnet.jmxdaemon.JmxConnectionHolder.NotificationRegistration;
+import org.hibnet.jmxdaemon.ResponseSequencer.Response;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelEvent;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
-import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.DownstreamMessageEvent;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.handler.codec.base64.Base64;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +72,27 @@ public class JmxRequestHandler extends SimpleChannelHandler {
 
     static final String REQ_CMD_CLOSE = "CLOSE";
 
+    static final String REQ_CMD_MGET = "MGET";
+
+    static final String REQ_CMD_GETJSON = "GETJSON";
+
+    static final String REQ_CMD_KEEPALIVE = "KEEPALIVE";
+
+    static final String REQ_CMD_SUBSCRIBE = "SUBSCRIBE";
+
+    static final String REQ_CMD_STATS = "STATS";
+
+    static final String REQ_CMD_RATE = "RATE";
+
+    static final String REQ_CMD_INVOKE = "INVOKE";
+
+    static final String REQ_CMD_PEER = "PEER";
+
+    /**
+     * A GET of the binary protocol forwarded by a peer, answered by the binary response base64 encoded
+     */
+    static final String REQ_CMD_BINARY_GET = DaemonStats.CMD_BINARY_GET;
+
     static final String RESP_OK = "OK";
 
     static final String RESP_ERR = "ERR";
@@ -62,240 +113,1327 @@ public class JmxRequestHandler extends SimpleChannelHandler {
 
     static final String RESP_ERR_IO = "IO_ERROR";
 
+    static final String RESP_ERR_CIRCUIT_OPEN = "CIRCUIT_OPEN";
+
+    static final String RESP_ERR_TIMEOUT = "TIMEOUT";
+
+    static final String RESP_ERR_SUBSCRIBE = "SUBSCRIBE_FAILED";
+
+    static final String RESP_ERR_SUBSCRIBED = "ALREADY_SUBSCRIBED";
+
+    static final String RESP_ERR_NOT_NUMBER = "NOT_A_NUMBER";
+
+    static final String RESP_ERR_TARGET_OVERLOADED = "TARGET_OVERLOADED";
+
+    static final String RESP_ERR_OVERLOADED = "DAEMON_OVERLOADED";
+
+    static final String RESP_ERR_NOT_ALLOWED = "NOT_ALLOWED";
+
+    static final String RESP_ERR_INVOKE = "INVOKE_FAILED";
+
+    static final String RESP_ERR_PEER = "PEER_UNAVAILABLE";
+
+    /**
+     * The commands on a single JMX endpoint, forwarded to the peer daemon owning it
+     */
+    private static final List<String> FORWARDED_COMMANDS = Arrays.asList(REQ_CMD_GET, REQ_CMD_GETJSON, REQ_CMD_RATE,
+            REQ_CMD_INVOKE, REQ_CMD_CLOSE);
+
+    /**
+     * The attribute fetched along the counters of a RATE command, to detect the restarts of the endpoint
+     */
+    private static final String RUNTIME_BEAN = "java.lang:type=Runtime";
+
+    private static final String START_TIME = "StartTime";
+
     private static final Logger log = LoggerFactory.getLogger(JmxRequestHandler.class);
 
-    private Map<String, JmxConnectionHolder> connectionCache = new ConcurrentHashMap<String, JmxConnectionHolder>();
+    /**
+     * Above this capacity, a response buffer is not kept for the next requests
+     */
+    private static final int MAX_REUSED_BUFFER = 64 * 1024;
 
-    private JmxConnectionHolder getConnection(StringBuilder response, String url) {
-        try {
-            return getConnection(url);
-        } catch (Exception e) {
-            response.append(RESP_ERR);
-            response.append(RESP_SEP);
-            response.append(RESP_ERR_CONN);
-            response.append(RESP_SEP);
-            writeExceptionMessage(response, e);
+    /**
+     * The buffer the text responses are rendered into, reused by the next requests handled by the thread
+     */
+    private static final ThreadLocal<StringBuilder> responseBuffers = new ThreadLocal<StringBuilder>();
+
+    private final ChannelGroup channels;
+
+    private final JmxConnectionCache connectionCache;
+
+    private final AtomicInteger activeFetches = new AtomicInteger();
+
+    private final Timer timer;
+
+    private final ExecutorService multiGetPool;
+
+    private final long multiGetTimeout;
+
+    private final DaemonStats stats;
+
+    private final Map<Channel, Subscription> subscriptions = new ConcurrentHashMap<Channel, Subscription>();
+
+    private int subscriptionBufferSize = 1000;
+
+    private OpenMetricsExporter exporter;
+
+    private RateStore rateStore = new RateStore(100000, 900000);
+
+    private TargetRegistry targetRegistry;
+
+    private long maxQueueWait = 0;
+
+    private InvokeAllowlist invokeAllowlist = InvokeAllowlist.none();
+
+    private PeerGroup peerGroup;
+
+    private long peerTimeout;
+
+    private final AtomicLong forwarded = new AtomicLong();
+
+    /**
+     * @param multiGetPool
+     *            the threads fetching concurrently the endpoints of the MGET commands
+     * @param multiGetTimeout
+     *            the time in milliseconds a MGET command waits for the responses of the endpoints
+     * @param stats
+     *            where to record the activity of the daemon, shared with the connection cache
+     */
+    public JmxRequestHandler(ChannelGroup channels, JmxConnectionCache connectionCache, Timer timer,
+            ExecutorService multiGetPool, long multiGetTimeout, DaemonStats stats) {
+        this.channels = channels;
+        this.stats = stats;
+        this.connectionCache = connectionCache;
+        this.timer = timer;
+        this.multiGetPool = multiGetPool;
+        this.multiGetTimeout = multiGetTimeout;
+    }
+
+    /**
+     * @param subscriptionBufferSize
+     *            the maximum number of notifications buffered per subscriber not reading fast enough
+     */
+    public void setSubscriptionBufferSize(int subscriptionBufferSize) {
+        this.subscriptionBufferSize = subscriptionBufferSize;
+    }
+
+    /**
+     * @param exporter
+     *            the modules to serve on <code>/metrics</code>
+     */
+    public void setExporter(OpenMetricsExporter exporter) {
+        this.exporter = exporter;
+    }
+
+    /**
+     * @param rateStore
+     *            the previous samples of the counters of the RATE commands
+     */
+    public void setRateStore(RateStore rateStore) {
+        this.rateStore = rateStore;
+    }
+
+    /**
+     * @param maxQueueWait
+     *            the maximum time in milliseconds a request waits to be executed, the requests waiting longer being
+     *            rejected without requesting any endpoint, 0 for no limit
+     */
+    public void setMaxQueueWait(long maxQueueWait) {
+        this.maxQueueWait = TimeUnit.MILLISECONDS.toNanos(maxQueueWait);
+    }
+
+    /**
+     * @return why the request is rejected, <code>null</code> if it is admitted
+     */
+    private String checkAdmission(Response response) {
+        long waited = System.nanoTime() - response.getReceivedAt();
+        if (maxQueueWait <= 0 || waited <= maxQueueWait) {
             return null;
         }
+        return "The request waited " + TimeUnit.NANOSECONDS.toMillis(waited) + "ms to be executed, more than "
+                + TimeUnit.NANOSECONDS.toMillis(maxQueueWait) + "ms";
     }
 
-    private JmxConnectionHolder getConnection(String url) throws IOException {
-        JmxConnectionHolder connection = connectionCache.get(url);
-        if (connection == null) {
-            synchronized (connectionCache) {
-                connection = connectionCache.get(url);
-                if (connection == null) {
-                    connection = new JmxConnectionHolder(url);
-                    connectionCache.put(url, connection);
-                }
-            }
+    /**
+     * @param targetRegistry
+     *            the endpoints connected at startup, which readiness is reported, <code>null</code> if none
+     */
+    public void setTargetRegistry(TargetRegistry targetRegistry) {
+        this.targetRegistry = targetRegistry;
+    }
+
+    /**
+     * @param invokeAllowlist
+     *            the operations the INVOKE commands are allowed to call
+     */
+    public void setInvokeAllowlist(InvokeAllowlist invokeAllowlist) {
+        this.invokeAllowlist = invokeAllowlist;
+    }
+
+    /**
+     * @param peerGroup
+     *            the daemons sharing the JMX endpoints, <code>null</code> if this daemon serves every endpoint
+     * @param peerTimeout
+     *            the time in milliseconds a forwarded request waits for the response of the peer
+     */
+    public void setPeerGroup(PeerGroup peerGroup, long peerTimeout) {
+        this.peerGroup = peerGroup;
+        this.peerTimeout = peerTimeout;
+    }
+
+    /**
+     * @return the peer owning the JMX endpoint, <code>null</code> if it is served by this daemon
+     */
+    private String getRemoteOwner(String url) {
+        if (peerGroup == null || peerGroup.isLocal(url)) {
+            return null;
+        }
+        return peerGroup.getOwner(url);
+    }
+
+    boolean isReady() {
+        return targetRegistry == null || targetRegistry.isReady();
+    }
+
+    int getRateSeries() {
+        return rateStore.size();
+    }
+
+    private JmxConnectionHolder getConnection(String url) throws JmxRequestException {
+        stats.recordTarget(url);
+        try {
+            JmxConnectionHolder connection = connectionCache.get(url);
+            connection.connect();
+            return connection;
+        } catch (CircuitOpenException e) {
+            throw new JmxRequestException(RESP_ERR_CIRCUIT_OPEN, exceptionMessage(e));
+        } catch (Exception e) {
+            throw new JmxRequestException(RESP_ERR_CONN, exceptionMessage(e));
         }
-        return connection;
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-        List<String> request = parseRequest((String) e.getMessage());
-        StringBuilder response = new StringBuilder();
-        if (request.size() == 0 || (request.size() == 1 && request.get(0).length() == 0)) {
-            response.append(RESP_ERR);
-            response.append(RESP_SEP);
-            response.append(RESP_ERR_NO_CMD);
+        stats.enterRequest();
+        boolean async = false;
+        try {
+            if (e.getMessage() instanceof BinaryRequest) {
+                async = handleBinary((BinaryRequest) e.getMessage());
+            } else if (e.getMessage() instanceof HttpScrapeRequest) {
+                handleHttp((HttpScrapeRequest) e.getMessage());
+            } else {
+                async = handleText((JmxRequest) e.getMessage(), e.getChannel());
+            }
+        } finally {
+            if (!async) {
+                stats.exitRequest();
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    /**
+     * @return <code>true</code> if the request is still in flight, its response being streamed by other threads
+     */
+    private boolean handleText(JmxRequest jmxRequest, Channel channel) {
+        stats.getQueueWait().recordSince(jmxRequest.getResponse().getReceivedAt());
+        List<String> request = jmxRequest.getArgs();
+        StringBuilder response = responseBuffer();
+        String rejection = checkAdmission(jmxRequest.getResponse());
+        String owner = null;
+        if (rejection == null && !jmxRequest.isForwarded() && request.size() > 1
+                && FORWARDED_COMMANDS.contains(request.get(0))) {
+            owner = getRemoteOwner(request.get(1));
+        }
+        if (owner != null) {
+            stats.recordCommand(request.get(0));
+            // the response is written once the peer responds
+            forward(owner, request, jmxRequest.getResponse());
+            return true;
+        }
+        if (rejection != null) {
+            appendError(response, RESP_ERR_OVERLOADED, rejection);
+        } else if (request.size() == 0 || (request.size() == 1 && request.get(0).length() == 0)) {
+            stats.recordCommand(null);
+            appendError(response, RESP_ERR_NO_CMD, null);
+        } else if (jmxRequest.isForwarded() && !FORWARDED_COMMANDS.contains(request.get(0))
+                && !request.get(0).equals(REQ_CMD_PEER) && !request.get(0).equals(REQ_CMD_STATS)
+                && !request.get(0).equals(REQ_CMD_BINARY_GET)) {
+            stats.recordCommand(request.get(0));
+            // the streamed responses could not be framed
+            appendError(response, RESP_ERR_UNKNOWN_CMD, request.get(0) + " is not available on a peer link");
         } else if (request.get(0).equals(REQ_CMD_GET)) {
+            stats.recordCommand(REQ_CMD_GET);
             if (request.size() < 5 || (request.size() - 2) % 2 != 1) {
-                response.append(RESP_ERR);
-                response.append(RESP_SEP);
-                response.append(RESP_ERR_ARGS_LEN);
-                response.append(RESP_SEP);
-                response.append("Expecting an even number of arguments and at least 4 but there are "
-                        + (request.size() - 1));
+                appendError(response, RESP_ERR_ARGS_LEN,
+                        "Expecting an even number of arguments and at least 4 but there are " + (request.size() - 1));
             } else {
-                String url = request.get(1);
-                JmxConnectionHolder connection = getConnection(response, url);
-                if (connection != null) {
-                    String format = request.get(2);
-                    ArrayList<Object> values = new ArrayList<Object>();
-                    for (int i = 3; i < request.size(); i += 2) {
-                        Object value;
-                        try {
-                            value = connection.getAttribute(request.get(i), request.get(i + 1));
-                            if (value instanceof Map) {
-                                for (Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
-                                    values.add(entry.getKey());
-                                    values.add(entry.getValue());
-                                }
-                            } else if (value instanceof List) {
-                                for (Object v : (List<Object>) value) {
-                                    values.add(v);
-                                }
-                            } else {
-                                values.add(value);
-                            }
-                        } catch (IOException ex) {
-                            log.warn("IO error on connection {}", url, ex);
-                            connection.close();
-                            values = null;
-                            response.append(RESP_ERR);
-                            response.append(RESP_SEP);
-                            response.append(RESP_ERR_IO);
-                            response.append(RESP_SEP);
-                            writeExceptionMessage(response, ex);
-                            break;
-                        } catch (Exception ex) {
-                            log.warn("Error on {} for bean '{}' getting attribute '{}': {} ({})", url, request.get(i),
-                                    request.get(i + 1), ex.getMessage(), ex.getClass().getSimpleName(), ex);
-                            values = null;
-                            response.append(RESP_ERR);
-                            response.append(RESP_SEP);
-                            response.append(RESP_ERR_GET_ATT);
-                            response.append(RESP_SEP);
-                            response.append("Failed to get on '" + url + "' bean '" + request.get(i) + "' attribute '"
-                                    + request.get(i + 1) + "':  ");
-                            writeExceptionMessage(response, ex);
-                            break;
-                        }
-                    }
-                    if (values != null) {
-                        try {
-                            String output = String.format(Locale.ENGLISH, format, values.toArray());
-                            response.append(RESP_OK);
-                            response.append(RESP_SEP);
-                            response.append(output);
-                        } catch (Exception ex) {
-                            log.warn("Incorrect format '{}'", format, ex);
-                            response.append(RESP_ERR);
-                            response.append(RESP_SEP);
-                            response.append(RESP_ERR_FORMAT);
-                            response.append(RESP_SEP);
-                            writeExceptionMessage(response, ex);
-                        }
-                    }
+                List<String> beanNames = new ArrayList<String>();
+                List<String> attributePaths = new ArrayList<String>();
+                for (int i = 3; i < request.size(); i += 2) {
+                    beanNames.add(request.get(i));
+                    attributePaths.add(request.get(i + 1));
+                }
+                get(request.get(1), request.get(2), beanNames, attributePaths, response);
+            }
+        } else if (request.get(0).equals(REQ_CMD_GETJSON)) {
+            stats.recordCommand(REQ_CMD_GETJSON);
+            if (request.size() < 4 || request.size() % 2 != 0) {
+                appendError(response, RESP_ERR_ARGS_LEN,
+                        "Expecting an odd number of arguments and at least 3 but there are " + (request.size() - 1));
+            } else {
+                List<String> beanNames = new ArrayList<String>();
+                List<String> attributePaths = new ArrayList<String>();
+                for (int i = 2; i < request.size(); i += 2) {
+                    beanNames.add(request.get(i));
+                    attributePaths.add(request.get(i + 1));
+                }
+                getJson(request.get(1), beanNames, attributePaths, response);
+            }
+        } else if (request.get(0).equals(REQ_CMD_RATE)) {
+            stats.recordCommand(REQ_CMD_RATE);
+            if (request.size() < 5 || (request.size() - 2) % 2 != 1) {
+                appendError(response, RESP_ERR_ARGS_LEN,
+                        "Expecting an even number of arguments and at least 4 but there are " + (request.size() - 1));
+            } else {
+                List<String> beanNames = new ArrayList<String>();
+                List<String> attributePaths = new ArrayList<String>();
+                for (int i = 3; i < request.size(); i += 2) {
+                    beanNames.add(request.get(i));
+                    attributePaths.add(request.get(i + 1));
+                }
+                rate(request.get(1), request.get(2), beanNames, attributePaths, response);
+            }
+        } else if (request.get(0).equals(REQ_CMD_INVOKE)) {
+            stats.recordCommand(REQ_CMD_INVOKE);
+            // with an odd number of arguments, the third one is the number of operations to call concurrently
+            int first = request.size() % 2 == 0 ? 4 : 3;
+            int concurrency = 1;
+            if (request.size() < first + 2) {
+                appendError(response, RESP_ERR_ARGS_LEN, "Expecting at least 4 arguments, or 5 with a concurrency, but"
+                        + " there are " + (request.size() - 1));
+            } else if (first == 4 && (concurrency = parseConcurrency(request.get(3))) < 1) {
+                appendError(response, RESP_ERR_ARGS_LEN, "Expecting a positive concurrency but there was "
+                        + request.get(3));
+            } else {
+                List<String> beanNames = new ArrayList<String>();
+                List<String> operations = new ArrayList<String>();
+                for (int i = first; i < request.size(); i += 2) {
+                    beanNames.add(request.get(i));
+                    operations.add(request.get(i + 1));
                 }
+                invoke(request.get(1), request.get(2), concurrency, beanNames, operations, response);
+            }
+        } else if (request.get(0).equals(REQ_CMD_MGET)) {
+            stats.recordCommand(REQ_CMD_MGET);
+            if (request.size() < 5 || (request.size() - 2) % 2 != 1) {
+                appendError(response, RESP_ERR_ARGS_LEN,
+                        "Expecting an even number of arguments and at least 4 but there are " + (request.size() - 1));
+            } else {
+                List<String> beanNames = new ArrayList<String>();
+                List<String> attributePaths = new ArrayList<String>();
+                for (int i = 3; i < request.size(); i += 2) {
+                    beanNames.add(request.get(i));
+                    attributePaths.add(request.get(i + 1));
+                }
+                List<String> urls = JmxRequestDecoder.parseRequest(request.get(1));
+                // the response is streamed by the fetching threads
+                multiGet(urls, request.get(2), beanNames, attributePaths, jmxRequest.getResponse());
+                return true;
+            }
+        } else if (request.get(0).equals(REQ_CMD_SUBSCRIBE)) {
+            stats.recordCommand(REQ_CMD_SUBSCRIBE);
+            if (request.size() != 3 && request.size() != 4) {
+                appendError(response, RESP_ERR_ARGS_LEN, "Expecting 2 or 3 arguments but there was "
+                        + (request.size() - 1));
+            } else {
+                String typePrefix = request.size() == 4 ? request.get(3) : null;
+                // the response is streamed by the notifications
+                subscribe(channel, request.get(1), request.get(2), typePrefix, jmxRequest.getResponse());
+                return false;
             }
         } else if (request.get(0).equals(REQ_CMD_CLOSE)) {
+            stats.recordCommand(REQ_CMD_CLOSE);
             if (request.size() != 2) {
-                response.append(RESP_ERR);
-                response.append(RESP_SEP);
-                response.append(RESP_ERR_ARGS_LEN);
-                response.append(RESP_SEP);
-                response.append("Expecting 1 argument but there was " + (request.size() - 1));
+                appendError(response, RESP_ERR_ARGS_LEN, "Expecting 1 argument but there was " + (request.size() - 1));
             } else {
                 String url = request.get(1);
-                JmxConnectionHolder connection = getConnection(response, url);
+                JmxConnectionHolder connection = connectionCache.getIfPresent(url);
                 if (connection != null) {
                     connection.close();
-                    response.append(RESP_OK);
                 }
+                response.append(RESP_OK);
+            }
+        } else if (request.get(0).equals(REQ_CMD_KEEPALIVE)) {
+            stats.recordCommand(REQ_CMD_KEEPALIVE);
+            // the switch of mode has already been done by the decoder
+            if (request.size() != 1) {
+                appendError(response, RESP_ERR_ARGS_LEN, "Expecting no argument but there was " + (request.size() - 1));
+            } else {
+                response.append(RESP_OK);
+            }
+        } else if (request.get(0).equals(REQ_CMD_PEER)) {
+            stats.recordCommand(REQ_CMD_PEER);
+            // the switch to the framed mode has already been done by the decoder
+            if (request.size() != 1 || !jmxRequest.isForwarded()) {
+                appendError(response, RESP_ERR_ARGS_LEN, "Expecting no argument, as the first command of the"
+                        + " connection, but there was " + (request.size() - 1));
+            } else {
+                response.append(RESP_OK);
+            }
+        } else if (request.get(0).equals(REQ_CMD_BINARY_GET) && jmxRequest.isForwarded()) {
+            stats.recordCommand(REQ_CMD_BINARY_GET);
+            if (request.size() % 2 != 0) {
+                appendError(response, RESP_ERR_ARGS_LEN, "Expecting an odd number of arguments but there are "
+                        + (request.size() - 1));
+            } else {
+                List<String> beanNames = new ArrayList<String>();
+                List<String> attributePaths = new ArrayList<String>();
+                for (int i = 2; i < request.size(); i += 2) {
+                    beanNames.add(request.get(i));
+                    attributePaths.add(request.get(i + 1));
+                }
+                ChannelBuffer result = ChannelBuffers.dynamicBuffer(256);
+                writeBinaryGet(result, request.get(1), beanNames, attributePaths);
+                response.append(RESP_OK);
+                response.append(RESP_SEP);
+                response.append(Base64.encode(result, false).toString(CharsetUtil.US_ASCII));
+            }
+        } else if (request.get(0).equals(REQ_CMD_STATS)) {
+            stats.recordCommand(REQ_CMD_STATS);
+            if (request.size() != 1) {
+                appendError(response, RESP_ERR_ARGS_LEN, "Expecting no argument but there was " + (request.size() - 1));
+            } else {
+                response.append(RESP_OK);
+                response.append(RESP_SEP);
+                response.append("connections ").append(connectionCache.size()).append(RESP_SEP);
+                response.append("rate_series ").append(rateStore.size()).append(RESP_SEP);
+                response.append("ready ").append(isReady()).append(RESP_SEP);
+                if (targetRegistry != null) {
+                    response.append("targets ").append(targetRegistry.getUrls().size()).append(RESP_SEP);
+                    response.append("targets_connected ").append(targetRegistry.getConnected()).append(RESP_SEP);
+                }
+                if (peerGroup != null) {
+                    response.append("peers ").append(peerGroup.getPeers().size()).append(RESP_SEP);
+                    response.append("forwarded ").append(forwarded.get()).append(RESP_SEP);
+                }
+                stats.format(response);
+                // the last line is ended below
+                response.setLength(response.length() - RESP_SEP.length());
             }
         } else {
-            response.append(RESP_ERR);
-            response.append(RESP_SEP);
-            response.append(RESP_ERR_UNKNOWN_CMD);
-            response.append(RESP_SEP);
-            response.append(request.get(0));
+            stats.recordCommand(request.get(0));
+            appendError(response, RESP_ERR_UNKNOWN_CMD, request.get(0));
         }
         response.append(RESP_SEP);
 
-        // send the response back
-        Channel channel = e.getChannel();
-        ChannelFuture channelFuture = Channels.future(e.getChannel());
-        ChannelEvent responseEvent = new DownstreamMessageEvent(channel, channelFuture, response.toString(),
-                channel.getRemoteAddress());
-        ctx.sendDownstream(responseEvent);
-        channelFuture.addListener(new ChannelFutureListener() {
+        // send the response back, in the order of the requests
+        if (jmxRequest.isForwarded()) {
+            jmxRequest.getResponse().write(encodeFrame(response));
+        } else {
+            jmxRequest.getResponse().write(encode(response));
+        }
+        jmxRequest.getResponse().complete();
+        return false;
+    }
+
+    private static StringBuilder responseBuffer() {
+        StringBuilder buffer = responseBuffers.get();
+        if (buffer == null || buffer.capacity() > MAX_REUSED_BUFFER) {
+            buffer = new StringBuilder(256);
+            responseBuffers.set(buffer);
+        } else {
+            buffer.setLength(0);
+        }
+        return buffer;
+    }
+
+    /**
+     * Encode a text response straight into a buffer of its exact size, the ASCII responses without any intermediate
+     * copy, the others as the {@link org.jboss.netty.handler.codec.string.StringEncoder} of the pipeline would. The
+     * buffer is not reused, it is owned by the channel until written.
+     */
+    static ChannelBuffer encode(CharSequence text) {
+        int length = text.length();
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                return ChannelBuffers.copiedBuffer(text, Charset.defaultCharset());
+            }
+            bytes[i] = (byte) c;
+        }
+        return ChannelBuffers.wrappedBuffer(bytes);
+    }
+
+    /**
+     * Encode a response to a peer daemon, prefixed by its length
+     */
+    static ChannelBuffer encodeFrame(CharSequence text) {
+        ChannelBuffer encoded = encode(text);
+        ChannelBuffer frame = ChannelBuffers.buffer(4 + encoded.readableBytes());
+        frame.writeInt(encoded.readableBytes());
+        frame.writeBytes(encoded);
+        return frame;
+    }
+
+    /**
+     * Forward a request to the peer daemon owning its JMX endpoint, writing back its response as is
+     */
+    private void forward(String owner, List<String> request, final Response response) {
+        forward(owner, request, response, new ForwardedResponse() {
             @Override
-            public void operationComplete(ChannelFuture future) throws Exception {
-                future.getChannel().close();
+            public void write(String text) {
+                response.write(text);
+            }
+
+            @Override
+            public void writeError(String code, String message) {
+                response.write(RESP_ERR + RESP_SEP + code + RESP_SEP + message + RESP_SEP);
             }
         });
+    }
 
-        super.messageReceived(ctx, e);
+    /**
+     * Forward a GET of the binary protocol to the peer daemon owning its JMX endpoint. The peer link being a text
+     * one, the binary response is carried base64 encoded.
+     */
+    private void forwardBinary(String owner, final BinaryRequest request) {
+        List<String> line = new ArrayList<String>(2 + 2 * request.getBeanNames().size());
+        line.add(REQ_CMD_BINARY_GET);
+        line.add(request.getUrl());
+        for (int i = 0; i < request.getBeanNames().size(); i++) {
+            line.add(request.getBeanNames().get(i));
+            line.add(request.getAttributePaths().get(i));
+        }
+        final Response response = request.getResponse();
+        forward(owner, line, response, new ForwardedResponse() {
+            @Override
+            public void write(String text) {
+                ChannelBuffer frame = newBinaryFrame(request.getId());
+                if (text.startsWith(RESP_OK + RESP_SEP)) {
+                    String encoded = text.substring(RESP_OK.length() + RESP_SEP.length()).trim();
+                    frame.writeBytes(Base64.decode(ChannelBuffers.copiedBuffer(encoded, CharsetUtil.US_ASCII)));
+                } else {
+                    // an error of the text protocol: ERR, the code, and the message if any
+                    String[] lines = text.split(RESP_SEP, 3);
+                    writeBinaryError(frame, lines.length > 1 ? lines[1] : RESP_ERR_PEER,
+                            lines.length > 2 ? lines[2].trim() : "");
+                }
+                response.write(completeBinaryFrame(frame));
+            }
+
+            @Override
+            public void writeError(String code, String message) {
+                ChannelBuffer frame = newBinaryFrame(request.getId());
+                writeBinaryError(frame, code, message);
+                response.write(completeBinaryFrame(frame));
+            }
+        });
     }
 
-    private List<String> parseRequest(String input) {
-        List<String> request = new ArrayList<String>();
-        int p = 0;
-        while (p < input.length()) {
-            p = skipWhiteSpace(input, p);
-            if (p >= input.length()) {
-                break;
-            }
-            if (input.charAt(p) == '\'' || input.charAt(p) == '\"') {
-                char delim = input.charAt(p);
-                StringBuilder buffer = new StringBuilder();
-                while (p < input.length()) {
-                    int end = input.indexOf(delim, p + 1);
-                    if (end == -1) {
-                        buffer.append(input.substring(p + 1));
-                        p = input.length();
-                        break;
+    /**
+     * How the response of a peer is written back to the client
+     */
+    private interface ForwardedResponse {
+
+        void write(String text);
+
+        void writeError(String code, String message);
+    }
+
+    private void forward(final String owner, List<String> request, final Response response,
+            final ForwardedResponse writer) {
+        forwarded.incrementAndGet();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final Timeout timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                if (done.compareAndSet(false, true)) {
+                    stats.recordError(RESP_ERR_TIMEOUT);
+                    writer.writeError(RESP_ERR_TIMEOUT, "No response from the peer " + owner + " within "
+                            + peerTimeout + "ms");
+                    response.complete();
+                    stats.exitRequest();
+                }
+            }
+        }, peerTimeout, TimeUnit.MILLISECONDS);
+        peerGroup.getLink(owner).send(JmxRequestDecoder.formatRequest(request), new PeerLink.Callback() {
+            @Override
+            public void onResponse(String text) {
+                if (done.compareAndSet(false, true)) {
+                    timeout.cancel();
+                    writer.write(text);
+                    response.complete();
+                    stats.exitRequest();
+                }
+            }
+
+            @Override
+            public void onFailure(String message) {
+                if (done.compareAndSet(false, true)) {
+                    timeout.cancel();
+                    stats.recordError(RESP_ERR_PEER);
+                    writer.writeError(RESP_ERR_PEER, message);
+                    response.complete();
+                    stats.exitRequest();
+                }
+            }
+        });
+    }
+
+    /**
+     * Append an error response, and count it
+     * 
+     * @param message
+     *            the detail of the error, <code>null</code> if none
+     */
+    private void appendError(StringBuilder response, String code, String message) {
+        stats.recordError(code);
+        response.append(RESP_ERR);
+        response.append(RESP_SEP);
+        response.append(code);
+        if (message != null) {
+            response.append(RESP_SEP);
+            response.append(message);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the request is still in flight, forwarded to the peer owning its endpoint
+     */
+    private boolean handleBinary(BinaryRequest request) {
+        stats.getQueueWait().recordSince(request.getResponse().getReceivedAt());
+        ChannelBuffer frame = newBinaryFrame(request.getId());
+        String rejection = checkAdmission(request.getResponse());
+        if (rejection != null) {
+            stats.recordError(RESP_ERR_OVERLOADED);
+            writeBinaryError(frame, RESP_ERR_OVERLOADED, rejection);
+        } else if (request.getCommand() == BinaryProtocol.CMD_GET) {
+            stats.recordCommand(DaemonStats.CMD_BINARY_GET);
+            String owner = getRemoteOwner(request.getUrl());
+            if (owner != null) {
+                // the response is written once the peer responds
+                forwardBinary(owner, request);
+                return true;
+            }
+            writeBinaryGet(frame, request.getUrl(), request.getBeanNames(), request.getAttributePaths());
+        } else if (request.getCommand() == BinaryProtocol.CMD_CLOSE) {
+            stats.recordCommand(DaemonStats.CMD_BINARY_CLOSE);
+            JmxConnectionHolder connection = connectionCache.getIfPresent(request.getUrl());
+            if (connection != null) {
+                connection.close();
+            }
+            frame.writeByte(BinaryProtocol.STATUS_OK);
+            frame.writeShort(0);
+        } else {
+            stats.recordCommand(null);
+            stats.recordError(RESP_ERR_UNKNOWN_CMD);
+            writeBinaryError(frame, RESP_ERR_UNKNOWN_CMD, "Unknown command " + request.getCommand());
+        }
+        request.getResponse().write(completeBinaryFrame(frame));
+        request.getResponse().complete();
+        return false;
+    }
+
+    /**
+     * Write the status and the values of a GET of the binary protocol, or its error
+     */
+    private void writeBinaryGet(ChannelBuffer out, String url, List<String> beanNames, List<String> attributePaths) {
+        int start = out.writerIndex();
+        try {
+            List<Object> values = fetch(url, beanNames, attributePaths);
+            long formatStart = System.nanoTime();
+            out.writeByte(BinaryProtocol.STATUS_OK);
+            out.writeShort(values.size());
+            for (Object value : values) {
+                BinaryProtocol.writeValue(out, value);
+            }
+            stats.getFormatting().recordSince(formatStart);
+        } catch (JmxRequestException ex) {
+            stats.recordError(ex.getCode());
+            out.writerIndex(start);
+            writeBinaryError(out, ex.getCode(), ex.getMessage());
+        }
+    }
+
+    private static void writeBinaryError(ChannelBuffer out, String code, String message) {
+        out.writeByte(BinaryProtocol.STATUS_ERR);
+        BinaryProtocol.writeString(out, code);
+        BinaryProtocol.writeString(out, message);
+    }
+
+    /**
+     * @return a response frame of the binary protocol, its length left to be set by
+     *         {@link #completeBinaryFrame(ChannelBuffer)}
+     */
+    private static ChannelBuffer newBinaryFrame(int id) {
+        ChannelBuffer frame = ChannelBuffers.dynamicBuffer(256);
+        frame.writeInt(0);
+        frame.writeInt(id);
+        return frame;
+    }
+
+    private static ChannelBuffer completeBinaryFrame(ChannelBuffer frame) {
+        frame.setInt(0, frame.writerIndex() - 4);
+        return frame;
+    }
+
+    private void handleHttp(HttpScrapeRequest scrape) {
+        stats.getQueueWait().recordSince(scrape.getResponse().getReceivedAt());
+        stats.recordCommand(DaemonStats.CMD_HTTP);
+        HttpRequest request = scrape.getRequest();
+        QueryStringDecoder query = new QueryStringDecoder(request.getUri());
+        HttpResponseStatus status;
+        String contentType = OpenMetricsExporter.TEXT_CONTENT_TYPE;
+        ChannelBuffer body;
+        String location = null;
+        String rejection = checkAdmission(scrape.getResponse());
+        if (rejection != null) {
+            stats.recordError(RESP_ERR_OVERLOADED);
+            status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+            body = OpenMetricsExporter.textBody(RESP_ERR_OVERLOADED + " " + rejection);
+        } else if (!request.getMethod().equals(HttpMethod.GET)) {
+            status = HttpResponseStatus.METHOD_NOT_ALLOWED;
+            body = OpenMetricsExporter.textBody("Only GET is supported");
+        } else if (query.getPath().equals("/ready")) {
+            // for the readiness probes of the orchestrators
+            status = isReady() ? HttpResponseStatus.OK : HttpResponseStatus.SERVICE_UNAVAILABLE;
+            body = OpenMetricsExporter.textBody(isReady() ? "ready" : "not ready");
+        } else if (!query.getPath().equals("/metrics")) {
+            status = HttpResponseStatus.NOT_FOUND;
+            body = OpenMetricsExporter.textBody("Unknown path " + query.getPath());
+        } else {
+            List<String> targets = query.getParameters().get("target");
+            List<String> moduleNames = query.getParameters().get("module");
+            ScrapeModule module = null;
+            if (exporter != null && moduleNames != null) {
+                module = exporter.getModule(moduleNames.get(0));
+            }
+            if (targets == null || moduleNames == null) {
+                status = HttpResponseStatus.BAD_REQUEST;
+                body = OpenMetricsExporter.textBody("Expecting the parameters target and module");
+            } else if (module == null) {
+                status = HttpResponseStatus.NOT_FOUND;
+                body = OpenMetricsExporter.textBody("Unknown module " + moduleNames.get(0));
+            } else if (getRemoteOwner(targets.get(0)) != null) {
+                // the scrapers follow the redirections, to the daemon owning the endpoint
+                location = "http://" + getRemoteOwner(targets.get(0)) + request.getUri();
+                forwarded.incrementAndGet();
+                status = HttpResponseStatus.TEMPORARY_REDIRECT;
+                body = OpenMetricsExporter.textBody("The endpoint is served by " + location);
+            } else {
+                String url = targets.get(0);
+                try {
+                    body = exporter.scrape(getConnection(url), module);
+                    status = HttpResponseStatus.OK;
+                    contentType = OpenMetricsExporter.CONTENT_TYPE;
+                } catch (JmxRequestException ex) {
+                    stats.recordError(ex.getCode());
+                    status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+                    body = OpenMetricsExporter.textBody(ex.getCode() + " " + ex.getMessage());
+                } catch (ConcurrencyLimitException ex) {
+                    stats.recordError(RESP_ERR_TARGET_OVERLOADED);
+                    status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+                    body = OpenMetricsExporter.textBody(RESP_ERR_TARGET_OVERLOADED + " " + exceptionMessage(ex));
+                } catch (CircuitOpenException ex) {
+                    stats.recordError(RESP_ERR_CIRCUIT_OPEN);
+                    status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+                    body = OpenMetricsExporter.textBody(RESP_ERR_CIRCUIT_OPEN + " " + exceptionMessage(ex));
+                } catch (FetchTimeoutException ex) {
+                    stats.recordError(RESP_ERR_TIMEOUT);
+                    status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+                    body = OpenMetricsExporter.textBody(RESP_ERR_TIMEOUT + " " + exceptionMessage(ex));
+                } catch (IOException ex) {
+                    // the broken connection has already been dropped by the holder, the next scrape will reconnect
+                    log.warn("IO error on connection {}", url, ex);
+                    stats.recordError(RESP_ERR_IO);
+                    status = HttpResponseStatus.SERVICE_UNAVAILABLE;
+                    body = OpenMetricsExporter.textBody(RESP_ERR_IO + " " + exceptionMessage(ex));
+                }
+            }
+        }
+        Response response = scrape.getResponse();
+        response.write(OpenMetricsExporter.httpResponse(status, contentType, location, body,
+                HttpHeaders.isKeepAlive(request)));
+        response.complete();
+    }
+
+    /**
+     * Get some attributes of a JMX endpoint and format them into the response
+     */
+    private void get(String url, String format, List<String> beanNames, List<String> attributePaths,
+            StringBuilder response) {
+        List<Object> values;
+        try {
+            values = fetch(url, beanNames, attributePaths);
+        } catch (JmxRequestException ex) {
+            appendError(response, ex.getCode(), ex.getMessage());
+            return;
+        }
+        render(format, values, response);
+    }
+
+    private void render(String format, List<Object> values, StringBuilder response) {
+        long formatStart = System.nanoTime();
+        int start = response.length();
+        try {
+            response.append(RESP_OK);
+            response.append(RESP_SEP);
+            FormatTemplate.compile(format).render(response, values);
+        } catch (Exception ex) {
+            log.warn("Incorrect format '{}'", format, ex);
+            response.setLength(start);
+            appendError(response, RESP_ERR_FORMAT, exceptionMessage(ex));
+        }
+        stats.getFormatting().recordSince(formatStart);
+    }
+
+    /**
+     * Get some counters of a JMX endpoint and format their rates per second since the previous RATE command requesting
+     * them. The counters of a bean pattern are formatted as GET does, a pair of arguments per matching bean.
+     */
+    private void rate(String url, String format, List<String> beanNames, List<String> attributePaths,
+            StringBuilder response) {
+        // the start time of the endpoint is fetched in the same batch
+        List<String> beans = new ArrayList<String>(beanNames);
+        List<String> paths = new ArrayList<String>(attributePaths);
+        beans.add(RUNTIME_BEAN);
+        paths.add(START_TIME);
+        Object[] results;
+        try {
+            // the rates are computed from the time of the fetch, they need fresh values
+            results = fetchValues(url, beans, paths, false);
+        } catch (JmxRequestException ex) {
+            appendError(response, ex.getCode(), ex.getMessage());
+            return;
+        }
+        long now = System.nanoTime();
+        long startTime = results[results.length - 1] instanceof Number ? ((Number) results[results.length - 1])
+                .longValue() : 0;
+        // only a bean pattern is resolved to its matches, any other map is a value which cannot be a counter
+        boolean[] matches = new boolean[beanNames.size()];
+        int count = 0;
+        for (int i = 0; i < beanNames.size(); i++) {
+            matches[i] = results[i] instanceof Map && isPattern(beanNames.get(i));
+            count += matches[i] ? ((Map<?, ?>) results[i]).size() : 1;
+        }
+        long[] keys = new long[count];
+        double[] samples = new double[count];
+        Object[] beanKeys = new Object[count];
+        int n = 0;
+        for (int i = 0; i < beanNames.size(); i++) {
+            if (matches[i]) {
+                for (Entry<?, ?> entry : ((Map<?, ?>) results[i]).entrySet()) {
+                    beanKeys[n] = entry.getKey();
+                    keys[n] = RateStore.seriesKey(url, String.valueOf(entry.getKey()), attributePaths.get(i));
+                    if (!toSample(entry.getValue(), samples, n++, response, url, beanNames.get(i),
+                            attributePaths.get(i))) {
+                        return;
+                    }
+                }
+            } else {
+                keys[n] = RateStore.seriesKey(url, beanNames.get(i), attributePaths.get(i));
+                if (!toSample(results[i], samples, n++, response, url, beanNames.get(i), attributePaths.get(i))) {
+                    return;
+                }
+            }
+        }
+        double[] rates = new double[count];
+        rateStore.sample(keys, samples, startTime, now, rates);
+        List<Object> values = new ArrayList<Object>(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (beanKeys[i] != null) {
+                values.add(beanKeys[i]);
+            }
+            values.add(rates[i]);
+        }
+        render(format, values, response);
+    }
+
+    private static boolean isPattern(String beanName) {
+        try {
+            return ObjectName.getInstance(beanName).isPattern();
+        } catch (MalformedObjectNameException e) {
+            // already rejected by the fetch
+            return false;
+        }
+    }
+
+    private boolean toSample(Object value, double[] samples, int index, StringBuilder response, String url,
+            String beanName, String attributePath) {
+        if (!(value instanceof Number)) {
+            appendError(response, RESP_ERR_NOT_NUMBER, "The value on '" + url + "' of bean '" + beanName
+                    + "' attribute '" + attributePath + "' is not a number: " + value);
+            return false;
+        }
+        samples[index] = ((Number) value).doubleValue();
+        return true;
+    }
+
+    /**
+     * Get some attributes of a JMX endpoint and write them as a JSON array into the response, the open types included
+     */
+    private void getJson(String url, List<String> beanNames, List<String> attributePaths, StringBuilder response) {
+        Object[] values;
+        try {
+            values = fetchValues(url, beanNames, attributePaths, true);
+        } catch (JmxRequestException ex) {
+            appendError(response, ex.getCode(), ex.getMessage());
+            return;
+        }
+        long formatStart = System.nanoTime();
+        response.append(RESP_OK);
+        response.append(RESP_SEP);
+        JsonWriter.write(response, Arrays.asList(values));
+        stats.getFormatting().recordSince(formatStart);
+    }
+
+    /**
+     * Get some attributes of a JMX endpoint, the values of the maps and of the lists being flattened
+     */
+    List<Object> fetch(String url, List<String> beanNames, List<String> attributePaths) throws JmxRequestException {
+        return flatten(fetchValues(url, beanNames, attributePaths, true));
+    }
+
+    private static List<Object> flatten(Object[] results) {
+        if (!hasCollection(results)) {
+            // nothing to flatten, no need to copy
+            return Arrays.asList(results);
+        }
+        List<Object> values = new ArrayList<Object>(results.length);
+        for (Object value : results) {
+            if (value instanceof Map) {
+                for (Entry<Object, Object> entry : ((Map<Object, Object>) value).entrySet()) {
+                    values.add(entry.getKey());
+                    values.add(entry.getValue());
+                }
+            } else if (value instanceof List) {
+                for (Object v : (List<Object>) value) {
+                    values.add(v);
+                }
+            } else {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get some attributes of a JMX endpoint, as they are resolved
+     * 
+     * @param cached
+     *            <code>false</code> to bypass the attribute cache
+     */
+    private Object[] fetchValues(String url, List<String> beanNames, List<String> attributePaths, boolean cached)
+            throws JmxRequestException {
+        JmxConnectionHolder connection = getConnection(url);
+        Object[] results;
+        activeFetches.incrementAndGet();
+        try {
+            results = connection.getAttributes(beanNames, attributePaths, cached);
+        } catch (ConcurrencyLimitException ex) {
+            throw new JmxRequestException(RESP_ERR_TARGET_OVERLOADED, exceptionMessage(ex));
+        } catch (CircuitOpenException ex) {
+            throw new JmxRequestException(RESP_ERR_CIRCUIT_OPEN, exceptionMessage(ex));
+        } catch (FetchTimeoutException ex) {
+            throw new JmxRequestException(RESP_ERR_TIMEOUT, exceptionMessage(ex));
+        } catch (IOException ex) {
+            // the broken connection has already been dropped by the holder, the next request will reconnect
+            log.warn("IO error on connection {}", url, ex);
+            throw new JmxRequestException(RESP_ERR_IO, exceptionMessage(ex));
+        } catch (AttributeFetchException ex) {
+            Throwable cause = ex.getCause();
+            log.warn("Error on {} for bean '{}' getting attribute '{}': {} ({})", url, ex.getBeanName(),
+                    ex.getAttributePath(), cause.getMessage(), cause.getClass().getSimpleName(), cause);
+            throw new JmxRequestException(RESP_ERR_GET_ATT, "Failed to get on '" + url + "' bean '"
+                    + ex.getBeanName() + "' attribute '" + ex.getAttributePath() + "':  " + exceptionMessage(cause));
+        } finally {
+            activeFetches.decrementAndGet();
+        }
+        return results;
+    }
+
+    private static boolean hasCollection(Object[] results) {
+        for (Object value : results) {
+            if (value instanceof Map || value instanceof List) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int parseConcurrency(String concurrency) {
+        try {
+            return Integer.parseInt(concurrency);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Call some operations of a JMX endpoint and format their results into the response, as GET does with attributes
+     */
+    private void invoke(String url, String format, int concurrency, List<String> beanNames, List<String> operations,
+            StringBuilder response) {
+        List<Object> values;
+        try {
+            values = flatten(invokeValues(url, concurrency, beanNames, operations));
+        } catch (JmxRequestException ex) {
+            appendError(response, ex.getCode(), ex.getMessage());
+            return;
+        }
+        render(format, values, response);
+    }
+
+    /**
+     * Call some operations of a JMX endpoint, checking first that they are all allowed
+     * 
+     * @param concurrency
+     *            the maximum number of operations called concurrently, 1 to call them one after the other
+     */
+    private Object[] invokeValues(String url, int concurrency, List<String> beanNames, List<String> operations)
+            throws JmxRequestException {
+        List<OperationCall> calls = new ArrayList<OperationCall>(operations.size());
+        for (int i = 0; i < operations.size(); i++) {
+            OperationCall call;
+            ObjectName beanName;
+            try {
+                call = OperationCall.compile(operations.get(i));
+                beanName = JmxConnectionHolder.getObjectName(beanNames.get(i));
+            } catch (IllegalArgumentException ex) {
+                throw new JmxRequestException(RESP_ERR_INVOKE, "Incorrect operation '" + operations.get(i) + "': "
+                        + exceptionMessage(ex));
+            } catch (MalformedObjectNameException ex) {
+                throw new JmxRequestException(RESP_ERR_INVOKE, "Incorrect bean name '" + beanNames.get(i) + "': "
+                        + exceptionMessage(ex));
+            }
+            if (beanName.isPattern() || !invokeAllowlist.isAllowed(beanName, call.getOperation())) {
+                throw new JmxRequestException(RESP_ERR_NOT_ALLOWED, "Not allowed to invoke on bean '"
+                        + beanNames.get(i) + "' operation '" + call.getOperation() + "'");
+            }
+            calls.add(call);
+        }
+        JmxConnectionHolder connection = getConnection(url);
+        activeFetches.incrementAndGet();
+        try {
+            return invokeConcurrently(connection, Math.min(concurrency, calls.size()), beanNames, calls);
+        } catch (ConcurrencyLimitException ex) {
+            throw new JmxRequestException(RESP_ERR_TARGET_OVERLOADED, exceptionMessage(ex));
+        } catch (CircuitOpenException ex) {
+            throw new JmxRequestException(RESP_ERR_CIRCUIT_OPEN, exceptionMessage(ex));
+        } catch (IOException ex) {
+            log.warn("IO error on connection {}", url, ex);
+            throw new JmxRequestException(RESP_ERR_IO, exceptionMessage(ex));
+        } catch (AttributeFetchException ex) {
+            Throwable cause = ex.getCause();
+            log.warn("Error on {} for bean '{}' invoking '{}': {} ({})", url, ex.getBeanName(),
+                    ex.getAttributePath(), cause.getMessage(), cause.getClass().getSimpleName(), cause);
+            throw new JmxRequestException(RESP_ERR_INVOKE, "Failed to invoke on '" + url + "' bean '"
+                    + ex.getBeanName() + "' operation '" + ex.getAttributePath() + "':  " + exceptionMessage(cause));
+        } catch (TimeoutException ex) {
+            throw new JmxRequestException(RESP_ERR_TIMEOUT, "No response within " + multiGetTimeout + "ms");
+        } catch (RejectedExecutionException ex) {
+            throw new JmxRequestException(RESP_ERR_OVERLOADED, "No MGET thread available to invoke concurrently");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new JmxRequestException(RESP_ERR_IO, "Interrupted while invoking on '" + url + "'");
+        } finally {
+            activeFetches.decrementAndGet();
+        }
+    }
+
+    /**
+     * Split the calls into lanes, the lane <code>i</code> calling one after the other the operations <code>i</code>,
+     * <code>i + lanes</code>, <code>i + 2 * lanes</code>... The first lane is run by the current thread, the others by
+     * the MGET threads.
+     */
+    private Object[] invokeConcurrently(final JmxConnectionHolder connection, int lanes, List<String> beanNames,
+            List<OperationCall> calls) throws IOException, AttributeFetchException, TimeoutException,
+            InterruptedException {
+        if (lanes <= 1) {
+            return connection.invoke(beanNames, calls);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(multiGetTimeout);
+        List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>(lanes - 1);
+        for (int lane = 1; lane < lanes; lane++) {
+            final List<String> laneBeans = new ArrayList<String>();
+            final List<OperationCall> laneCalls = new ArrayList<OperationCall>();
+            for (int i = lane; i < calls.size(); i += lanes) {
+                laneBeans.add(beanNames.get(i));
+                laneCalls.add(calls.get(i));
+            }
+            try {
+                futures.add(multiGetPool.submit(new Callable<Object[]>() {
+                    @Override
+                    public Object[] call() throws Exception {
+                        return connection.invoke(laneBeans, laneCalls);
                     }
-                    int i = input.indexOf('\\', p + 1);
-                    if (i == -1 || i > end) {
-                        buffer.append(input.substring(p + 1, end));
-                        p = end + 1;
-                        break;
+                }));
+            } catch (RejectedExecutionException e) {
+                // shutting down, don't leave the lanes already submitted behind
+                for (Future<Object[]> future : futures) {
+                    future.cancel(true);
+                }
+                throw e;
+            }
+        }
+        List<String> laneBeans = new ArrayList<String>();
+        List<OperationCall> laneCalls = new ArrayList<OperationCall>();
+        for (int i = 0; i < calls.size(); i += lanes) {
+            laneBeans.add(beanNames.get(i));
+            laneCalls.add(calls.get(i));
+        }
+        Object[] results = new Object[calls.size()];
+        Object[] laneResults = connection.invoke(laneBeans, laneCalls);
+        for (int lane = 0; lane < lanes; lane++) {
+            if (lane > 0) {
+                try {
+                    laneResults = futures.get(lane - 1).get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
                     }
-                    buffer.append(input.substring(p + 1, i));
-                    if (i + 1 < input.length()) {
-                        buffer.append(input.charAt(i + 1));
+                    if (e.getCause() instanceof AttributeFetchException) {
+                        throw (AttributeFetchException) e.getCause();
                     }
-                    p = i + 2;
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
                 }
-                request.add(buffer.toString());
-            } else {
-                int i = Integer.MAX_VALUE;
-                for (char c : new char[] { ' ', '\n', '\r', '\t' }) {
-                    int ic = input.indexOf(c, p);
-                    if (ic != -1) {
-                        i = Math.min(i, ic);
+            }
+            for (int i = 0; i < laneResults.length; i++) {
+                results[lane + i * lanes] = laneResults[i];
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get the same attributes on several JMX endpoints concurrently. The result of each endpoint is written as a single
+     * line as soon as it is available, the endpoints not responding in time being reported as timed out.
+     */
+    private void multiGet(final List<String> urls, final String format, final List<String> beanNames,
+            final List<String> attributePaths, final Response response) {
+        response.write(RESP_OK + RESP_SEP);
+        if (urls.isEmpty()) {
+            response.complete();
+            stats.exitRequest();
+            return;
+        }
+        final AtomicBoolean[] done = new AtomicBoolean[urls.size()];
+        final AtomicInteger remaining = new AtomicInteger(urls.size());
+        for (int i = 0; i < done.length; i++) {
+            done[i] = new AtomicBoolean(false);
+        }
+        final Timeout timeout = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                for (int i = 0; i < done.length; i++) {
+                    if (done[i].compareAndSet(false, true)) {
+                        stats.recordError(RESP_ERR_TIMEOUT);
+                        writeTargetResult(response, urls.get(i), RESP_ERR + RESP_SEP + RESP_ERR_TIMEOUT + RESP_SEP
+                                + "No response within " + multiGetTimeout + "ms");
+                        if (remaining.decrementAndGet() == 0) {
+                            response.complete();
+                            stats.exitRequest();
+                        }
                     }
                 }
-                if (i == Integer.MAX_VALUE) {
-                    request.add(input.substring(p));
-                    p = input.length();
-                } else {
-                    request.add(input.substring(p, i));
-                    p = i + 1;
+            }
+        }, multiGetTimeout, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < done.length; i++) {
+            final int index = i;
+            final String owner = getRemoteOwner(urls.get(i));
+            if (owner != null) {
+                // fetched by the peer owning the endpoint, as a GET
+                List<String> request = new ArrayList<String>();
+                request.add(REQ_CMD_GET);
+                request.add(urls.get(i));
+                request.add(format);
+                for (int j = 0; j < beanNames.size(); j++) {
+                    request.add(beanNames.get(j));
+                    request.add(attributePaths.get(j));
+                }
+                forwarded.incrementAndGet();
+                peerGroup.getLink(owner).send(JmxRequestDecoder.formatRequest(request), new PeerLink.Callback() {
+                    @Override
+                    public void onResponse(String text) {
+                        String result = text.endsWith(RESP_SEP) ? text.substring(0, text.length()
+                                - RESP_SEP.length()) : text;
+                        completeTarget(response, urls.get(index), result, done[index], remaining, timeout);
+                    }
+
+                    @Override
+                    public void onFailure(String message) {
+                        stats.recordError(RESP_ERR_PEER);
+                        completeTarget(response, urls.get(index), RESP_ERR + RESP_SEP + RESP_ERR_PEER + RESP_SEP
+                                + message, done[index], remaining, timeout);
+                    }
+                });
+                continue;
+            }
+            try {
+                multiGetPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (done[index].get()) {
+                            // already timed out while queued
+                            return;
+                        }
+                        StringBuilder result = responseBuffer();
+                        get(urls.get(index), format, beanNames, attributePaths, result);
+                        completeTarget(response, urls.get(index), result.toString(), done[index], remaining,
+                                timeout);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down, the request is still answered, endpoint by endpoint
+                stats.recordError(RESP_ERR_OVERLOADED);
+                completeTarget(response, urls.get(index), RESP_ERR + RESP_SEP + RESP_ERR_OVERLOADED + RESP_SEP
+                        + "No MGET thread available", done[index], remaining, timeout);
+            }
+        }
+    }
+
+    /**
+     * Write the result of an endpoint of a MGET command, unless it already timed out, completing the response once
+     * every endpoint is written
+     */
+    private void completeTarget(Response response, String url, String result, AtomicBoolean done,
+            AtomicInteger remaining, Timeout timeout) {
+        if (done.compareAndSet(false, true)) {
+            writeTargetResult(response, url, result);
+            if (remaining.decrementAndGet() == 0) {
+                timeout.cancel();
+                response.complete();
+                stats.exitRequest();
+            }
+        }
+    }
+
+    /**
+     * Stream the notifications of a bean into the response, until the channel or the connection to the JMX endpoint
+     * is closed
+     */
+    private void subscribe(final Channel channel, String url, String beanName, String typePrefix, Response response) {
+        Subscription existing = subscriptions.get(channel);
+        if (existing != null && !existing.isEnded()) {
+            stats.recordError(RESP_ERR_SUBSCRIBED);
+            response.write(RESP_ERR + RESP_SEP + RESP_ERR_SUBSCRIBED + RESP_SEP
+                    + "The channel is already streaming notifications" + RESP_SEP);
+            response.complete();
+            return;
+        }
+        NotificationFilterSupport filter = null;
+        if (typePrefix != null) {
+            filter = new NotificationFilterSupport();
+            filter.enableType(typePrefix);
+        }
+        Subscription subscription = new Subscription(channel, response, subscriptionBufferSize);
+        NotificationRegistration registration;
+        try {
+            registration = getConnection(url).addNotificationListener(beanName, subscription, filter);
+        } catch (JmxRequestException ex) {
+            stats.recordError(ex.getCode());
+            response.write(RESP_ERR + RESP_SEP + ex.getCode() + RESP_SEP + ex.getMessage() + RESP_SEP);
+            response.complete();
+            return;
+        } catch (IOException ex) {
+            log.warn("IO error on connection {}", url, ex);
+            stats.recordError(RESP_ERR_IO);
+            response.write(RESP_ERR + RESP_SEP + RESP_ERR_IO + RESP_SEP + exceptionMessage(ex) + RESP_SEP);
+            response.complete();
+            return;
+        } catch (AttributeFetchException ex) {
+            stats.recordError(RESP_ERR_SUBSCRIBE);
+            response.write(RESP_ERR + RESP_SEP + RESP_ERR_SUBSCRIBE + RESP_SEP + "Failed to subscribe on '" + url
+                    + "' to bean '" + beanName + "':  " + exceptionMessage(ex.getCause()) + RESP_SEP);
+            response.complete();
+            return;
+        }
+        subscriptions.put(channel, subscription);
+        if (!subscription.setRegistration(registration)) {
+            // the connection was lost right away
+            removeLater(registration);
+        }
+        subscription.start();
+        channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                Subscription subscription = subscriptions.remove(channel);
+                if (subscription != null) {
+                    removeLater(subscription.end("channel closed"));
                 }
             }
+        });
+    }
+
+    /**
+     * Remove a registration out of the I/O threads, as it does a remote call
+     */
+    private void removeLater(final NotificationRegistration registration) {
+        if (registration == null) {
+            return;
+        }
+        try {
+            multiGetPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.remove();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down, the connections are about to be closed anyway
         }
-        return request;
     }
 
-    private int skipWhiteSpace(String input, int p) {
-        while (p < input.length()
-                && (input.charAt(p) == ' ' || input.charAt(p) == '\n' || input.charAt(p) == '\r' || input.charAt(p) == '\t')) {
-            p++;
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        Subscription subscription = subscriptions.get(e.getChannel());
+        if (subscription != null) {
+            // the client caught up, write what has been buffered meanwhile
+            subscription.drain();
         }
-        return p;
+        super.channelInterestChanged(ctx, e);
     }
 
-    private void writeExceptionMessage(StringBuilder response, Throwable ex) {
-        response.append(ex.getClass().getSimpleName() + ": "
-                + ex.getMessage().replaceAll("\n", " ").replaceAll("\t", " "));
+    private void writeTargetResult(Response response, String url, String result) {
+        // one line per endpoint
+        response.write(url + " " + result.replace(RESP_SEP, " ") + RESP_SEP);
+    }
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        // keep track of the channels, so they can be all closed on shutdown
+        channels.add(e.getChannel());
+        super.channelOpen(ctx, e);
+    }
+
+    private static String exceptionMessage(Throwable ex) {
+        if (ex.getMessage() == null) {
+            return ex.getClass().getSimpleName();
+        }
+        return ex.getClass().getSimpleName() + ": " + ex.getMessage().replaceAll("\n", " ").replaceAll("\t", " ");
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
-        if (e.getCause() instanceof IOException && e.getCause().getMessage().equals("Connection reset by peer")) {
+        if (e.getCause() instanceof IOException && "Connection reset by peer".equals(e.getCause().getMessage())) {
             // we don't care
             return;
         }
+        if (e.getCause() instanceof ClosedChannelException) {
+            // a streamed response still being written after the client left
+            return;
+        }
         log.warn("Unexpected Error", e.getCause());
         ctx.getChannel().close();
     }
 
-    public void closeJmxConnections() {
-        synchronized (connectionCache) {
-            for (JmxConnectionHolder connection : connectionCache.values()) {
-                try {
-                    connection.close();
-                } catch (Throwable e) {
-                    log.warn("Error while closing connection {}", connection, e);
-                }
-            }
-            connectionCache.clear();
-        }
+    public int getActiveFetches() {
+        return activeFetches.get();
     }
 }
@@ -0,0 +1,203 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+/**
+ * Writes the values of attributes as JSON, walking the open types directly into the output without converting them
+ * first.
+ * <ul>
+ * <li>a {@link CompositeData} is written as an object, its items sorted by name,</li>
+ * <li>a {@link TabularData} is written as an array of its rows,</li>
+ * <li>a {@link Map} is written as an object, a {@link Collection} or an array as an array,</li>
+ * <li>the numbers and the booleans are written as such, except the non finite numbers written as <code>null</code>,
+ * </li>
+ * <li>anything else is written as its <code>toString()</code>.</li>
+ * </ul>
+ * The output is always on a single line, any line break within the strings being escaped.
+ */
+public class JsonWriter {
+
+    /**
+     * Beyond this depth the values are written as strings, in case of a cycle
+     */
+    private static final int MAX_DEPTH = 32;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonWriter() {
+        // only static methods
+    }
+
+    public static void write(StringBuilder out, Object value) {
+        write(out, value, 0);
+    }
+
+    private static void write(StringBuilder out, Object value, int depth) {
+        if (value == null) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            out.append(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            writeDouble(out, ((Number) value).doubleValue());
+        } else if (value instanceof BigInteger || value instanceof BigDecimal) {
+            out.append(value.toString());
+        } else if (depth >= MAX_DEPTH) {
+            writeString(out, value.toString());
+        } else if (value instanceof CompositeData) {
+            CompositeData composite = (CompositeData) value;
+            out.append('{');
+            boolean first = true;
+            // the keys of an open type are sorted
+            for (String key : composite.getCompositeType().keySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(out, key);
+                out.append(':');
+                write(out, composite.get(key), depth + 1);
+            }
+            out.append('}');
+        } else if (value instanceof TabularData) {
+            writeElements(out, ((TabularData) value).values(), depth);
+        } else if (value instanceof Map) {
+            out.append('{');
+            boolean first = true;
+            for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(out, String.valueOf(entry.getKey()));
+                out.append(':');
+                write(out, entry.getValue(), depth + 1);
+            }
+            out.append('}');
+        } else if (value instanceof Collection) {
+            writeElements(out, (Collection<?>) value, depth);
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            out.append('[');
+            for (int i = 0; i < array.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(array[i]);
+            }
+            out.append(']');
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.append('[');
+            for (int i = 0; i < array.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(array[i]);
+            }
+            out.append(']');
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            out.append('[');
+            for (int i = 0; i < array.length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                writeDouble(out, array[i]);
+            }
+            out.append(']');
+        } else if (value.getClass().isArray()) {
+            // the object arrays, and the less common primitive ones
+            int length = Array.getLength(value);
+            out.append('[');
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                write(out, Array.get(value, i), depth + 1);
+            }
+            out.append(']');
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeElements(StringBuilder out, Collection<?> elements, int depth) {
+        out.append('[');
+        boolean first = true;
+        for (Object element : elements) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            write(out, element, depth + 1);
+        }
+        out.append(']');
+    }
+
+    private static void writeDouble(StringBuilder out, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.append("null");
+        } else {
+            out.append(value);
+        }
+    }
+
+    static void writeString(StringBuilder out, String string) {
+        out.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in nanoseconds, with buckets in the manner of the HDR histograms: each power of two is
+ * split in {@value #SUB_BUCKETS} linear buckets, so the reported values are within 12.5% of the recorded ones.
+ * Durations above about a minute are all counted in the last bucket.
+ * <p>
+ * The counts are striped like a {@link StripedCounter}: recording neither locks nor allocates, and the threads
+ * recording concurrently rarely contend.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private static final int MAX_EXPONENT = 36;
+
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+
+    private final AtomicLongArray sums = new AtomicLongArray(StripedCounter.STRIPES * PADDING);
+
+    private final AtomicLongArray maxs = new AtomicLongArray(StripedCounter.STRIPES * PADDING);
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value counted in a bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long nanos) {
+        int stripe = StripedCounter.threadStripe();
+        counts.getAndIncrement(stripe * BUCKETS + bucket(nanos));
+        sums.getAndAdd(stripe * PADDING, nanos);
+        int maxIndex = stripe * PADDING;
+        long max = maxs.get(maxIndex);
+        while (nanos > max && !maxs.compareAndSet(maxIndex, max, nanos)) {
+            max = maxs.get(maxIndex);
+        }
+    }
+
+    /**
+     * Record the time elapsed since a value of {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the counts summed over the stripes, and the state of the histogram in microseconds
+     */
+    public LatencyInfo snapshot(String name) {
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = counts.get(stripe * BUCKETS + i);
+                merged[i] += c;
+                count += c;
+            }
+        }
+        long sum = 0;
+        long max = 0;
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+            sum += sums.get(stripe * PADDING);
+            max = Math.max(max, maxs.get(stripe * PADDING));
+        }
+        return new LatencyInfo(name, count, count == 0 ? 0 : sum / count / 1000, percentile(merged, count, max, 0.5),
+                percentile(merged, count, max, 0.9), percentile(merged, count, max, 0.99), percentile(merged, count,
+                        max, 0.999), max / 1000);
+    }
+
+    private static long percentile(long[] counts, long total, long max, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        int i = 0;
+        while (i < counts.length - 1 && seen + counts[i] < rank) {
+            seen += counts[i];
+            i++;
+        }
+        // the top of the bucket may be above anything actually recorded
+        return Math.min(highestValue(i), max) / 1000;
+    }
+}
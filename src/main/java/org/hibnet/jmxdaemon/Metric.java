@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+/**
+ * A value collected by the daemon, to be pushed to the {@link MetricSink}s
+ */
+public class Metric {
+
+    private final String name;
+
+    private final String value;
+
+    private final long timestamp;
+
+    /**
+     * @param value
+     *            the numeric value, already formatted
+     * @param timestamp
+     *            the time in milliseconds since the epoch at which the value has been collected
+     */
+    public Metric(String name, String value, long timestamp) {
+        this.name = name;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return name + "=" + value + "@" + timestamp;
+    }
+}
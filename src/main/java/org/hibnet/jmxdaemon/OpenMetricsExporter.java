@@ -0,0 +1,379 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.hibnet.jmxdaemon.ScrapeModule.BeanGroup;
+import org.hibnet.jmxdaemon.ScrapeModule.Family;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scrapes the attributes of a {@link ScrapeModule} on a JMX endpoint and writes them in the OpenMetrics text format.
+ * <p>
+ * The beans of the module are fetched in parallel, each with a single batched call. The exposition is written directly
+ * as bytes into a buffer sized after the previous scrape of the module, which is handed as is to the channel.
+ */
+public class OpenMetricsExporter {
+
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    static final String TEXT_CONTENT_TYPE = "text/plain; charset=utf-8";
+
+    private static final Logger log = LoggerFactory.getLogger(OpenMetricsExporter.class);
+
+    /**
+     * Marks the value of an attribute which could not be fetched
+     */
+    private static final Object FAILED = new Object();
+
+    private static final byte[] DIGITS = "0123456789".getBytes();
+
+    private final Map<String, ScrapeModule> modules;
+
+    private final ExecutorService pool;
+
+    private final long timeout;
+
+    private final DaemonStats stats;
+
+    /**
+     * @param pool
+     *            the threads fetching concurrently the beans of a module
+     * @param timeout
+     *            the time in milliseconds a scrape waits for the beans
+     * @param stats
+     *            where to record the time spent writing the expositions
+     */
+    public OpenMetricsExporter(Map<String, ScrapeModule> modules, ExecutorService pool, long timeout,
+            DaemonStats stats) {
+        this.modules = modules;
+        this.pool = pool;
+        this.timeout = timeout;
+        this.stats = stats;
+    }
+
+    public ScrapeModule getModule(String name) {
+        return modules.get(name);
+    }
+
+    /**
+     * Fetch the attributes of a module and write them as an OpenMetrics exposition. The attributes which cannot be
+     * fetched or are not numeric are left out, and counted in the <code>jmxdaemon_scrape_errors</code> sample.
+     *
+     * @throws IOException
+     *             if the connection to the JMX endpoint is broken
+     */
+    public ChannelBuffer scrape(JmxConnectionHolder connection, ScrapeModule module) throws IOException {
+        long start = System.nanoTime();
+        List<BeanGroup> groups = module.getBeanGroups();
+        List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>(groups.size());
+        Object[] values = new Object[module.getMetricCount()];
+        int errors = 0;
+        try {
+            // the last bean is fetched by the current thread, which would otherwise just wait
+            for (int i = 0; i < groups.size() - 1; i++) {
+                futures.add(submit(new GroupFetch(connection, groups.get(i))));
+            }
+            if (!groups.isEmpty()) {
+                FutureTask<Object[]> last = new FutureTask<Object[]>(new GroupFetch(connection,
+                        groups.get(groups.size() - 1)));
+                last.run();
+                futures.add(last);
+            }
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+            for (int i = 0; i < groups.size(); i++) {
+                int[] indexes = groups.get(i).getMetricIndexes();
+                Object[] results;
+                try {
+                    results = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    log.warn("Timeout on {} fetching bean '{}'", connection.getUrl(), groups.get(i).getBeanName());
+                    errors += indexes.length;
+                    continue;
+                }
+                for (int j = 0; j < indexes.length; j++) {
+                    if (results[j] == FAILED) {
+                        errors++;
+                    } else {
+                        values[indexes[j]] = results[j];
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scraping " + connection.getUrl());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<Object[]> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        long formatStart = System.nanoTime();
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(module.getSizeHint());
+        for (Family family : module.getFamilies()) {
+            writeAscii(buffer, "# TYPE ");
+            writeAscii(buffer, family.getName());
+            buffer.writeByte(' ');
+            writeAscii(buffer, family.getType());
+            buffer.writeByte('\n');
+            int[] indexes = family.getMetricIndexes();
+            for (int i = 0; i < indexes.length; i++) {
+                Object value = values[indexes[i]];
+                if (value instanceof Map) {
+                    // a bean pattern, or a map valued attribute: one sample per entry
+                    for (Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                        if (!writeSample(buffer, family.getSampleNames()[i], family.getLabels()[i],
+                                String.valueOf(entry.getKey()), entry.getValue())) {
+                            errors++;
+                        }
+                    }
+                } else if (value != null) {
+                    if (!writeSample(buffer, family.getSampleNames()[i], family.getLabels()[i], null, value)) {
+                        errors++;
+                    }
+                }
+            }
+        }
+        writeAscii(buffer, "# TYPE jmxdaemon_scrape_errors gauge\njmxdaemon_scrape_errors ");
+        writeLong(buffer, errors);
+        writeAscii(buffer, "\n# TYPE jmxdaemon_scrape_duration_seconds gauge\njmxdaemon_scrape_duration_seconds ");
+        writeAscii(buffer, Double.toString((System.nanoTime() - start) / 1e9));
+        writeAscii(buffer, "\n# EOF\n");
+        module.setSizeHint(buffer.readableBytes() + 64);
+        stats.getFormatting().recordSince(formatStart);
+        return buffer;
+    }
+
+    private Future<Object[]> submit(GroupFetch fetch) {
+        try {
+            return pool.submit(fetch);
+        } catch (RejectedExecutionException e) {
+            // shutting down, fetch it here
+            FutureTask<Object[]> task = new FutureTask<Object[]>(fetch);
+            task.run();
+            return task;
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the value is not numeric, and nothing was written
+     */
+    private static boolean writeSample(ChannelBuffer buffer, String name, String labels, String key, Object value) {
+        if (!(value instanceof Number) && !(value instanceof Boolean)) {
+            return false;
+        }
+        writeAscii(buffer, name);
+        if (labels.length() > 0 || key != null) {
+            buffer.writeByte('{');
+            writeUtf8(buffer, labels, false);
+            if (key != null) {
+                if (labels.length() > 0) {
+                    buffer.writeByte(',');
+                }
+                writeAscii(buffer, "key=\"");
+                writeUtf8(buffer, key, true);
+                buffer.writeByte('"');
+            }
+            buffer.writeByte('}');
+        }
+        buffer.writeByte(' ');
+        if (value instanceof Boolean) {
+            buffer.writeByte(((Boolean) value) ? '1' : '0');
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            writeLong(buffer, ((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d)) {
+                writeAscii(buffer, "NaN");
+            } else if (Double.isInfinite(d)) {
+                writeAscii(buffer, d > 0 ? "+Inf" : "-Inf");
+            } else {
+                writeAscii(buffer, value.toString());
+            }
+        } else {
+            writeAscii(buffer, value.toString());
+        }
+        buffer.writeByte('\n');
+        return true;
+    }
+
+    static void writeAscii(ChannelBuffer buffer, String string) {
+        buffer.ensureWritableBytes(string.length());
+        for (int i = 0; i < string.length(); i++) {
+            buffer.writeByte(string.charAt(i));
+        }
+    }
+
+    /**
+     * Write the decimal digits of a number without going through a string
+     */
+    static void writeLong(ChannelBuffer buffer, long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(buffer, Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            buffer.writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        buffer.ensureWritableBytes(digits);
+        int start = buffer.writerIndex();
+        for (int i = start + digits - 1; i >= start; i--) {
+            buffer.setByte(i, DIGITS[(int) (value % 10)]);
+            value /= 10;
+        }
+        buffer.writerIndex(start + digits);
+    }
+
+    /**
+     * Write a string in UTF-8, escaping it as a label value if required
+     */
+    private static void writeUtf8(ChannelBuffer buffer, String string, boolean escape) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (escape && (c == '\\' || c == '"')) {
+                buffer.writeByte('\\');
+                buffer.writeByte(c);
+            } else if (escape && c == '\n') {
+                buffer.writeByte('\\');
+                buffer.writeByte('n');
+            } else if (c < 0x80) {
+                buffer.writeByte(c);
+            } else if (c < 0x800) {
+                buffer.writeByte(0xC0 | (c >> 6));
+                buffer.writeByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer.writeByte(0xF0 | (codePoint >> 18));
+                buffer.writeByte(0x80 | ((codePoint >> 12) & 0x3F));
+                buffer.writeByte(0x80 | ((codePoint >> 6) & 0x3F));
+                buffer.writeByte(0x80 | (codePoint & 0x3F));
+            } else {
+                buffer.writeByte(0xE0 | (c >> 12));
+                buffer.writeByte(0x80 | ((c >> 6) & 0x3F));
+                buffer.writeByte(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    /**
+     * Frame a body into a complete HTTP response
+     * 
+     * @param location
+     *            the url the response redirects to, <code>null</code> if none
+     */
+    static ChannelBuffer httpResponse(HttpResponseStatus status, String contentType, String location,
+            ChannelBuffer body, boolean keepAlive) {
+        ChannelBuffer header = ChannelBuffers.dynamicBuffer(256);
+        writeAscii(header, "HTTP/1.1 ");
+        writeLong(header, status.getCode());
+        header.writeByte(' ');
+        writeAscii(header, status.getReasonPhrase());
+        writeAscii(header, "\r\nContent-Type: ");
+        writeAscii(header, contentType);
+        writeAscii(header, "\r\nContent-Length: ");
+        writeLong(header, body.readableBytes());
+        if (location != null) {
+            writeAscii(header, "\r\nLocation: ");
+            writeAscii(header, location);
+        }
+        if (!keepAlive) {
+            writeAscii(header, "\r\nConnection: close");
+        }
+        writeAscii(header, "\r\n\r\n");
+        return ChannelBuffers.wrappedBuffer(header, body);
+    }
+
+    static ChannelBuffer textBody(String text) {
+        ChannelBuffer body = ChannelBuffers.dynamicBuffer(text.length() + 1);
+        writeUtf8(body, text, false);
+        body.writeByte('\n');
+        return body;
+    }
+
+    /**
+     * Fetch the attributes of a bean in one call, or one by one if some of them fail
+     */
+    private static class GroupFetch implements Callable<Object[]> {
+
+        private final JmxConnectionHolder connection;
+
+        private final BeanGroup group;
+
+        private GroupFetch(JmxConnectionHolder connection, BeanGroup group) {
+            this.connection = connection;
+            this.group = group;
+        }
+
+        @Override
+        public Object[] call() throws IOException {
+            try {
+                return connection.getAttributes(group.getBeanNames(), group.getAttributePaths());
+            } catch (AttributeFetchException e) {
+                log.debug("Batch on {} for bean '{}' failed, fetching its attributes one by one",
+                        connection.getUrl(), group.getBeanName());
+            } catch (ConcurrencyLimitException e) {
+                // the other beans may still be fetched, the scrape is just partial
+                log.debug("Bean '{}' skipped: {}", group.getBeanName(), e.getMessage());
+                Object[] results = new Object[group.getAttributePaths().size()];
+                Arrays.fill(results, FAILED);
+                return results;
+            }
+            List<String> paths = group.getAttributePaths();
+            Object[] results = new Object[paths.size()];
+            for (int i = 0; i < results.length; i++) {
+                try {
+                    results[i] = connection.getAttribute(group.getBeanName(), paths.get(i));
+                } catch (AttributeFetchException e) {
+                    Throwable cause = e.getCause();
+                    log.warn("Error on {} for bean '{}' getting attribute '{}': {} ({})", connection.getUrl(),
+                            group.getBeanName(), paths.get(i), cause.getMessage(), cause.getClass().getSimpleName());
+                    results[i] = FAILED;
+                }
+            }
+            return results;
+        }
+    }
+}
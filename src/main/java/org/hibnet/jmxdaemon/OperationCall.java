@@ -0,0 +1,170 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed call to an operation of a bean, like <code>gc()</code>, <code>getVMOption(MaxHeapSize).value</code> or
+ * <code>dumpAllThreads(boolean:false,boolean:false)[0].threadName</code>.
+ * <p>
+ * The arguments are separated by commas. An argument is a string unless it is prefixed by its type, one of
+ * <code>string</code>, <code>boolean</code>, <code>byte</code>, <code>short</code>, <code>int</code>,
+ * <code>long</code>, <code>float</code>, <code>double</code> or <code>char</code>. The result of the operation may be
+ * navigated as the value of an attribute, see {@link AttributePath}.
+ * <p>
+ * The calls are parsed once and cached.
+ */
+public class OperationCall {
+
+    private static final BoundedCache<String, OperationCall> cache = new BoundedCache<String, OperationCall>(10000);
+
+    private static final Map<String, String> SIGNATURES = new HashMap<String, String>();
+
+    static {
+        SIGNATURES.put("string", String.class.getName());
+        SIGNATURES.put("boolean", boolean.class.getName());
+        SIGNATURES.put("byte", byte.class.getName());
+        SIGNATURES.put("short", short.class.getName());
+        SIGNATURES.put("int", int.class.getName());
+        SIGNATURES.put("long", long.class.getName());
+        SIGNATURES.put("float", float.class.getName());
+        SIGNATURES.put("double", double.class.getName());
+        SIGNATURES.put("char", char.class.getName());
+    }
+
+    private final String call;
+
+    private final String operation;
+
+    private final Object[] params;
+
+    private final String[] signature;
+
+    private final AttributePath path;
+
+    private OperationCall(String call, String operation, Object[] params, String[] signature, AttributePath path) {
+        this.call = call;
+        this.operation = operation;
+        this.params = params;
+        this.signature = signature;
+        this.path = path;
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the call is malformed
+     */
+    public static OperationCall compile(String call) {
+        OperationCall compiled = cache.get(call);
+        if (compiled == null) {
+            compiled = cache.put(call, doCompile(call));
+        }
+        return compiled;
+    }
+
+    private static OperationCall doCompile(String call) {
+        int open = call.indexOf('(');
+        int close = call.indexOf(')', open);
+        if (open <= 0 || close < 0) {
+            throw new IllegalArgumentException("Expecting an operation name followed by its arguments in parenthesis: "
+                    + call);
+        }
+        String operation = call.substring(0, open);
+        List<String> args = new ArrayList<String>();
+        if (close > open + 1) {
+            int start = open + 1;
+            int comma;
+            while ((comma = call.indexOf(',', start)) >= 0 && comma < close) {
+                args.add(call.substring(start, comma));
+                start = comma + 1;
+            }
+            args.add(call.substring(start, close));
+        }
+        Object[] params = new Object[args.size()];
+        String[] signature = new String[args.size()];
+        for (int i = 0; i < params.length; i++) {
+            String arg = args.get(i);
+            int colon = arg.indexOf(':');
+            String type = colon < 0 ? null : SIGNATURES.get(arg.substring(0, colon));
+            if (type == null) {
+                type = String.class.getName();
+            } else {
+                arg = arg.substring(colon + 1);
+            }
+            signature[i] = type;
+            try {
+                params[i] = parseArgument(type, arg);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Incorrect argument " + args.get(i) + " in call " + call);
+            }
+        }
+        // the result is navigated as if it was the value of an attribute named as the operation
+        AttributePath path = AttributePath.compile(operation + call.substring(close + 1));
+        return new OperationCall(call, operation, params, signature, path);
+    }
+
+    private static Object parseArgument(String type, String arg) {
+        if (type.equals("boolean")) {
+            return Boolean.valueOf(arg);
+        } else if (type.equals("byte")) {
+            return Byte.valueOf(arg);
+        } else if (type.equals("short")) {
+            return Short.valueOf(arg);
+        } else if (type.equals("int")) {
+            return Integer.valueOf(arg);
+        } else if (type.equals("long")) {
+            return Long.valueOf(arg);
+        } else if (type.equals("float")) {
+            return Float.valueOf(arg);
+        } else if (type.equals("double")) {
+            return Double.valueOf(arg);
+        } else if (type.equals("char")) {
+            if (arg.length() != 1) {
+                throw new NumberFormatException("Expecting a single character");
+            }
+            return Character.valueOf(arg.charAt(0));
+        }
+        return arg;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public Object[] getParams() {
+        return params;
+    }
+
+    public String[] getSignature() {
+        return signature;
+    }
+
+    /**
+     * @return the path to the value within the result of the operation, which root is the operation name
+     */
+    public AttributePath getPath() {
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return call;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * A static group of daemons sharing the JMX endpoints: each endpoint is owned by a single daemon, which is the only
+ * one connecting to it, the others forwarding it the requests.
+ * <p>
+ * The owner of an endpoint is chosen by consistent hashing of its url: each daemon is placed at several points of a
+ * ring of hashes, and an url belongs to the daemon of the first point following its hash. So adding or removing a
+ * daemon only moves the endpoints of its neighbours.
+ * <p>
+ * The daemons are listed in a file shared by the group, one <code>host:port</code> per line. Empty lines and lines
+ * starting with <code>#</code> are ignored.
+ */
+public class PeerGroup {
+
+    /**
+     * The number of points of a daemon on the ring, so that the endpoints are evenly spread
+     */
+    private static final int VIRTUAL_NODES = 160;
+
+    private final List<String> peers;
+
+    private final String self;
+
+    private final long[] ring;
+
+    private final String[] owners;
+
+    private final BoundedCache<String, String> ownerCache = new BoundedCache<String, String>(10000);
+
+    private final ConcurrentMap<String, PeerLink> links = new ConcurrentHashMap<String, PeerLink>();
+
+    private final ChannelFactory channelFactory;
+
+    private final ConnectionSettings settings;
+
+    /**
+     * @param self
+     *            the <code>host:port</code> of this daemon, as listed in the peers
+     * @param settings
+     *            the connection timeout and the backoff of the links to the peers
+     * @throws IllegalArgumentException
+     *             if this daemon is not one of the peers
+     */
+    public PeerGroup(List<String> peers, String self, ConnectionSettings settings) {
+        if (!peers.contains(self)) {
+            throw new IllegalArgumentException("This daemon " + self + " is not one of the peers " + peers);
+        }
+        this.peers = peers;
+        this.self = self;
+        this.settings = settings;
+        long[] hashes = new long[peers.size() * VIRTUAL_NODES];
+        String[] hashOwners = new String[hashes.length];
+        int n = 0;
+        for (String peer : peers) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                hashes[n] = hash(peer + "#" + i);
+                hashOwners[n++] = peer;
+            }
+        }
+        // sort the points along with their owner
+        Integer[] order = new Integer[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final long[] unsorted = hashes;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return unsorted[a] < unsorted[b] ? -1 : (unsorted[a] == unsorted[b] ? 0 : 1);
+            }
+        });
+        this.ring = new long[hashes.length];
+        this.owners = new String[hashes.length];
+        for (int i = 0; i < order.length; i++) {
+            ring[i] = unsorted[order[i]];
+            owners[i] = hashOwners[order[i]];
+        }
+        this.channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool());
+    }
+
+    public static List<String> load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), CharsetUtil.UTF_8);
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static List<String> parse(Reader reader) throws IOException {
+        Set<String> peers = new LinkedHashSet<String>();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            int colon = line.lastIndexOf(':');
+            try {
+                if (colon <= 0 || Integer.parseInt(line.substring(colon + 1)) <= 0) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Expecting host:port but was " + line);
+            }
+            peers.add(line);
+        }
+        return Collections.unmodifiableList(new ArrayList<String>(peers));
+    }
+
+    static long hash(String key) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has MD5
+            throw new IllegalStateException(e);
+        }
+        byte[] digest = md5.digest(key.getBytes(CharsetUtil.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xFF);
+        }
+        return hash;
+    }
+
+    /**
+     * @return the <code>host:port</code> of the daemon owning the endpoint
+     */
+    public String getOwner(String url) {
+        String owner = ownerCache.get(url);
+        if (owner == null) {
+            int index = Arrays.binarySearch(ring, hash(url));
+            if (index < 0) {
+                // the insertion point, the first point after the hash
+                index = -index - 1;
+            }
+            owner = ownerCache.put(url, owners[index == ring.length ? 0 : index]);
+        }
+        return owner;
+    }
+
+    public boolean isLocal(String url) {
+        return getOwner(url).equals(self);
+    }
+
+    /**
+     * @return the link to a peer, opened lazily and reopened once broken
+     */
+    public PeerLink getLink(String peer) {
+        PeerLink link = links.get(peer);
+        if (link == null) {
+            PeerLink newLink = new PeerLink(channelFactory, peer, settings);
+            link = links.putIfAbsent(peer, newLink);
+            if (link == null) {
+                link = newLink;
+            }
+        }
+        return link;
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public void stop() {
+        for (PeerLink link : links.values()) {
+            link.close();
+        }
+        channelFactory.releaseExternalResources();
+    }
+}
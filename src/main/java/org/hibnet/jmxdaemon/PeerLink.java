@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFactory;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.string.StringEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A connection to a peer daemon, on which the requests are pipelined. It is opened with a PEER command, after which
+ * the peer serves the requests itself, never forwarding them, and prefixes each response by its length.
+ * <p>
+ * Nothing blocks: the connection is established in the background, the requests sent meanwhile being written once
+ * connected. The responses come back in the order of the requests. If the connection is lost, the requests still
+ * waiting for their response fail, and the next request reconnects. A peer failing to be connected to is not tried
+ * again for a while, the requests failing right away in the meantime.
+ */
+public class PeerLink {
+
+    private static final Logger log = LoggerFactory.getLogger(PeerLink.class);
+
+    private static final int MAX_RESPONSE_LENGTH = 16 * 1024 * 1024;
+
+    /**
+     * Notified of the response of a forwarded request, from an I/O thread, or from the sending thread if the request
+     * fails right away
+     */
+    public interface Callback {
+
+        /**
+         * @param response
+         *            the whole text response of the peer, ending with a line separator
+         */
+        void onResponse(String response);
+
+        void onFailure(String message);
+    }
+
+    private final ClientBootstrap bootstrap;
+
+    private final String peer;
+
+    private final InetSocketAddress address;
+
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * The current connection, established or being established, <code>null</code> if none
+     */
+    private PeerHandler handler;
+
+    private boolean closed = false;
+
+    PeerLink(ChannelFactory channelFactory, String peer, ConnectionSettings settings) {
+        this.peer = peer;
+        int colon = peer.lastIndexOf(':');
+        this.address = new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+        this.circuitBreaker = new CircuitBreaker(settings.getFailureThreshold(), settings.getInitialBackoff(),
+                settings.getMaxBackoff());
+        this.bootstrap = new ClientBootstrap(channelFactory);
+        bootstrap.setOption("tcpNoDelay", true);
+        bootstrap.setOption("connectTimeoutMillis", settings.getConnectTimeout());
+    }
+
+    /**
+     * Send a request to the peer, connecting first if needed
+     *
+     * @param request
+     *            the request line, without its line separator
+     */
+    public void send(String request, Callback callback) {
+        PeerHandler current;
+        boolean connect = false;
+        synchronized (this) {
+            if (closed) {
+                current = null;
+            } else if (handler != null && !handler.closed) {
+                current = handler;
+            } else if (circuitBreaker.allowRequest()) {
+                handler = new PeerHandler();
+                current = handler;
+                connect = true;
+            } else {
+                current = null;
+            }
+        }
+        if (current == null) {
+            callback.onFailure("The peer " + peer + " is unreachable, next try in " + circuitBreaker.getRetryDelay()
+                    + "ms");
+            return;
+        }
+        if (connect) {
+            connect(current);
+        }
+        current.send(request, callback);
+    }
+
+    private void connect(final PeerHandler newHandler) {
+        // the pipeline is built for this connection only, the bootstrap being shared by the concurrent connections
+        ChannelPipeline pipeline = Channels.pipeline(new LengthFieldBasedFrameDecoder(MAX_RESPONSE_LENGTH, 0, 4, 0, 4),
+                new StringEncoder(), newHandler);
+        Channel channel = bootstrap.getFactory().newChannel(pipeline);
+        channel.getConfig().setOptions(bootstrap.getOptions());
+        channel.connect(address).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    log.info("Connected to the peer {}", peer);
+                    newHandler.open(future.getChannel());
+                } else {
+                    circuitBreaker.recordFailure();
+                    newHandler.fail("Unable to connect to the peer " + peer
+                            + (future.getCause() == null ? "" : ": " + future.getCause().getMessage()));
+                }
+            }
+        });
+    }
+
+    public synchronized boolean isConnected() {
+        return handler != null && handler.channel != null && handler.channel.isConnected();
+    }
+
+    public void close() {
+        PeerHandler current;
+        synchronized (this) {
+            closed = true;
+            current = handler;
+            handler = null;
+        }
+        if (current != null) {
+            current.fail("The link to the peer " + peer + " is closed");
+        }
+    }
+
+    /**
+     * A connection to the peer, writing the requests once connected and matching the responses in order
+     */
+    private class PeerHandler extends SimpleChannelUpstreamHandler {
+
+        /**
+         * <code>null</code> until connected
+         */
+        private volatile Channel channel;
+
+        /**
+         * Set once the connection failed or is closed, the requests then failing right away
+         */
+        private volatile boolean closed = false;
+
+        /**
+         * The requests waiting for the connection to be established
+         */
+        private final List<String> waiting = new ArrayList<String>();
+
+        /**
+         * The callbacks of the requests sent or to be sent, in order
+         */
+        private final Queue<Callback> pending = new ConcurrentLinkedQueue<Callback>();
+
+        private void send(String request, Callback callback) {
+            synchronized (this) {
+                if (!closed) {
+                    // queued and written under the lock, so that the responses are matched in order
+                    pending.add(callback);
+                    if (channel == null) {
+                        waiting.add(request);
+                    } else {
+                        write(request);
+                    }
+                    return;
+                }
+            }
+            callback.onFailure("Connection to the peer " + peer + " lost");
+        }
+
+        private void write(String request) {
+            channel.write(request + JmxRequestHandler.RESP_SEP).addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        // the requests in flight are failed as the channel closes
+                        future.getChannel().close();
+                    }
+                }
+            });
+        }
+
+        private void open(Channel connected) {
+            synchronized (this) {
+                if (!closed) {
+                    channel = connected;
+                    // the acknowledgement of the switch to the peer mode comes first
+                    List<Callback> queued = new ArrayList<Callback>(pending);
+                    pending.clear();
+                    pending.add(new Callback() {
+                        @Override
+                        public void onResponse(String response) {
+                            if (response.startsWith(JmxRequestHandler.RESP_OK)) {
+                                circuitBreaker.recordSuccess();
+                            } else {
+                                log.warn("The peer {} refused the link: {}", peer, response);
+                                circuitBreaker.recordFailure();
+                                channel.close();
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(String message) {
+                            // reported by the pending requests
+                        }
+                    });
+                    pending.addAll(queued);
+                    write(JmxRequestHandler.REQ_CMD_PEER);
+                    for (String request : waiting) {
+                        write(request);
+                    }
+                    waiting.clear();
+                    return;
+                }
+            }
+            // closed while connecting
+            connected.close();
+        }
+
+        /**
+         * Fail every request not responded yet
+         */
+        private void fail(String message) {
+            Channel current;
+            synchronized (this) {
+                closed = true;
+                waiting.clear();
+                current = channel;
+            }
+            if (current != null) {
+                // the callbacks are then failed as the channel closes
+                current.close();
+            }
+            Callback callback;
+            while ((callback = pending.poll()) != null) {
+                callback.onFailure(message);
+            }
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            String response = ((ChannelBuffer) e.getMessage()).toString(Charset.defaultCharset());
+            Callback callback = pending.poll();
+            if (callback != null) {
+                callback.onResponse(response);
+            }
+        }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            fail("Connection to the peer " + peer + " lost");
+            super.channelClosed(ctx, e);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            log.info("Error on the link to the peer {}: {}", peer, e.getCause().getMessage());
+            ctx.getChannel().close();
+        }
+    }
+}
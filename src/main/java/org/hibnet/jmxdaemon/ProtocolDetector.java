@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.handler.codec.frame.DelimiterBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
+import org.jboss.netty.handler.codec.string.StringDecoder;
+import org.jboss.netty.handler.codec.string.StringEncoder;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Looks at the first bytes received on a channel to set up the decoding of either the text protocol, the
+ * {@link BinaryProtocol} or HTTP, and then removes itself from the pipeline.
+ * <p>
+ * HTTP is recognized by the start of its request line, <code>GET /</code>, which cannot be a valid text command.
+ */
+public class ProtocolDetector extends FrameDecoder {
+
+    private static final ChannelBuffer LINE_DELIMITER = ChannelBuffers.copiedBuffer("\n", CharsetUtil.UTF_8);
+
+    private static final byte[] HTTP_GET = "GET /".getBytes(CharsetUtil.US_ASCII);
+
+    private final StringDecoder stringDecoder;
+
+    private final StringEncoder stringEncoder;
+
+    private final JmxRequestDecoder jmxRequestDecoder;
+
+    /**
+     * @param stringDecoder
+     *            the shared decoder of the text protocol
+     * @param stringEncoder
+     *            the shared encoder of the text protocol
+     * @param jmxRequestDecoder
+     *            the shared request parser of the text protocol
+     */
+    public ProtocolDetector(StringDecoder stringDecoder, StringEncoder stringEncoder,
+            JmxRequestDecoder jmxRequestDecoder) {
+        this.stringDecoder = stringDecoder;
+        this.stringEncoder = stringEncoder;
+        this.jmxRequestDecoder = jmxRequestDecoder;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (buffer.readableBytes() < 1) {
+            return null;
+        }
+        ChannelPipeline pipeline = ctx.getPipeline();
+        int httpMatch = matchHttp(buffer);
+        if (httpMatch < 0) {
+            // not enough received to decide yet
+            return null;
+        }
+        if (buffer.getByte(buffer.readerIndex()) == BinaryProtocol.MAGIC) {
+            buffer.skipBytes(1);
+            pipeline.addAfter(ctx.getName(), "binaryDecoder", new BinaryRequestDecoder(channel));
+        } else if (httpMatch > 0) {
+            pipeline.addAfter(ctx.getName(), "httpScrapeDecoder", new HttpScrapeDecoder(channel));
+            pipeline.addAfter(ctx.getName(), "httpDecoder", new HttpRequestDecoder());
+        } else {
+            pipeline.addAfter(ctx.getName(), "jmxRequestDecoder", jmxRequestDecoder);
+            pipeline.addAfter(ctx.getName(), "stringEncoder", stringEncoder);
+            pipeline.addAfter(ctx.getName(), "stringDecoder", stringDecoder);
+            pipeline.addAfter(ctx.getName(), "framer", new DelimiterBasedFrameDecoder(1024 * 1024, LINE_DELIMITER));
+        }
+        pipeline.remove(this);
+        // hand over what was received so far to the newly added decoders
+        return buffer.readBytes(buffer.readableBytes());
+    }
+
+    /**
+     * @return 1 if the buffer starts with an HTTP request line, 0 if not, -1 if it is too early to tell
+     */
+    private static int matchHttp(ChannelBuffer buffer) {
+        int start = buffer.readerIndex();
+        for (int i = 0; i < HTTP_GET.length; i++) {
+            if (i >= buffer.readableBytes()) {
+                return -1;
+            }
+            if (buffer.getByte(start + i) != HTTP_GET[i]) {
+                return 0;
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The previous sample of the counters requested by the RATE command, to turn them into rates per second.
+ * <p>
+ * A series, a counter of a bean on a JMX endpoint, is identified by a 64 bits hash of its url, bean name and attribute
+ * path, and stored in a few primitive arrays with open addressing: a series takes 32 bytes, whatever the length of its
+ * names, and a sample neither allocates nor boxes.
+ * <p>
+ * The number of series is bounded. Once the maximum is reached, the series not sampled for a while are evicted, and if
+ * there is none, the quarter least recently sampled.
+ */
+public class RateStore {
+
+    private static final long EMPTY = 0;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int maxSeries;
+
+    private final long staleAfter;
+
+    private long[] keys;
+
+    private double[] values;
+
+    private long[] sampledAt;
+
+    private long[] startTimes;
+
+    private int size;
+
+    /**
+     * @param maxSeries
+     *            the maximum number of series kept
+     * @param staleAfter
+     *            the time in milliseconds after which a series not sampled is forgotten
+     */
+    public RateStore(int maxSeries, long staleAfter) {
+        this.maxSeries = maxSeries;
+        this.staleAfter = TimeUnit.MILLISECONDS.toNanos(staleAfter);
+        allocate(Math.min(INITIAL_CAPACITY, tableCapacity(maxSeries)));
+    }
+
+    /**
+     * @return the smallest power of 2 keeping the table at most 3/4 full with the given number of series
+     */
+    private static int tableCapacity(int series) {
+        int capacity = 16;
+        while (capacity * 3L / 4 < series) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new double[capacity];
+        sampledAt = new long[capacity];
+        startTimes = new long[capacity];
+        size = 0;
+    }
+
+    /**
+     * @return the identifier of a series, never 0
+     */
+    static long seriesKey(String url, String beanName, String attributePath) {
+        // FNV-1a, the names being separated by a character which cannot be in a url nor in a bean name
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, url);
+        hash = (hash ^ '\n') * 0x100000001b3L;
+        hash = hash(hash, beanName);
+        hash = (hash ^ '\n') * 0x100000001b3L;
+        hash = hash(hash, attributePath);
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    private static long hash(long hash, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Record a sample of some series of a JMX endpoint and compute their rates since their previous sample.
+     * <p>
+     * A counter lower than its previous sample, or a change of the start time of the endpoint, is a reset: the counter
+     * is then considered to have restarted from 0. The rate of a series without previous sample, or which previous
+     * sample is stale, is {@link Double#NaN}.
+     *
+     * @param seriesKeys
+     *            the identifiers of the series, as computed by {@link #seriesKey(String, String, String)}
+     * @param samples
+     *            the values of the counters
+     * @param startTime
+     *            the start time of the JVM of the endpoint, 0 if unknown
+     * @param now
+     *            the value of {@link System#nanoTime()} when the counters were fetched
+     * @param rates
+     *            where to store the rates per second
+     */
+    public synchronized void sample(long[] seriesKeys, double[] samples, long startTime, long now, double[] rates) {
+        for (int i = 0; i < seriesKeys.length; i++) {
+            int slot = find(seriesKeys[i]);
+            if (keys[slot] == EMPTY) {
+                if (size >= maxSeries) {
+                    evict(now);
+                } else if (size + 1 > keys.length * 3L / 4) {
+                    rehash(keys.length << 1, Long.MIN_VALUE);
+                }
+                slot = find(seriesKeys[i]);
+                keys[slot] = seriesKeys[i];
+                size++;
+                rates[i] = Double.NaN;
+            } else if (now - sampledAt[slot] > staleAfter || now - sampledAt[slot] <= 0) {
+                rates[i] = Double.NaN;
+            } else {
+                boolean reset = samples[i] < values[slot] || (startTime != 0 && startTimes[slot] != 0
+                        && startTime != startTimes[slot]);
+                double delta = reset ? samples[i] : samples[i] - values[slot];
+                rates[i] = delta * TimeUnit.SECONDS.toNanos(1) / (now - sampledAt[slot]);
+            }
+            values[slot] = samples[i];
+            sampledAt[slot] = now;
+            startTimes[slot] = startTime;
+        }
+    }
+
+    /**
+     * @return the slot of the series, or the empty slot where to put it
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Make room for a new series, by dropping the stale ones or else the least recently sampled ones
+     */
+    private void evict(long now) {
+        if (size == 0) {
+            return;
+        }
+        long oldest = now - staleAfter;
+        int stale = 0;
+        long[] times = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                times[n++] = sampledAt[i];
+                if (now - sampledAt[i] > staleAfter) {
+                    stale++;
+                }
+            }
+        }
+        if (stale == 0) {
+            Arrays.sort(times);
+            oldest = times[size / 4];
+        }
+        rehash(keys.length, oldest);
+    }
+
+    /**
+     * Move the series into a table of the given capacity, dropping the ones sampled before the given time
+     */
+    private void rehash(int capacity, long oldest) {
+        long[] oldKeys = keys;
+        double[] oldValues = values;
+        long[] oldSampledAt = sampledAt;
+        long[] oldStartTimes = startTimes;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            // compared as differences, nanoTime being allowed to overflow
+            if (oldKeys[i] != EMPTY && (oldest == Long.MIN_VALUE || oldSampledAt[i] - oldest > 0)) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                sampledAt[slot] = oldSampledAt[i];
+                startTimes[slot] = oldStartTimes[i];
+                size++;
+            }
+        }
+    }
+
+    /**
+     * @return the number of series currently kept
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Writes back the responses of a channel in the order the requests were received, even if they are computed out of
+ * order.
+ * <p>
+ * By default the channel is closed once the first response is written. In keep-alive mode the channel stays open and
+ * each response is followed by an empty line. In framed mode, used by the {@link BinaryProtocol} and by the
+ * {@link PeerLink}s, the responses delimit themselves and the channel stays open.
+ */
+public class ResponseSequencer {
+
+    private static final byte[] SEPARATOR = JmxRequestHandler.RESP_SEP.getBytes(CharsetUtil.US_ASCII);
+
+    private final Channel channel;
+
+    private final Deque<Response> responses = new ArrayDeque<Response>();
+
+    private final boolean framed;
+
+    private boolean keepAlive = false;
+
+    private boolean closing = false;
+
+    private ChannelFuture lastWrite;
+
+    public ResponseSequencer(Channel channel) {
+        this(channel, false);
+    }
+
+    public ResponseSequencer(Channel channel, boolean framed) {
+        this.channel = channel;
+        this.framed = framed;
+        this.keepAlive = framed;
+    }
+
+    public synchronized void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public synchronized boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * Reserve the place of the response of a newly received request
+     */
+    public synchronized Response newResponse() {
+        Response response = new Response();
+        responses.addLast(response);
+        return response;
+    }
+
+    private void flush() {
+        while (!responses.isEmpty()) {
+            Response head = responses.peekFirst();
+            if (head.buffer != null) {
+                doWrite(head.buffer.toString());
+                head.buffer = null;
+            }
+            if (head.frames != null) {
+                doWrite(head.frames);
+                head.frames = null;
+            }
+            if (!head.complete) {
+                return;
+            }
+            responses.removeFirst();
+            if (keepAlive) {
+                if (!framed) {
+                    // shared, the channel only reads it
+                    doWrite(ChannelBuffers.wrappedBuffer(SEPARATOR));
+                }
+            } else if (!closing) {
+                closing = true;
+                if (lastWrite == null) {
+                    channel.close();
+                } else {
+                    lastWrite.addListener(ChannelFutureListener.CLOSE);
+                }
+            }
+        }
+    }
+
+    private void doWrite(String message) {
+        if (!closing && message.length() > 0) {
+            lastWrite = channel.write(message);
+        }
+    }
+
+    private void doWrite(ChannelBuffer frames) {
+        if (!closing && frames.readable()) {
+            lastWrite = channel.write(frames);
+        }
+    }
+
+    public class Response {
+
+        private StringBuilder buffer;
+
+        private ChannelBuffer frames;
+
+        private boolean complete = false;
+
+        private final long receivedAt = System.nanoTime();
+
+        /**
+         * Write some part of the response. It is sent right away if every previous response is already sent, otherwise
+         * it is buffered.
+         */
+        public void write(String message) {
+            synchronized (ResponseSequencer.this) {
+                if (complete) {
+                    throw new IllegalStateException("Response already completed");
+                }
+                if (responses.peekFirst() == this) {
+                    doWrite(message);
+                } else {
+                    if (buffer == null) {
+                        buffer = new StringBuilder();
+                    }
+                    buffer.append(message);
+                }
+            }
+        }
+
+        /**
+         * Write some frames of the response, sent right away or buffered as the text
+         */
+        public void write(ChannelBuffer message) {
+            synchronized (ResponseSequencer.this) {
+                if (complete) {
+                    throw new IllegalStateException("Response already completed");
+                }
+                if (responses.peekFirst() == this) {
+                    doWrite(message);
+                } else if (frames == null) {
+                    frames = message;
+                } else {
+                    frames = ChannelBuffers.wrappedBuffer(frames, message);
+                }
+            }
+        }
+
+        /**
+         * Mark the response as fully written
+         */
+        public void complete() {
+            synchronized (ResponseSequencer.this) {
+                complete = true;
+                flush();
+            }
+        }
+
+        /**
+         * @return the value of {@link System#nanoTime()} when the request was received
+         */
+        public long getReceivedAt() {
+            return receivedAt;
+        }
+
+        public boolean isComplete() {
+            synchronized (ResponseSequencer.this) {
+                return complete;
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Appends the metrics to a local file, one per line: <code>&lt;timestamp&gt; &lt;name&gt; &lt;value&gt;</code>. Once
+ * the file is too big, it is renamed with the suffix <code>.1</code>, the previous <code>.1</code> becoming
+ * <code>.2</code>, and so on up to the maximum number of kept files.
+ */
+public class RollingFileSink implements MetricSink {
+
+    private final File file;
+
+    private final long maxSize;
+
+    private final int maxFiles;
+
+    private OutputStream out;
+
+    private long size;
+
+    /**
+     * @param maxSize
+     *            the size in bytes above which the file is rolled
+     * @param maxFiles
+     *            the number of rolled files kept
+     */
+    public RollingFileSink(File file, long maxSize, int maxFiles) {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.maxFiles = maxFiles;
+    }
+
+    @Override
+    public synchronized void send(List<Metric> metrics) throws IOException {
+        StringBuilder buffer = new StringBuilder();
+        for (Metric metric : metrics) {
+            buffer.append(metric.getTimestamp()).append(' ').append(metric.getName()).append(' ')
+                    .append(metric.getValue()).append('\n');
+        }
+        byte[] data = buffer.toString().getBytes(CharsetUtil.UTF_8);
+        if (out != null && size + data.length > maxSize) {
+            roll();
+        }
+        if (out == null) {
+            out = new FileOutputStream(file, true);
+            size = file.length();
+        }
+        out.write(data);
+        out.flush();
+        size += data.length;
+    }
+
+    private void roll() throws IOException {
+        close();
+        new File(file.getPath() + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File rolled = new File(file.getPath() + "." + i);
+            if (rolled.exists()) {
+                rolled.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        if (maxFiles > 0) {
+            if (!file.renameTo(new File(file.getPath() + ".1"))) {
+                throw new IOException("Unable to roll the file " + file);
+            }
+        } else {
+            file.delete();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // don't care
+            }
+            out = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "file " + file;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * A named set of attributes exposed together to Prometheus, through
+ * <code>/metrics?target=&lt;jmxurl&gt;&amp;module=&lt;name&gt;</code>.
+ * <p>
+ * The modules are configured in a file, one metric per line, with the same quoting rules as the commands:
+ *
+ * <pre>
+ * &lt;module&gt; &lt;gauge|counter|unknown&gt; &lt;metricname&gt; &lt;beanname&gt; &lt;attribute&gt;
+ * </pre>
+ *
+ * The metric name may carry some labels, like <code>jvm_gc_collections_total{gc="young"}</code>. Empty lines and lines
+ * starting with <code>#</code> are ignored.
+ * <p>
+ * A module is compiled once: its metrics are grouped by bean, so that a scrape does a single batched call per bean, and
+ * by metric family, so that the exposition is written in one pass.
+ */
+public class ScrapeModule {
+
+    static final String TYPE_GAUGE = "gauge";
+
+    static final String TYPE_COUNTER = "counter";
+
+    static final String TYPE_UNKNOWN = "unknown";
+
+    private static final String COUNTER_SUFFIX = "_total";
+
+    private final String name;
+
+    private final List<BeanGroup> beanGroups;
+
+    private final List<Family> families;
+
+    private final int metricCount;
+
+    /**
+     * Size of the last exposition, to allocate the next one at once
+     */
+    private volatile int sizeHint = 1024;
+
+    private ScrapeModule(String name, List<Metric> metrics) {
+        this.name = name;
+        this.metricCount = metrics.size();
+        Map<String, List<Integer>> byBean = new LinkedHashMap<String, List<Integer>>();
+        Map<String, List<Integer>> byFamily = new LinkedHashMap<String, List<Integer>>();
+        Map<String, String> familyTypes = new LinkedHashMap<String, String>();
+        for (int i = 0; i < metrics.size(); i++) {
+            Metric metric = metrics.get(i);
+            add(byBean, metric.beanName, i);
+            add(byFamily, metric.family, i);
+            familyTypes.put(metric.family, metric.type);
+        }
+        List<BeanGroup> groups = new ArrayList<BeanGroup>(byBean.size());
+        for (Map.Entry<String, List<Integer>> entry : byBean.entrySet()) {
+            groups.add(new BeanGroup(entry.getKey(), entry.getValue(), metrics));
+        }
+        beanGroups = Collections.unmodifiableList(groups);
+        List<Family> fams = new ArrayList<Family>(byFamily.size());
+        for (Map.Entry<String, List<Integer>> entry : byFamily.entrySet()) {
+            fams.add(new Family(entry.getKey(), familyTypes.get(entry.getKey()), entry.getValue(), metrics));
+        }
+        families = Collections.unmodifiableList(fams);
+    }
+
+    private static void add(Map<String, List<Integer>> map, String key, int index) {
+        List<Integer> indexes = map.get(key);
+        if (indexes == null) {
+            indexes = new ArrayList<Integer>();
+            map.put(key, indexes);
+        }
+        indexes.add(index);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the batches to fetch, one per bean
+     */
+    List<BeanGroup> getBeanGroups() {
+        return beanGroups;
+    }
+
+    /**
+     * @return the metric families in the order of their first appearance in the configuration
+     */
+    List<Family> getFamilies() {
+        return families;
+    }
+
+    /**
+     * @return the number of configured metrics, the values of a scrape being indexed from 0 to this count
+     */
+    int getMetricCount() {
+        return metricCount;
+    }
+
+    int getSizeHint() {
+        return sizeHint;
+    }
+
+    void setSizeHint(int sizeHint) {
+        this.sizeHint = sizeHint;
+    }
+
+    public static Map<String, ScrapeModule> load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), CharsetUtil.UTF_8);
+        try {
+            return parse(reader, file.getPath());
+        } finally {
+            reader.close();
+        }
+    }
+
+    static Map<String, ScrapeModule> parse(Reader reader, String source) throws IOException {
+        Map<String, List<Metric>> metrics = new LinkedHashMap<String, List<Metric>>();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            List<String> args = JmxRequestDecoder.parseRequest(line);
+            if (args.size() != 5) {
+                throw new IOException("Invalid scrape metric in " + source + " at line " + lineNumber
+                        + ": expecting <module> <gauge|counter|unknown> <metricname> <beanname> <attribute>");
+            }
+            String type = args.get(1);
+            if (!type.equals(TYPE_GAUGE) && !type.equals(TYPE_COUNTER) && !type.equals(TYPE_UNKNOWN)) {
+                throw new IOException("Invalid metric type in " + source + " at line " + lineNumber + ": " + type);
+            }
+            String metricName = args.get(2);
+            String labels = "";
+            int brace = metricName.indexOf('{');
+            if (brace >= 0) {
+                if (!metricName.endsWith("}")) {
+                    throw new IOException("Invalid labels in " + source + " at line " + lineNumber + ": "
+                            + metricName);
+                }
+                labels = metricName.substring(brace + 1, metricName.length() - 1);
+                metricName = metricName.substring(0, brace);
+            }
+            if (!isValidName(metricName)) {
+                throw new IOException("Invalid metric name in " + source + " at line " + lineNumber + ": "
+                        + metricName);
+            }
+            // the samples of a counter are suffixed, not its family
+            String family = metricName;
+            String sampleName = metricName;
+            if (type.equals(TYPE_COUNTER)) {
+                if (metricName.endsWith(COUNTER_SUFFIX)) {
+                    family = metricName.substring(0, metricName.length() - COUNTER_SUFFIX.length());
+                } else {
+                    sampleName = metricName + COUNTER_SUFFIX;
+                }
+            }
+            // compile the paths right away, a scrape just finds them in the cache
+            try {
+                AttributePath.compile(args.get(4));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid attribute in " + source + " at line " + lineNumber + ": "
+                        + e.getMessage());
+            }
+            List<Metric> moduleMetrics = metrics.get(args.get(0));
+            if (moduleMetrics == null) {
+                moduleMetrics = new ArrayList<Metric>();
+                metrics.put(args.get(0), moduleMetrics);
+            }
+            moduleMetrics.add(new Metric(family, type, sampleName, labels, args.get(3), args.get(4)));
+        }
+        Map<String, ScrapeModule> modules = new LinkedHashMap<String, ScrapeModule>();
+        for (Map.Entry<String, List<Metric>> entry : metrics.entrySet()) {
+            modules.put(entry.getKey(), new ScrapeModule(entry.getKey(), entry.getValue()));
+        }
+        return modules;
+    }
+
+    private static boolean isValidName(String name) {
+        if (name.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':'
+                    || (i > 0 && c >= '0' && c <= '9');
+            if (!valid) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + metricCount + " metrics on " + beanGroups.size() + " beans)";
+    }
+
+    private static class Metric {
+
+        private final String family;
+
+        private final String type;
+
+        private final String sampleName;
+
+        private final String labels;
+
+        private final String beanName;
+
+        private final String attributePath;
+
+        private Metric(String family, String type, String sampleName, String labels, String beanName,
+                String attributePath) {
+            this.family = family;
+            this.type = type;
+            this.sampleName = sampleName;
+            this.labels = labels;
+            this.beanName = beanName;
+            this.attributePath = attributePath;
+        }
+    }
+
+    /**
+     * The attributes of a single bean, fetched in one call
+     */
+    static class BeanGroup {
+
+        private final String beanName;
+
+        private final List<String> beanNames;
+
+        private final List<String> attributePaths;
+
+        private final int[] metricIndexes;
+
+        private BeanGroup(String beanName, List<Integer> indexes, List<Metric> metrics) {
+            this.beanName = beanName;
+            List<String> paths = new ArrayList<String>(indexes.size());
+            metricIndexes = new int[indexes.size()];
+            for (int i = 0; i < metricIndexes.length; i++) {
+                metricIndexes[i] = indexes.get(i);
+                paths.add(metrics.get(metricIndexes[i]).attributePath);
+            }
+            beanNames = Collections.nCopies(indexes.size(), beanName);
+            attributePaths = Collections.unmodifiableList(paths);
+        }
+
+        String getBeanName() {
+            return beanName;
+        }
+
+        List<String> getBeanNames() {
+            return beanNames;
+        }
+
+        List<String> getAttributePaths() {
+            return attributePaths;
+        }
+
+        /**
+         * @return where to store the fetched values in the values of the scrape
+         */
+        int[] getMetricIndexes() {
+            return metricIndexes;
+        }
+    }
+
+    /**
+     * The samples sharing a name and a type
+     */
+    static class Family {
+
+        private final String name;
+
+        private final String type;
+
+        private final int[] metricIndexes;
+
+        private final String[] sampleNames;
+
+        private final String[] labels;
+
+        private Family(String name, String type, List<Integer> indexes, List<Metric> metrics) {
+            this.name = name;
+            this.type = type;
+            metricIndexes = new int[indexes.size()];
+            sampleNames = new String[indexes.size()];
+            labels = new String[indexes.size()];
+            for (int i = 0; i < metricIndexes.length; i++) {
+                metricIndexes[i] = indexes.get(i);
+                sampleNames[i] = metrics.get(metricIndexes[i]).sampleName;
+                labels[i] = metrics.get(metricIndexes[i]).labels;
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getType() {
+            return type;
+        }
+
+        int[] getMetricIndexes() {
+            return metricIndexes;
+        }
+
+        String[] getSampleNames() {
+            return sampleNames;
+        }
+
+        /**
+         * @return the configured labels of each sample, without the braces, empty if none
+         */
+        String[] getLabels() {
+            return labels;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Pushes the metrics to StatsD as gauges over UDP. Several metrics are sent per datagram, as long as it stays small
+ * enough to not be fragmented.
+ */
+public class StatsdSink implements MetricSink {
+
+    private static final int MAX_PACKET_SIZE = 512;
+
+    private final InetSocketAddress address;
+
+    private final DatagramSocket socket;
+
+    public StatsdSink(InetSocketAddress address) throws IOException {
+        this.address = address;
+        this.socket = new DatagramSocket();
+    }
+
+    @Override
+    public void send(List<Metric> metrics) throws IOException {
+        StringBuilder packet = new StringBuilder();
+        for (Metric metric : metrics) {
+            String line = metric.getName() + ":" + metric.getValue() + "|g";
+            if (packet.length() > 0 && packet.length() + 1 + line.length() > MAX_PACKET_SIZE) {
+                sendPacket(packet.toString());
+                packet.setLength(0);
+            }
+            if (packet.length() > 0) {
+                packet.append('\n');
+            }
+            packet.append(line);
+        }
+        if (packet.length() > 0) {
+            sendPacket(packet.toString());
+        }
+    }
+
+    private void sendPacket(String packet) throws IOException {
+        byte[] data = packet.getBytes(CharsetUtil.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, address));
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    @Override
+    public String toString() {
+        return "statsd " + address;
+    }
+}
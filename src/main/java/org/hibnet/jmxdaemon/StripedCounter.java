@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells, so that the threads updating it concurrently rarely contend on the same one.
+ * Updating neither locks nor allocates, reading sums the cells.
+ */
+public class StripedCounter {
+
+    /**
+     * Number of longs between two cells, so that they don't share a cache line
+     */
+    private static final int PADDING = 8;
+
+    static final int STRIPES = stripes();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int stripes() {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2 && stripes < 64) {
+            stripes <<= 1;
+        }
+        return Math.max(4, stripes);
+    }
+
+    /**
+     * @return the stripe of the current thread, between 0 and {@link #STRIPES} excluded
+     */
+    static int threadStripe() {
+        // the threads of a pool have consecutive ids, which spreads them evenly
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    public void increment() {
+        cells.getAndIncrement(threadStripe() * PADDING);
+    }
+
+    public void decrement() {
+        cells.getAndDecrement(threadStripe() * PADDING);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(threadStripe() * PADDING, delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.management.remote.JMXConnectionNotification;
+
+import org.hibnet.jmxdaemon.JmxConnectionHolder.NotificationRegistration;
+import org.hibnet.jmxdaemon.ResponseSequencer.Response;
+import org.jboss.netty.channel.Channel;
+
+/**
+ * Streams the notifications of a bean to a client, one record per line, its fields being separated by tabs:
+ * 
+ * <pre>
+ * NOTIF   &lt;timestamp&gt; &lt;sequence&gt; &lt;type&gt; &lt;source&gt; &lt;message&gt; [&lt;key&gt;=&lt;value&gt;]*
+ * DROPPED &lt;count&gt;
+ * END     &lt;reason&gt;
+ * </pre>
+ * 
+ * The user data of the notifications are written as key/value pairs, the composite ones being flattened.
+ * <p>
+ * The records are buffered while the channel is not writable. When the buffer is full, the oldest records are dropped
+ * and the number of dropped records is reported before the next record.
+ */
+public class Subscription implements NotificationListener {
+
+    static final String REC_NOTIF = "NOTIF";
+
+    static final String REC_DROPPED = "DROPPED";
+
+    static final String REC_END = "END";
+
+    private final Channel channel;
+
+    private final Response response;
+
+    private final int capacity;
+
+    private final Deque<String> pending = new ArrayDeque<String>();
+
+    private long dropped = 0;
+
+    private boolean started = false;
+
+    private boolean ended = false;
+
+    private NotificationRegistration registration;
+
+    /**
+     * @param capacity
+     *            the maximum number of records buffered while the client is not reading fast enough
+     */
+    public Subscription(Channel channel, Response response, int capacity) {
+        this.channel = channel;
+        this.response = response;
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return <code>false</code> if the subscription already ended, the registration should then be removed
+     */
+    public synchronized boolean setRegistration(NotificationRegistration registration) {
+        if (ended) {
+            return false;
+        }
+        this.registration = registration;
+        return true;
+    }
+
+    /**
+     * Acknowledge the subscription to the client, and then stream the notifications
+     */
+    public synchronized void start() {
+        response.write(JmxRequestHandler.RESP_OK + JmxRequestHandler.RESP_SEP);
+        started = true;
+        drain();
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (notification instanceof JMXConnectionNotification) {
+            String type = notification.getType();
+            if (JMXConnectionNotification.CLOSED.equals(type) || JMXConnectionNotification.FAILED.equals(type)) {
+                NotificationRegistration ended = end("connection to the JMX endpoint "
+                        + type.substring(type.lastIndexOf('.') + 1));
+                if (ended != null) {
+                    // nothing left to remove remotely, but the connection is not streaming anymore
+                    ended.release();
+                }
+            } else if (JMXConnectionNotification.NOTIFS_LOST.equals(type)) {
+                Object lost = notification.getUserData();
+                synchronized (this) {
+                    dropped += lost instanceof Long ? (Long) lost : 1;
+                }
+            }
+            return;
+        }
+        enqueue(format(notification));
+    }
+
+    private synchronized void enqueue(String record) {
+        if (ended) {
+            return;
+        }
+        if (pending.size() >= capacity) {
+            pending.removeFirst();
+            dropped++;
+        }
+        pending.addLast(record);
+        drain();
+    }
+
+    /**
+     * Write the buffered records, as long as the channel is writable
+     */
+    public synchronized void drain() {
+        while (started && !ended && !pending.isEmpty() && channel.isWritable()) {
+            if (dropped > 0) {
+                response.write(REC_DROPPED + "\t" + dropped + JmxRequestHandler.RESP_SEP);
+                dropped = 0;
+            }
+            response.write(pending.removeFirst());
+        }
+    }
+
+    /**
+     * Stop listening and complete the response
+     * 
+     * @return the registration to remove, <code>null</code> if already ended
+     */
+    public synchronized NotificationRegistration end(String reason) {
+        if (ended) {
+            return null;
+        }
+        ended = true;
+        pending.clear();
+        if (!started) {
+            response.write(JmxRequestHandler.RESP_OK + JmxRequestHandler.RESP_SEP);
+        }
+        response.write(REC_END + "\t" + reason + JmxRequestHandler.RESP_SEP);
+        response.complete();
+        NotificationRegistration toRemove = registration;
+        registration = null;
+        return toRemove;
+    }
+
+    public synchronized boolean isEnded() {
+        return ended;
+    }
+
+    static String format(Notification notification) {
+        StringBuilder record = new StringBuilder(REC_NOTIF);
+        record.append('\t').append(notification.getTimeStamp());
+        record.append('\t').append(notification.getSequenceNumber());
+        record.append('\t').append(clean(notification.getType()));
+        record.append('\t').append(clean(notification.getSource()));
+        record.append('\t').append(clean(notification.getMessage()));
+        Object userData = notification.getUserData();
+        if (userData instanceof CompositeData) {
+            appendComposite(record, "", (CompositeData) userData);
+        } else if (userData != null) {
+            record.append("\tuserData=").append(clean(userData));
+        }
+        record.append(JmxRequestHandler.RESP_SEP);
+        return record.toString();
+    }
+
+    private static void appendComposite(StringBuilder record, String prefix, CompositeData data) {
+        for (String key : data.getCompositeType().keySet()) {
+            Object value = data.get(key);
+            if (value instanceof CompositeData) {
+                appendComposite(record, prefix + key + ".", (CompositeData) value);
+            } else if (value != null && !value.getClass().isArray()) {
+                record.append('\t').append(prefix).append(key).append('=').append(clean(value));
+            }
+        }
+    }
+
+    private static String clean(Object value) {
+        if (value == null) {
+            return "";
+        }
+        return value.toString().replace('\n', ' ').replace('\t', ' ').replace('\r', ' ');
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ *  Copyright 2013 JMX Daemon contributors
+ * 
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.hibnet.jmxdaemon;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The JMX endpoints known at startup, which connections are opened before the daemon accepts any request, so that the
+ * first poll of every endpoint doesn't pay for the connection.
+ * <p>
+ * The endpoints are listed in a file, one url per line. Empty lines and lines starting with <code>#</code> are
+ * ignored.
+ * <p>
+ * The connections are opened in parallel by a bounded number of threads. The startup waits for them a bounded time:
+ * the slow endpoints keep being connected in the background, and the unreachable ones are retried with the backoff of
+ * the circuit breakers. The daemon is ready once a fraction of the endpoints are connected.
+ */
+public class TargetRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(TargetRegistry.class);
+
+    /**
+     * The minimum time in milliseconds between two attempts to connect to an unreachable endpoint
+     */
+    private static final long MIN_BACKOFF = 100;
+
+    private final List<String> urls;
+
+    private final int threads;
+
+    private final int readyThreshold;
+
+    private final AtomicInteger connected = new AtomicInteger();
+
+    private final AtomicBoolean ready = new AtomicBoolean();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param threads
+     *            the maximum number of connections opened concurrently
+     * @param readyPercent
+     *            the percentage of the endpoints to be connected for the daemon to be ready
+     */
+    public TargetRegistry(List<String> urls, int threads, int readyPercent) {
+        this.urls = urls;
+        this.threads = Math.max(1, threads);
+        this.readyThreshold = (int) Math.ceil(urls.size() * Math.min(100, Math.max(0, readyPercent)) / 100.0);
+        this.ready.set(readyThreshold == 0);
+    }
+
+    public static List<String> load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), CharsetUtil.UTF_8);
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    static List<String> parse(Reader reader) throws IOException {
+        Set<String> urls = new LinkedHashSet<String>();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            urls.add(line);
+        }
+        return Collections.unmodifiableList(new ArrayList<String>(urls));
+    }
+
+    public List<String> getUrls() {
+        return urls;
+    }
+
+    /**
+     * @return the number of endpoints which connection has been opened at least once
+     */
+    public int getConnected() {
+        return connected.get();
+    }
+
+    public boolean isReady() {
+        return ready.get();
+    }
+
+    /**
+     * Open the connections to every endpoint, waiting for them at most the given time. The connections not opened in
+     * time keep being opened in the background.
+     *
+     * @param maxWait
+     *            the maximum time in milliseconds to wait
+     * @return <code>true</code> if every endpoint has been tried, successfully or not, within the given time
+     */
+    public boolean warm(JmxConnectionCache connectionCache, ConnectionSettings settings, long maxWait)
+            throws InterruptedException {
+        executor = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "jmx-prewarm-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        log.info("Connecting to {} JMX endpoints with {} threads", urls.size(), threads);
+        long start = System.nanoTime();
+        CountDownLatch tried = new CountDownLatch(urls.size());
+        for (String url : urls) {
+            executor.execute(new Warmer(connectionCache, settings, url, tried));
+        }
+        boolean allTried = tried.await(maxWait, TimeUnit.MILLISECONDS);
+        log.info("{} of {} JMX endpoints connected in {}ms{}", connected.get(), urls.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), allTried ? ""
+                        : ", the others keep being connected in the background");
+        return allTried;
+    }
+
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private class Warmer implements Runnable {
+
+        private final JmxConnectionCache connectionCache;
+
+        private final ConnectionSettings settings;
+
+        private final String url;
+
+        private CountDownLatch tried;
+
+        private long backoff;
+
+        private Warmer(JmxConnectionCache connectionCache, ConnectionSettings settings, String url,
+                CountDownLatch tried) {
+            this.connectionCache = connectionCache;
+            this.settings = settings;
+            this.url = url;
+            this.tried = tried;
+            this.backoff = Math.max(MIN_BACKOFF, settings.getInitialBackoff());
+        }
+
+        @Override
+        public void run() {
+            try {
+                connectionCache.get(url).connect();
+                if (connected.incrementAndGet() >= readyThreshold && ready.compareAndSet(false, true)) {
+                    log.info("Ready: {} of {} JMX endpoints connected", connected.get(), urls.size());
+                }
+            } catch (Exception e) {
+                log.debug("Connection to {} failed, retrying in {}ms: {}", url, backoff, e.getMessage());
+                try {
+                    executor.schedule(this, backoff, TimeUnit.MILLISECONDS);
+                    backoff = Math.min(backoff * 2, Math.max(backoff, settings.getMaxBackoff()));
+                } catch (RejectedExecutionException ree) {
+                    // the daemon is stopping
+                }
+            } finally {
+                if (tried != null) {
+                    tried.countDown();
+                    tried = null;
+                }
+            }
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
@@ -47,10 +48,22 @@ public class JmxDaemonClient {
 
         @Override
         public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-            String response = (String) e.getMessage();
-            responses.add(response);
+            // a large response may be received in several parts, it is complete once the daemon closes the channel
+            StringBuilder received = (StringBuilder) ctx.getAttachment();
+            if (received == null) {
+                received = new StringBuilder();
+                ctx.setAttachment(received);
+            }
+            received.append((String) e.getMessage());
             super.messageReceived(ctx, e);
         }
+
+        @Override
+        public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+            StringBuilder received = (StringBuilder) ctx.getAttachment();
+            responses.add(received == null ? "" : received.toString());
+            super.channelClosed(ctx, e);
+        }
     }
 
     public JmxDaemonClient(SocketAddress serverAdd) {
@@ -78,6 +91,82 @@ public class JmxDaemonClient {
         }
     }
 
+    /**
+     * Open a connection in keep-alive mode, on which several commands can be sent
+     */
+    public Session openSession() {
+        final SessionHandler sessionHandler = new SessionHandler();
+        ClientBootstrap sessionBootstrap = new ClientBootstrap(bootstrap.getFactory());
+        sessionBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline(new StringDecoder(), new StringEncoder(), sessionHandler);
+            };
+        });
+        ChannelFuture cf = sessionBootstrap.connect(serverAdd);
+        cf.awaitUninterruptibly();
+        Session session = new Session(cf.getChannel(), sessionHandler);
+        session.write("KEEPALIVE");
+        session.read();
+        return session;
+    }
+
+    private static class SessionHandler extends SimpleChannelUpstreamHandler {
+
+        private StringBuilder received = new StringBuilder();
+
+        private LinkedBlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            received.append((String) e.getMessage());
+            int end;
+            while ((end = received.indexOf("\n\n")) != -1) {
+                responses.add(received.substring(0, end + 1));
+                received.delete(0, end + 2);
+            }
+            super.messageReceived(ctx, e);
+        }
+    }
+
+    public static class Session {
+
+        private final Channel channel;
+
+        private final SessionHandler handler;
+
+        private Session(Channel channel, SessionHandler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        /**
+         * Send a command without waiting for its response
+         */
+        public void write(String cmd) {
+            channel.write(cmd + "\n");
+        }
+
+        /**
+         * Wait for the next response
+         */
+        public String read() {
+            try {
+                return handler.responses.take();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public String send(String cmd) {
+            write(cmd);
+            return read();
+        }
+
+        public void close() {
+            channel.close().awaitUninterruptibly();
+        }
+    }
+
     public void close() {
         bootstrap.releaseExternalResources();
     }
@@ -16,33 +16,88 @@
 package org.hibnet.jmxdaemon;
 
 import static org.hamcrest.collection.IsArrayContainingInOrder.arrayContaining;
+import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
+import static org.hamcrest.core.AllOf.allOf;
 import static org.hamcrest.core.IsAnything.anything;
+import static org.hamcrest.core.IsCollectionContaining.hasItem;
 import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.hamcrest.number.OrderingComparison.greaterThan;
+import static org.hamcrest.number.OrderingComparison.greaterThanOrEqualTo;
+import static org.hamcrest.number.OrderingComparison.lessThanOrEqualTo;
 import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR;
 import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_ARGS_LEN;
+import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_CIRCUIT_OPEN;
+import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_CONN;
+import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_GET_ATT;
+import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_INVOKE;
+import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_NOT_ALLOWED;
+import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_NOT_NUMBER;
+import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_PEER;
+import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_SUBSCRIBE;
+import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_TIMEOUT;
 import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_ERR_UNKNOWN_CMD;
 import static org.hibnet.jmxdaemon.JmxRequestHandler.RESP_OK;
 import static org.hibnet.jmxdaemon.RegexMatcher.matches;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.IllegalFormatException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
 import javax.management.remote.JMXServiceURL;
 import javax.management.remote.rmi.RMIConnectorServer;
 import javax.naming.Context;
 
 import org.hamcrest.Matcher;
+import org.hibnet.jmxdaemon.JmxConnectionHolder.NotificationRegistration;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.logging.InternalLoggerFactory;
 import org.jboss.netty.logging.Slf4JLoggerFactory;
+import org.jboss.netty.util.CharsetUtil;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.sun.management.ThreadMXBean;
+
 @SuppressWarnings("unchecked")
 public class JmxDaemonTest {
 
@@ -58,11 +113,27 @@ public class JmxDaemonTest {
 
     private static String jmxurl;
 
+    private static final String SCRAPE_MODULES = "# some comment\n"
+            + "jvm gauge jvm_heap_used_bytes java.lang:type=Memory HeapMemoryUsage.used\n"
+            + "jvm counter jvm_uptime_ms java.lang:type=Runtime Uptime\n"
+            + "jvm gauge jvm_missing java.lang:type=Runtime NoSuchAttribute\n"
+            + "jvm gauge jvm_name java.lang:type=Runtime Name\n"
+            + "jvm gauge jvm_heap_committed_bytes java.lang:type=Memory HeapMemoryUsage.committed\n"
+            + "jvm gauge jvm_threads{kind=\"live\"} java.lang:type=Threading ThreadCount\n"
+            + "jvm counter jvm_gc_collections_total java.lang:type=GarbageCollector,* CollectionCount\n";
+
+    private static final String INVOKE_ALLOWLIST = "# some comment\n" + "java.lang:type=Memory gc\n"
+            + "com.sun.management:type=HotSpotDiagnostic getVMOption\n" + "java.lang:type=Threading *\n";
+
     @BeforeClass
     public static void start() throws Exception {
         try {
             InternalLoggerFactory.setDefaultFactory(new Slf4JLoggerFactory());
             daemon = new JmxDaemon(new InetSocketAddress(jmxDaemonPort), 10);
+            daemon.setAttributeCache(500, 100);
+            daemon.setMultiGetTimeout(2000);
+            daemon.setScrapeModules(ScrapeModule.parse(new StringReader(SCRAPE_MODULES), "test"));
+            daemon.setInvokeAllowlist(InvokeAllowlist.parse(new StringReader(INVOKE_ALLOWLIST)));
             daemon.start();
             client = new JmxDaemonClient(new InetSocketAddress(jmxDaemonPort));
             jmxServer = creatJMXConnectorAndRMIRegistry(jmxPort);
@@ -139,4 +210,996 @@ public class JmxDaemonTest {
                 + " java.lang:type=Memory HeapMemoryUsage.committed java.lang:type=Memory HeapMemoryUsage.max",
                 arrayContaining(equalTo(RESP_OK), matches("used:[0-9]+ committed:[0-9]+ max:[0-9]+")));
     }
+
+    @Test
+    public void testGetSeveralBeans() {
+        assertReceives("GET " + jmxurl + " 'used:%d threads:%d max:%d' java.lang:type=Memory HeapMemoryUsage.used"
+                + " java.lang:type=Threading ThreadCount java.lang:type=Memory HeapMemoryUsage.max",
+                arrayContaining(equalTo(RESP_OK), matches("used:[0-9]+ threads:[0-9]+ max:[0-9]+")));
+        assertReceives("GET " + jmxurl + " '%d %d' java.lang:type=Memory HeapMemoryUsage.used"
+                + " java.lang:type=Memory NoSuchAttribute",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_GET_ATT), matches(".*NoSuchAttribute.*")));
+        assertReceives("GET " + jmxurl + " '%d' java.lang:type=NoSuchBean Count",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_GET_ATT), matches(".*NoSuchBean.*")));
+    }
+
+    @Test
+    public void testGetJson() {
+        String usage = "\\{\"committed\":[0-9]+,\"init\":-?[0-9]+,\"max\":-?[0-9]+,\"used\":[0-9]+\\}";
+        assertReceives("GETJSON " + jmxurl + " java.lang:type=Memory HeapMemoryUsage java.lang:type=Runtime Name "
+                + "java.lang:type=Memory HeapMemoryUsage.used java.lang:type=Runtime NoSuchThing.property",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_GET_ATT), anything()));
+        assertReceives("GETJSON " + jmxurl + " java.lang:type=Memory",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_ARGS_LEN), anything()));
+        assertReceives("GETJSON " + jmxurl + " java.lang:type=Memory HeapMemoryUsage java.lang:type=Runtime Name "
+                + "java.lang:type=Memory HeapMemoryUsage.used java.lang:type=Memory Verbose",
+                arrayContaining(equalTo(RESP_OK),
+                        matches("\\[" + usage + ",\"[0-9]+@[^\"]*\",[0-9]+,(true|false)\\]")));
+        // tabular data, as an array of rows
+        assertReceives("GETJSON " + jmxurl + " java.lang:type=Runtime SystemProperties",
+                arrayContaining(equalTo(RESP_OK),
+                        matches("\\[\\[(\\{\"key\":\"[^\"]*\",\"value\":\".*\"\\},?)+\\]\\]")));
+        assertThat(client.send("GETJSON " + jmxurl + " java.lang:type=Runtime SystemProperties"),
+                containsString("{\"key\":\"java.version\",\"value\":\"" + System.getProperty("java.version")
+                        + "\"}"));
+        // pattern, as an object
+        assertReceives("GETJSON " + jmxurl + " java.lang:type=MemoryPool,* Usage", arrayContaining(equalTo(RESP_OK),
+                matches("\\[\\{(\"java.lang:name=[^\"]+,type=MemoryPool\":(null|" + usage + "),?)+\\}\\]")));
+    }
+
+    @Test
+    public void testRate() throws Exception {
+        String cmd = "RATE " + jmxurl + " 'uptime:%f' java.lang:type=Runtime Uptime";
+        assertReceives(cmd, arrayContaining(equalTo(RESP_OK), equalTo("uptime:NaN")));
+        Thread.sleep(200);
+        String[] response = client.send(cmd).split("\n");
+        assertThat(response, arrayContaining(equalTo(RESP_OK), matches("uptime:[0-9.]+")));
+        // the uptime is in milliseconds
+        double rate = Double.parseDouble(response[1].substring("uptime:".length()));
+        assertThat(rate, allOf(greaterThanOrEqualTo(500.0), lessThanOrEqualTo(2000.0)));
+        // a counter per matching bean
+        cmd = "RATE " + jmxurl + " '%s:%f' java.lang:type=GarbageCollector,* CollectionCount";
+        client.send(cmd);
+        assertReceives(cmd, arrayContaining(equalTo(RESP_OK), matches("java\\.lang:.*type=GarbageCollector:[0-9.]+")));
+        assertReceives("RATE " + jmxurl + " '%f' java.lang:type=Runtime Name",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_NOT_NUMBER), anything()));
+        // a map value of a single bean is not taken for the matches of a pattern
+        response = client.send("RATE " + jmxurl + " '%f' java.lang:type=Runtime SystemProperties").split("\n");
+        assertThat(response[0], equalTo(RESP_ERR));
+        assertThat(response[1], equalTo(RESP_ERR_NOT_NUMBER));
+        assertReceives("RATE " + jmxurl + " '%f' java.lang:type=Runtime",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_ARGS_LEN), anything()));
+    }
+
+    @Test
+    public void testInvoke() {
+        assertReceives("INVOKE " + jmxurl + " '%s' java.lang:type=Memory gc()",
+                arrayContaining(equalTo(RESP_OK), equalTo("null")));
+        assertReceives("INVOKE " + jmxurl + " '%s=%s' com.sun.management:type=HotSpotDiagnostic "
+                + "getVMOption(MaxHeapSize).name com.sun.management:type=HotSpotDiagnostic "
+                + "getVMOption(string:MaxHeapSize).value",
+                arrayContaining(equalTo(RESP_OK), matches("MaxHeapSize=[0-9]+")));
+        // called concurrently, the results being still in the order of the request
+        assertReceives("INVOKE " + jmxurl + " '%s|%s|%s' 2 com.sun.management:type=HotSpotDiagnostic "
+                + "getVMOption(MaxHeapSize).name java.lang:type=Threading getThreadInfo(long:1).threadId "
+                + "java.lang:type=Memory gc()", arrayContaining(equalTo(RESP_OK), equalTo("MaxHeapSize|1|null")));
+        assertReceives("INVOKE " + jmxurl + " '%s' java.lang:type=Memory setVerbose(boolean:false)",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_NOT_ALLOWED), anything()));
+        assertReceives("INVOKE " + jmxurl + " '%s' java.lang:type=* gc()",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_NOT_ALLOWED), anything()));
+        assertReceives("INVOKE " + jmxurl + " '%s' com.sun.management:type=HotSpotDiagnostic getVMOption(NoSuchOption)",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_INVOKE), anything()));
+        assertReceives("INVOKE " + jmxurl + " '%s' java.lang:type=Threading getThreadInfo(long:x)",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_INVOKE), anything()));
+        assertReceives("INVOKE " + jmxurl + " '%s' 0 java.lang:type=Memory gc()",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_ARGS_LEN), anything()));
+    }
+
+    @Test
+    public void testRateStore() {
+        RateStore store = new RateStore(4, 60000);
+        long second = TimeUnit.SECONDS.toNanos(1);
+        long[] keys = { RateStore.seriesKey("url", "bean", "a"), RateStore.seriesKey("url", "bean", "b") };
+        double[] rates = new double[2];
+        store.sample(keys, new double[] { 10, 100 }, 1000, second, rates);
+        assertThat(Double.isNaN(rates[0]) && Double.isNaN(rates[1]), equalTo(true));
+        store.sample(keys, new double[] { 30, 50 }, 1000, 3 * second, rates);
+        // the second counter decreased, it has been reset
+        assertThat(rates[0], equalTo(10.0));
+        assertThat(rates[1], equalTo(25.0));
+        // the endpoint restarted
+        store.sample(keys, new double[] { 40, 60 }, 2000, 4 * second, rates);
+        assertThat(rates[0], equalTo(40.0));
+        assertThat(rates[1], equalTo(60.0));
+        // stale
+        store.sample(keys, new double[] { 50, 70 }, 2000, 4 * second + TimeUnit.MINUTES.toNanos(2), rates);
+        assertThat(Double.isNaN(rates[0]), equalTo(true));
+        // bounded, the least recently sampled series being evicted
+        long now = 5 * second + TimeUnit.MINUTES.toNanos(2);
+        for (int i = 0; i < 100; i++) {
+            store.sample(new long[] { RateStore.seriesKey("url", "bean", "c" + i) }, new double[] { i }, 2000, now + i,
+                    new double[1]);
+            assertThat(store.size(), lessThanOrEqualTo(4));
+        }
+        assertThat(store.size(), greaterThan(0));
+    }
+
+    @Test
+    public void testJsonWriter() {
+        StringBuilder out = new StringBuilder();
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("a\"b", Arrays.asList(1L, 2.5, Double.NaN, null, true));
+        map.put("text", "line\nbreak\t\u0001\\");
+        map.put("array", new long[] { 3, 4 });
+        map.put("objects", new Object[] { new BigDecimal("1.50"), 'c' });
+        JsonWriter.write(out, map);
+        assertThat(out.toString(), equalTo("{\"a\\\"b\":[1,2.5,null,null,true],\"text\":\"line\\nbreak\\t\\u0001\\\\\","
+                + "\"array\":[3,4],\"objects\":[1.50,\"c\"]}"));
+    }
+
+    @Test
+    public void testKeepAlive() {
+        JmxDaemonClient.Session session = client.openSession();
+        try {
+            assertThat(session.send("GET " + jmxurl + " '%d' java.lang:type=Memory HeapMemoryUsage.used").split("\n"),
+                    arrayContaining(equalTo(RESP_OK), matches("[0-9]+")));
+            // pipeline several commands before reading any response
+            session.write("GET " + jmxurl + " 'used:%d' java.lang:type=Memory HeapMemoryUsage.used");
+            session.write("UNKNOWN");
+            session.write("GET " + jmxurl + " 'threads:%d' java.lang:type=Threading ThreadCount");
+            assertThat(session.read().split("\n"), arrayContaining(equalTo(RESP_OK), matches("used:[0-9]+")));
+            assertThat(session.read().split("\n"),
+                    arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_UNKNOWN_CMD), anything()));
+            assertThat(session.read().split("\n"), arrayContaining(equalTo(RESP_OK), matches("threads:[0-9]+")));
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testDaemonMBean() throws Exception {
+        // the request is itself active and fetching while reading the daemon's bean
+        assertReceives("GET " + jmxurl + " 'active:%d fetches:%d queued:%d' '" + daemon.getObjectName()
+                + "' ActiveRequests '" + daemon.getObjectName() + "' ActiveFetches '" + daemon.getObjectName()
+                + "' QueuedRequests",
+                arrayContaining(equalTo(RESP_OK), matches("active:[1-9][0-9]* fetches:[1-9][0-9]* queued:[0-9]+")));
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        assertReceives("GET " + jmxurl + " '%d' java.lang:type=Memory HeapMemoryUsage.used",
+                arrayContaining(equalTo(RESP_OK), matches("[0-9]+")));
+        assertReceives("UNKNOWN", arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_UNKNOWN_CMD), anything()));
+        List<String> stats = Arrays.asList(client.send("STATS").split("\n"));
+        assertThat(stats.get(0), equalTo(RESP_OK));
+        // the STATS command itself is in flight
+        assertThat(stats, hasItem(matches("inflight [1-9][0-9]*")));
+        assertThat(stats, hasItem(matches("connections [1-9][0-9]*")));
+        assertThat(stats, hasItem(matches("command\\.GET [1-9][0-9]*")));
+        assertThat(stats, hasItem(matches("command\\.UNKNOWN [1-9][0-9]*")));
+        assertThat(stats, hasItem(matches("error\\.UNKNOWN_CMD [1-9][0-9]*")));
+        assertThat(stats, hasItem(matches("target\\." + Pattern.quote(jmxurl) + " [1-9][0-9]*")));
+        assertThat(stats, hasItem(matches("latency\\.queue_wait count=[1-9][0-9]* mean=[0-9]+ .*")));
+        assertThat(stats, hasItem(matches("latency\\.remote_fetch count=[1-9][0-9]* .*")));
+        assertThat(stats, hasItem(matches("latency\\.path_resolution count=[1-9][0-9]* .*")));
+        assertThat(stats, hasItem(matches("latency\\.formatting count=[1-9][0-9]* .*")));
+        // no target to connect to at startup
+        assertThat(stats, hasItem("ready true"));
+
+        // the same through the management bean
+        assertReceives("GET " + jmxurl + " '%d' '" + daemon.getObjectName() + "' InFlightRequests",
+                arrayContaining(equalTo(RESP_OK), matches("[1-9][0-9]*")));
+        assertThat(daemon.getCommandCounts().get("GET"), greaterThan(0L));
+        assertThat(daemon.getLatencies().get(2).getName(), equalTo("remote_fetch"));
+        assertThat(daemon.getLatencies().get(2).getCount(), greaterThan(0L));
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyInfo info = histogram.snapshot("test");
+        assertThat(info.getCount(), equalTo(1000L));
+        assertThat(info.getMean(), equalTo(500L));
+        assertThat(info.getMax(), equalTo(1000L));
+        // within the precision of the buckets
+        assertThat(info.getP50(), allOf(greaterThanOrEqualTo(500L), lessThanOrEqualTo(500L * 9 / 8)));
+        assertThat(info.getP99(), allOf(greaterThanOrEqualTo(990L), lessThanOrEqualTo(1000L)));
+        for (long value : new long[] { 0, 1, 7, 8, 15, 16, 1000, 123456789, Long.MAX_VALUE }) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertThat(LatencyHistogram.highestValue(bucket), greaterThanOrEqualTo(Math.min(value, (1L << 37) - 1)));
+        }
+    }
+
+    @Test
+    public void testResponseAllocation() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        FormatTemplate template = FormatTemplate.compile("used:%d committed:%d max:%d name:%s");
+        List<Object> values = Arrays.<Object> asList(123456789L, 234567890L, 345678901L, "some.rather.long.name."
+                + "of.a.bean.attribute.making.the.response.big.enough.for.the.copies.to.matter");
+        StringBuilder buffer = new StringBuilder();
+        ChannelBuffer encoded = null;
+        long allocated = 0;
+        int n = 10000;
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < n; i++) {
+                buffer.setLength(0);
+                buffer.append(RESP_OK).append('\n');
+                template.render(buffer, values);
+                buffer.append('\n');
+                encoded = JmxRequestHandler.encode(buffer);
+            }
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+        }
+        assertThat(encoded.toString(CharsetUtil.UTF_8), equalTo(buffer.toString()));
+        // only the bytes of the response and their buffer, no intermediate String nor encoding copy
+        assertThat(allocated / n, lessThanOrEqualTo(buffer.length() + 96L));
+    }
+
+    @Test
+    public void testParseRequest() {
+        assertThat(JmxRequestDecoder.parseRequest("GET  url\t'%d %d' \"a b\""),
+                equalTo(Arrays.asList("GET", "url", "%d %d", "a b")));
+        // the character following an escaped one is kept
+        assertThat(JmxRequestDecoder.parseRequest("GET 'a\\'b' c"), equalTo(Arrays.asList("GET", "a'b", "c")));
+        assertThat(JmxRequestDecoder.parseRequest("GET \"say \\\"hi\\\" now\""),
+                equalTo(Arrays.asList("GET", "say \"hi\" now")));
+        assertThat(JmxRequestDecoder.parseRequest("GET 'a\\\\b'"), equalTo(Arrays.asList("GET", "a\\b")));
+        assertThat(JmxRequestDecoder.parseRequest("GET 'unterminated"), equalTo(Arrays.asList("GET", "unterminated")));
+    }
+
+    @Test
+    public void testCacheWaitTimeout() throws Exception {
+        final AttributeCache cache = new AttributeCache(500, 10);
+        cache.setWaitTimeout(100);
+        final ObjectName beanName = new ObjectName("java.lang:type=Runtime");
+        final Set<String> attributes = Collections.singleton("Uptime");
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch hanging = new CountDownLatch(1);
+        Thread loader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get(jmxurl, beanName, attributes, new AttributeCache.Loader() {
+                        @Override
+                        public Map<String, Object> load(Set<String> names) {
+                            loading.countDown();
+                            // a remote call never returning
+                            try {
+                                hanging.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return Collections.<String, Object> singletonMap("Uptime", 1L);
+                        }
+                    });
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        loader.start();
+        try {
+            loading.await();
+            long start = System.nanoTime();
+            try {
+                cache.get(jmxurl, beanName, attributes, null);
+                fail("Expecting a timeout");
+            } catch (FetchTimeoutException e) {
+                assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThanOrEqualTo(1000L));
+            }
+        } finally {
+            hanging.countDown();
+            loader.join();
+        }
+    }
+
+    @Test
+    public void testCacheSharedFailure() throws Exception {
+        final AttributeCache cache = new AttributeCache(500, 10);
+        final ObjectName beanName = new ObjectName("java.lang:type=Runtime");
+        final Set<String> attributes = Collections.singleton("Uptime");
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch failing = new CountDownLatch(1);
+        Thread loader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get(jmxurl, beanName, attributes, new AttributeCache.Loader() {
+                        @Override
+                        public Map<String, Object> load(Set<String> names) throws IOException {
+                            loading.countDown();
+                            try {
+                                failing.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            throw new IOException("endpoint down");
+                        }
+                    });
+                } catch (Exception e) {
+                    // expected
+                }
+            }
+        };
+        loader.start();
+        final AtomicInteger loads = new AtomicInteger();
+        try {
+            loading.await();
+            // a waiting request, released by the failure once it waits, counted as a hit
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (cache.getHits() == 0) {
+                            Thread.sleep(10);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    failing.countDown();
+                }
+            }.start();
+            try {
+                cache.get(jmxurl, beanName, attributes, new AttributeCache.Loader() {
+                    @Override
+                    public Map<String, Object> load(Set<String> names) {
+                        loads.incrementAndGet();
+                        return Collections.<String, Object> singletonMap("Uptime", 1L);
+                    }
+                });
+                fail("Expecting the failure of the other request");
+            } catch (IOException e) {
+                assertThat(e.getMessage(), equalTo("endpoint down"));
+            }
+            // the endpoint was not called again
+            assertThat(loads.get(), equalTo(0));
+        } finally {
+            failing.countDown();
+            loader.join();
+        }
+    }
+
+    @Test
+    public void testFormatTemplate() {
+        Object[] values = new Object[] { null, 0, -1, Long.MAX_VALUE, Long.MIN_VALUE, (short) 12, (byte) -3,
+                new BigInteger("123456789012345678901234567890"), 0.0, -0.0, 1.5, -2.0000005, 0.0000005, 1e20, 1e-7,
+                -1e-9, 123456.789, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MAX_VALUE,
+                Double.MIN_VALUE, 0.1f, 3.4028235e38f, -7.5f, new BigDecimal("2.0000005"), new BigDecimal("-1E+3"),
+                "text", true, new Date(0), Arrays.asList(1, 2) };
+        for (String format : new String[] { "%d", "%s", "%f", "a %d b %s c %f d %%" }) {
+            for (Object value : values) {
+                List<Object> args = Arrays.asList(value, value, value);
+                String expected;
+                try {
+                    expected = String.format(Locale.ENGLISH, format, args.toArray());
+                } catch (IllegalFormatException e) {
+                    expected = e.getClass().getName();
+                }
+                StringBuilder out = new StringBuilder("prefix ");
+                try {
+                    FormatTemplate.compile(format).render(out, args);
+                } catch (IllegalFormatException e) {
+                    out.append(e.getClass().getName());
+                }
+                assertThat(format + " of " + value, out.toString(), equalTo("prefix " + expected));
+            }
+        }
+        // handed to the standard formatter
+        assertThat(FormatTemplate.compile("%5.2f %n").isCompiled(), equalTo(false));
+        assertThat(FormatTemplate.compile("%d%%%s").isCompiled(), equalTo(true));
+        StringBuilder out = new StringBuilder();
+        FormatTemplate.compile("%5.1f|%-3d|%S").render(out, Arrays.<Object> asList(1.25, 7, "up"));
+        assertThat(out.toString(), equalTo("  1.3|7  |UP"));
+    }
+
+    @Test
+    public void testCircuitBreaker() {
+        String deadurl = "service:jmx:rmi:///jndi/rmi://localhost:1/jmxrmi";
+        String cmd = "GET " + deadurl + " '%d' java.lang:type=Memory HeapMemoryUsage.used";
+        for (int i = 0; i < new ConnectionSettings().getFailureThreshold(); i++) {
+            assertReceives(cmd, arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_CONN), anything()));
+        }
+        assertReceives(cmd, arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_CIRCUIT_OPEN), anything()));
+    }
+
+    @Test
+    public void testConcurrencyLimiter() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4);
+        for (int i = 0; i < 4; i++) {
+            assertThat(limiter.tryAcquire(), equalTo(true));
+        }
+        assertThat(limiter.tryAcquire(), equalTo(false));
+        long millis = TimeUnit.MILLISECONDS.toNanos(1);
+        limiter.release(2 * millis, false);
+        assertThat(limiter.getLimit(), equalTo(4));
+        // much slower than the baseline
+        limiter.release(100 * millis, false);
+        assertThat(limiter.getLimit(), equalTo(3));
+        // values found in the cache don't tell anything about the endpoint
+        limiter.release(0, false);
+        assertThat(limiter.getLimit(), equalTo(3));
+        limiter.release(0, true);
+        assertThat(limiter.getInFlight(), equalTo(0));
+        assertThat(limiter.getLimit(), equalTo(3));
+        // back to normal
+        for (int i = 0; i < 10; i++) {
+            assertThat(limiter.tryAcquire() && limiter.tryAcquire(), equalTo(true));
+            limiter.release(2 * millis, false);
+            limiter.release(2 * millis, false);
+        }
+        assertThat(limiter.getLimit(), equalTo(4));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        long hits = daemon.getCacheHits();
+        String cmd = "GET " + jmxurl + " '%d' java.lang:type=Runtime StartTime";
+        client.send(cmd);
+        String first = client.send(cmd);
+        assertThat(daemon.getCacheHits(), greaterThan(hits));
+        Thread.sleep(600);
+        // expired, but the value is not supposed to change
+        assertReceives(cmd, arrayContaining(equalTo(RESP_OK), equalTo(first.split("\n")[1])));
+    }
+
+    @Test
+    public void testPaths() {
+        for (int i = 0; i < 2; i++) {
+            // twice to go through the cached paths
+            assertReceives("GET " + jmxurl + " '%d %s' java.lang:type=Runtime VmName.length()"
+                    + " java.lang:type=Runtime ObjectName.domain",
+                    arrayContaining(equalTo(RESP_OK), matches("[0-9]+ java.lang")));
+        }
+        assertReceives("GET " + jmxurl + " '%d' java.lang:type=Memory HeapMemoryUsage..used",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_GET_ATT), anything()));
+        assertReceives("GET " + jmxurl + " '%d' java.lang:type=Runtime ObjectName.noSuchProperty",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_GET_ATT), anything()));
+    }
+
+    @Test
+    public void testPattern() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName a = new ObjectName("org.hibnet.jmxdaemon.test:type=Timer,name=a");
+        ObjectName b = new ObjectName("org.hibnet.jmxdaemon.test:type=Timer,name=b");
+        mbeanServer.registerMBean(new javax.management.timer.Timer(), a);
+        try {
+            String get = "GET " + jmxurl + " '%s=%d' org.hibnet.jmxdaemon.test:type=Timer,* NbNotifications";
+            assertReceives(get, arrayContaining(equalTo(RESP_OK), equalTo(a.getCanonicalName() + "=0")));
+            assertReceives("GET " + jmxurl + " 'none' org.hibnet.jmxdaemon.test:type=NoSuchType,* NbNotifications",
+                    arrayContaining(equalTo(RESP_OK), equalTo("none")));
+
+            // the cached names are updated by the notifications of the endpoint
+            mbeanServer.registerMBean(new javax.management.timer.Timer(), b);
+            String get2 = "GET " + jmxurl + " '%s=%d %s=%d' org.hibnet.jmxdaemon.test:type=Timer,* NbNotifications";
+            Matcher<String[]> both = arrayContaining(equalTo(RESP_OK),
+                    equalTo(a.getCanonicalName() + "=0 " + b.getCanonicalName() + "=0"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!both.matches(client.send(get2).split("\n")) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertReceives(get2, both);
+
+            mbeanServer.unregisterMBean(b);
+            assertReceives(get, arrayContaining(equalTo(RESP_OK), equalTo(a.getCanonicalName() + "=0")));
+        } finally {
+            mbeanServer.unregisterMBean(a);
+            if (mbeanServer.isRegistered(b)) {
+                mbeanServer.unregisterMBean(b);
+            }
+        }
+    }
+
+    @Test
+    public void testConnectionPool() throws Exception {
+        ConnectionSettings settings = new ConnectionSettings();
+        settings.setPoolSize(3);
+        final JmxConnectionHolder connection = new JmxConnectionHolder(jmxurl, settings, null);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[10];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 20; j++) {
+                        try {
+                            if (connection.getAttribute("java.lang:type=Memory", "HeapMemoryUsage.used") == null) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertThat(failures.get(), equalTo(0));
+            assertThat(connection.getConnectedCount(), greaterThan(0));
+            assertThat(connection.getConnectedCount(), lessThanOrEqualTo(3));
+
+            // the idle connectors are still healthy, none is dropped
+            int connected = connection.getConnectedCount();
+            connection.checkHealth();
+            Thread.sleep(200);
+            assertThat(connection.getConnectedCount(), equalTo(connected));
+        } finally {
+            connection.close();
+        }
+        assertThat(connection.getConnectedCount(), equalTo(0));
+    }
+
+    @Test
+    public void testTargetRegistry() throws Exception {
+        String unreachable = "service:jmx:rmi:///jndi/rmi://localhost:3/jmxrmi";
+        List<String> urls = TargetRegistry.parse(new StringReader("# comment\n" + jmxurl + "\n\n " + unreachable
+                + "\n" + jmxurl + "\n"));
+        assertThat(urls, equalTo(Arrays.asList(jmxurl, unreachable)));
+        ConnectionSettings settings = new ConnectionSettings();
+        JmxConnectionCache connectionCache = new JmxConnectionCache(settings, null);
+        TargetRegistry halfReady = new TargetRegistry(urls, 2, 50);
+        TargetRegistry allReady = new TargetRegistry(urls, 2, 100);
+        try {
+            assertThat(halfReady.warm(connectionCache, settings, 10000), equalTo(true));
+            assertThat(halfReady.getConnected(), equalTo(1));
+            assertThat(halfReady.isReady(), equalTo(true));
+            assertThat(connectionCache.getIfPresent(jmxurl).getConnectedCount(), equalTo(1));
+            // the unreachable endpoint is retried in the background
+            allReady.warm(connectionCache, settings, 10000);
+            assertThat(allReady.isReady(), equalTo(false));
+        } finally {
+            halfReady.stop();
+            allReady.stop();
+            connectionCache.closeAll();
+        }
+    }
+
+    @Test
+    public void testConnectionEviction() throws Exception {
+        ConnectionSettings settings = new ConnectionSettings();
+        settings.setMaxConnections(2);
+        settings.setIdleTimeout(100000);
+        JmxConnectionCache connectionCache = new JmxConnectionCache(settings, null);
+        try {
+            JmxConnectionHolder connection = connectionCache.get(jmxurl);
+            connection.getAttribute("java.lang:type=Memory", "HeapMemoryUsage.used");
+            Thread.sleep(10);
+            connectionCache.get("service:jmx:rmi:///jndi/rmi://localhost:3/jmxrmi");
+            Thread.sleep(10);
+            connectionCache.get(jmxurl).getAttribute("java.lang:type=Memory", "HeapMemoryUsage.used");
+            Thread.sleep(10);
+            // the least recently used is the url on port 3
+            connectionCache.get("service:jmx:rmi:///jndi/rmi://localhost:4/jmxrmi");
+            assertThat(connectionCache.size(), equalTo(2));
+            assertThat(connectionCache.getIfPresent(jmxurl), equalTo(connection));
+            assertThat(connectionCache.getIfPresent("service:jmx:rmi:///jndi/rmi://localhost:3/jmxrmi"),
+                    equalTo(null));
+            for (ConnectionInfo info : connectionCache.getConnectionInfos()) {
+                if (info.getUrl().equals(jmxurl)) {
+                    assertThat(info.getRequests(), equalTo(2L));
+                    assertThat(info.getConnected(), equalTo(1));
+                }
+            }
+
+            settings.setIdleTimeout(5);
+            Thread.sleep(10);
+            connectionCache.evictIdle();
+            assertThat(connectionCache.size(), equalTo(0));
+            // closed in the background
+            long deadline = System.currentTimeMillis() + 5000;
+            while (connection.getConnectedCount() != 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(connection.getConnectedCount(), equalTo(0));
+            // an evicted connection is not reopened behind the cache
+            try {
+                connection.getAttribute("java.lang:type=Memory", "HeapMemoryUsage.used");
+                fail("An evicted connection should not be used anymore");
+            } catch (IOException e) {
+                assertThat(e.getMessage(), containsString("evicted"));
+            }
+            assertThat(connection.getConnectedCount(), equalTo(0));
+        } finally {
+            connectionCache.closeAll();
+        }
+        assertReceives("GET " + jmxurl + " '%d' '" + daemon.getObjectName() + "' ConnectionCount",
+                arrayContaining(equalTo(RESP_OK), matches("[1-9][0-9]*")));
+    }
+
+    @Test
+    public void testSubscriptionKeepsConnection() throws Exception {
+        ConnectionSettings settings = new ConnectionSettings();
+        settings.setIdleTimeout(5);
+        JmxConnectionCache connectionCache = new JmxConnectionCache(settings, null);
+        try {
+            JmxConnectionHolder connection = connectionCache.get(jmxurl);
+            NotificationRegistration registration = connection.addNotificationListener("java.lang:type=Memory",
+                    new NotificationListener() {
+                        @Override
+                        public void handleNotification(Notification notification, Object handback) {
+                            // not expecting any
+                        }
+                    }, null);
+            assertThat(connection.getSubscriptionCount(), equalTo(1));
+            Thread.sleep(10);
+            // idle, but still streaming
+            connectionCache.evictIdle();
+            assertThat(connectionCache.getIfPresent(jmxurl), equalTo(connection));
+            assertThat(connection.getConnectedCount(), equalTo(1));
+
+            registration.remove();
+            assertThat(connection.getSubscriptionCount(), equalTo(0));
+            // removing it twice doesn't count it twice
+            registration.release();
+            assertThat(connection.getSubscriptionCount(), equalTo(0));
+            connectionCache.evictIdle();
+            assertThat(connectionCache.getIfPresent(jmxurl), equalTo(null));
+        } finally {
+            connectionCache.closeAll();
+        }
+    }
+
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        Socket socket = new Socket("localhost", jmxDaemonPort);
+        try {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.writeByte(BinaryProtocol.MAGIC);
+            // pipelined requests
+            writeBinaryGet(out, 1, jmxurl, "java.lang:type=Memory", "HeapMemoryUsage.used", "java.lang:type=Runtime",
+                    "Name", "java.lang:type=Runtime", "Uptime");
+            writeBinaryGet(out, 2, jmxurl, "java.lang:type=NoSuchBean", "NoSuchAttribute");
+            writeBinaryGet(out, 3, jmxurl, "java.lang:type=Memory", "HeapMemoryUsage.used");
+            out.flush();
+
+            List<Object> response = readBinaryResponse(in);
+            assertThat(response.size(), equalTo(5));
+            assertThat(response.get(0), equalTo((Object) 1));
+            assertThat(response.get(1), equalTo((Object) BinaryProtocol.STATUS_OK));
+            assertThat((Long) response.get(2), greaterThan(0L));
+            assertThat((String) response.get(3), matches("[0-9]+@.*"));
+            assertThat((Long) response.get(4), greaterThan(0L));
+
+            response = readBinaryResponse(in);
+            assertThat(response.get(0), equalTo((Object) 2));
+            assertThat(response.get(1), equalTo((Object) BinaryProtocol.STATUS_ERR));
+            assertThat(response.get(2), equalTo((Object) RESP_ERR_GET_ATT));
+
+            response = readBinaryResponse(in);
+            assertThat(response.get(0), equalTo((Object) 3));
+            assertThat(response.get(1), equalTo((Object) BinaryProtocol.STATUS_OK));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void writeBinaryGet(DataOutputStream out, int id, String url, String... beanAndPaths)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream frame = new DataOutputStream(bytes);
+        frame.writeInt(id);
+        frame.writeByte(BinaryProtocol.CMD_GET);
+        frame.writeUTF(url);
+        frame.writeShort(beanAndPaths.length / 2);
+        for (String s : beanAndPaths) {
+            frame.writeUTF(s);
+        }
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    /**
+     * @return the request id, the status and then the values or the error code and message
+     */
+    private static List<Object> readBinaryResponse(DataInputStream in) throws IOException {
+        List<Object> response = new ArrayList<Object>();
+        in.readInt();
+        response.add(in.readInt());
+        byte status = in.readByte();
+        response.add(status);
+        if (status == BinaryProtocol.STATUS_ERR) {
+            response.add(in.readUTF());
+            response.add(in.readUTF());
+            return response;
+        }
+        int n = in.readShort();
+        for (int i = 0; i < n; i++) {
+            byte type = in.readByte();
+            if (type == BinaryProtocol.TYPE_LONG) {
+                response.add(in.readLong());
+            } else if (type == BinaryProtocol.TYPE_DOUBLE) {
+                response.add(in.readDouble());
+            } else if (type == BinaryProtocol.TYPE_BOOLEAN) {
+                response.add(in.readByte() != 0);
+            } else if (type == BinaryProtocol.TYPE_STRING) {
+                response.add(in.readUTF());
+            } else {
+                response.add(null);
+            }
+        }
+        return response;
+    }
+
+    @Test
+    public void testSubscribe() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName timerName = new ObjectName("org.hibnet.jmxdaemon.test:type=Timer,name=subscribe");
+        javax.management.timer.Timer timer = new javax.management.timer.Timer();
+        mbeanServer.registerMBean(timer, timerName);
+        timer.addNotification("test.ignored", "ignored", null, new Date(), 20);
+        timer.addNotification("test.tick", "some\ttick", 42, new Date(), 20);
+        timer.start();
+        Socket socket = new Socket("localhost", jmxDaemonPort);
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            OutputStream out = socket.getOutputStream();
+            out.write(("SUBSCRIBE " + jmxurl + " " + timerName + " test.tick\n").getBytes("UTF-8"));
+            assertThat(in.readLine(), equalTo(RESP_OK));
+            for (int i = 0; i < 3; i++) {
+                assertThat(in.readLine(), matches("NOTIF\t[0-9]+\t[0-9]+\ttest\\.tick\t.*\tsome tick\tuserData=42"));
+            }
+        } finally {
+            socket.close();
+            timer.stop();
+            mbeanServer.unregisterMBean(timerName);
+        }
+        assertReceives("SUBSCRIBE " + jmxurl + " java.lang:type=NoSuchBean",
+                arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_SUBSCRIBE), anything()));
+    }
+
+    @Test
+    public void testMultiGet() throws Exception {
+        String deadurl = "service:jmx:rmi:///jndi/rmi://localhost:2/jmxrmi";
+        // an endpoint accepting connections but never responding
+        ServerSocket hanging = new ServerSocket(2715);
+        String hangingurl = "service:jmx:rmi:///jndi/rmi://localhost:2715/jmxrmi";
+        JmxDaemonClient.Session session = client.openSession();
+        try {
+            String[] lines = session.send(
+                    "MGET '" + jmxurl + " " + deadurl + " " + hangingurl + "' 'used:%d'"
+                            + " java.lang:type=Memory HeapMemoryUsage.used").split("\n");
+            assertThat(lines[0], equalTo(RESP_OK));
+            assertThat(Arrays.asList(lines).subList(1, lines.length), containsInAnyOrder(
+                    matches(jmxurl + " " + RESP_OK + " used:[0-9]+"),
+                    matches(deadurl + " " + RESP_ERR + " " + RESP_ERR_CONN + " .*"),
+                    matches(hangingurl + " " + RESP_ERR + " " + RESP_ERR_TIMEOUT + " .*")));
+        } finally {
+            session.close();
+            hanging.close();
+        }
+    }
+
+    @Test
+    public void testCluster() throws Exception {
+        List<String> peers = PeerGroup.parse(new StringReader("# comment\nlocalhost:2717\n\nlocalhost:2718\n"));
+        assertThat(peers, equalTo(Arrays.asList("localhost:2717", "localhost:2718")));
+        ConnectionSettings settings = new ConnectionSettings();
+        settings.setConnectTimeout(1000);
+        settings.setFailureThreshold(1);
+        PeerGroup group1 = new PeerGroup(peers, "localhost:2717", settings);
+        PeerGroup group2 = new PeerGroup(peers, "localhost:2718", settings);
+        // the same endpoint under other names, one owned by each daemon
+        String url1 = null;
+        String url2 = null;
+        for (int i = 1; url1 == null || url2 == null; i++) {
+            String url = "service:jmx:rmi:///jndi/rmi://127.0.0." + i + ":" + jmxPort + "/jmxrmi";
+            assertThat(group2.getOwner(url), equalTo(group1.getOwner(url)));
+            if (group1.isLocal(url)) {
+                url1 = url1 == null ? url : url1;
+            } else {
+                url2 = url2 == null ? url : url2;
+            }
+        }
+        JmxDaemon daemon1 = new JmxDaemon(new InetSocketAddress(2717), 4);
+        daemon1.setPeerGroup(group1, 2000);
+        daemon1.setScrapeModules(ScrapeModule.parse(new StringReader(SCRAPE_MODULES), "test"));
+        daemon1.start();
+        JmxDaemon daemon2 = new JmxDaemon(new InetSocketAddress(2718), 4);
+        daemon2.setPeerGroup(group2, 2000);
+        daemon2.start();
+        JmxDaemonClient client1 = new JmxDaemonClient(new InetSocketAddress(2717));
+        JmxDaemonClient client2 = new JmxDaemonClient(new InetSocketAddress(2718));
+        boolean stopped2 = false;
+        try {
+            for (String url : Arrays.asList(url1, url2)) {
+                assertThat(client1.send("GET " + url + " 'used:%d' java.lang:type=Memory HeapMemoryUsage.used")
+                        .split("\n"), arrayContaining(equalTo(RESP_OK), matches("used:[0-9]+")));
+                assertThat(client1.send("GETJSON " + url + " java.lang:type=Runtime 'Name'").split("\n"),
+                        arrayContaining(equalTo(RESP_OK), containsString("@")));
+            }
+            // the remote endpoint is fetched by its owner only
+            List<String> stats1 = Arrays.asList(client1.send("STATS").split("\n"));
+            assertThat(stats1, hasItem("peers 2"));
+            assertThat(stats1, hasItem("forwarded 2"));
+            assertThat(stats1, hasItem(matches("target\\." + Pattern.quote(url1) + " [1-9][0-9]*")));
+            assertThat(stats1, not(hasItem(matches("target\\." + Pattern.quote(url2) + " .*"))));
+            List<String> stats2 = Arrays.asList(client2.send("STATS").split("\n"));
+            assertThat(stats2, hasItem("forwarded 0"));
+            assertThat(stats2, hasItem(matches("target\\." + Pattern.quote(url2) + " [1-9][0-9]*")));
+
+            String[] lines = client2.send("MGET '" + url1 + " " + url2 + "' '%d' java.lang:type=Memory"
+                    + " HeapMemoryUsage.used").split("\n");
+            assertThat(lines[0], equalTo(RESP_OK));
+            assertThat(Arrays.asList(lines).subList(1, lines.length), containsInAnyOrder(
+                    matches(Pattern.quote(url1) + " " + RESP_OK + " [0-9]+"),
+                    matches(Pattern.quote(url2) + " " + RESP_OK + " [0-9]+")));
+
+            // the binary GETs and the scrapes are served by the owner too
+            Socket socket = new Socket("localhost", 2717);
+            try {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                out.writeByte(BinaryProtocol.MAGIC);
+                writeBinaryGet(out, 1, url2, "java.lang:type=Memory", "HeapMemoryUsage.used",
+                        "java.lang:type=Runtime", "Name");
+                writeBinaryGet(out, 2, url2, "java.lang:type=NoSuchBean", "NoSuchAttribute");
+                out.flush();
+                List<Object> response = readBinaryResponse(in);
+                assertThat(response.get(0), equalTo((Object) 1));
+                assertThat(response.get(1), equalTo((Object) BinaryProtocol.STATUS_OK));
+                assertThat((Long) response.get(2), greaterThan(0L));
+                assertThat((String) response.get(3), matches("[0-9]+@.*"));
+                response = readBinaryResponse(in);
+                assertThat(response.get(0), equalTo((Object) 2));
+                assertThat(response.get(1), equalTo((Object) BinaryProtocol.STATUS_ERR));
+                assertThat(response.get(2), equalTo((Object) RESP_ERR_GET_ATT));
+            } finally {
+                socket.close();
+            }
+            socket = new Socket("localhost", 2717);
+            try {
+                String query = "/metrics?module=jvm&target=" + url2.replace(":", "%3A").replace("/", "%2F");
+                OutputStream out = socket.getOutputStream();
+                out.write(("GET " + query + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("UTF-8"));
+                out.flush();
+                List<String> response = readHttpResponse(new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), "UTF-8")));
+                assertThat(response.get(0), equalTo("HTTP/1.1 307 Temporary Redirect"));
+                assertThat(response, hasItem("Location: http://localhost:2718" + query));
+            } finally {
+                socket.close();
+            }
+            assertThat(Arrays.asList(client2.send("STATS").split("\n")),
+                    hasItem(matches("command\\.BINARY_GET [1-9][0-9]*")));
+
+            daemon2.stop();
+            stopped2 = true;
+            String get2 = "GET " + url2 + " '%d' java.lang:type=Memory HeapMemoryUsage.used";
+            // once the link is seen lost and the reconnection failed, the peer is not tried again for a while, the
+            // forwarded requests failing right away
+            String[] errorLines;
+            long deadline = System.currentTimeMillis() + 5000;
+            do {
+                errorLines = client1.send(get2).split("\n");
+                assertThat(errorLines, arrayContaining(equalTo(RESP_ERR), equalTo(RESP_ERR_PEER), anything()));
+            } while (!errorLines[2].contains("next try") && System.currentTimeMillis() < deadline);
+            assertThat(errorLines[2], containsString("next try"));
+            assertThat(client1.send("GET " + url1 + " '%d' java.lang:type=Memory HeapMemoryUsage.used").split("\n"),
+                    arrayContaining(equalTo(RESP_OK), matches("[0-9]+")));
+        } finally {
+            client1.close();
+            client2.close();
+            daemon1.stop();
+            if (!stopped2) {
+                daemon2.stop();
+            }
+        }
+    }
+
+    @Test
+    public void testFormatRequest() {
+        List<String> args = Arrays.asList("GET", "url", "'%s' \"%d\"", "a\\b", "it's", "");
+        String line = JmxRequestDecoder.formatRequest(args);
+        assertThat(JmxRequestDecoder.parseRequest(line), equalTo(args));
+    }
+
+    @Test
+    public void testCollection() throws Exception {
+        String config = "# some comment\n"
+                + "100 " + jmxurl + " heap.used java.lang:type=Memory HeapMemoryUsage.used\n"
+                + "100 " + jmxurl + " uptime java.lang:type=Runtime Uptime\n"
+                + "100 " + jmxurl + " missing java.lang:type=Runtime NoSuchAttribute\n"
+                + "100 " + jmxurl + " name java.lang:type=Runtime Name\n";
+        List<CollectionJob> jobs = CollectionJob.parse(new StringReader(config), "test");
+        assertThat(jobs.size(), equalTo(4));
+        DatagramSocket statsd = new DatagramSocket(0, InetAddress.getByName("localhost"));
+        statsd.setSoTimeout(5000);
+        List<MetricSink> sinks = new ArrayList<MetricSink>();
+        sinks.add(new StatsdSink(new InetSocketAddress("localhost", statsd.getLocalPort())));
+        JmxConnectionCache connectionCache = new JmxConnectionCache(new ConnectionSettings(), null);
+        CollectionScheduler scheduler = new CollectionScheduler(connectionCache, sinks, 1);
+        try {
+            scheduler.start(jobs);
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            statsd.receive(packet);
+            String[] lines = new String(packet.getData(), 0, packet.getLength(), "UTF-8").split("\n");
+            // the missing attribute and the non numeric one are skipped
+            assertThat(lines, arrayContaining(matches("heap\\.used:[0-9]+\\|g"), matches("uptime:[0-9]+\\|g")));
+        } finally {
+            scheduler.stop();
+            connectionCache.closeAll();
+            statsd.close();
+        }
+    }
+
+    @Test
+    public void testMetricsEndpoint() throws Exception {
+        Socket socket = new Socket("localhost", jmxDaemonPort);
+        try {
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            // pipelined on a kept alive connection
+            String target = "target=" + jmxurl.replace(":", "%3A").replace("/", "%2F");
+            out.write(("GET /metrics?module=jvm&" + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /metrics?module=nosuchmodule&" + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /metrics?module=jvm HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /ready HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("UTF-8"));
+            out.flush();
+
+            List<String> response = readHttpResponse(in);
+            assertThat(response.get(0), equalTo("HTTP/1.1 200 OK"));
+            assertThat(response, hasItem(matches("Content-Type: application/openmetrics-text.*")));
+            assertThat(response, hasItem("# TYPE jvm_heap_used_bytes gauge"));
+            assertThat(response, hasItem(matches("jvm_heap_used_bytes [0-9]+")));
+            assertThat(response, hasItem(matches("jvm_heap_committed_bytes [0-9]+")));
+            assertThat(response, hasItem("# TYPE jvm_uptime_ms counter"));
+            assertThat(response, hasItem(matches("jvm_uptime_ms_total [0-9]+")));
+            assertThat(response, hasItem(matches("jvm_threads\\{kind=\"live\"\\} [0-9]+")));
+            assertThat(response, hasItem("# TYPE jvm_gc_collections counter"));
+            assertThat(response, hasItem(matches(
+                    "jvm_gc_collections_total\\{key=\"java.lang:name=.*,type=GarbageCollector\"\\} [0-9]+")));
+            // the missing attribute and the non numeric one
+            assertThat(response, hasItem("jmxdaemon_scrape_errors 2"));
+            assertThat(response.get(response.size() - 1), equalTo("# EOF"));
+
+            response = readHttpResponse(in);
+            assertThat(response.get(0), equalTo("HTTP/1.1 404 Not Found"));
+
+            response = readHttpResponse(in);
+            assertThat(response.get(0), equalTo("HTTP/1.1 400 Bad Request"));
+
+            response = readHttpResponse(in);
+            assertThat(response.get(0), equalTo("HTTP/1.1 200 OK"));
+            assertThat(response.get(response.size() - 1), equalTo("ready"));
+        } finally {
+            socket.close();
+        }
+        // the text protocol is still served on the same port
+        assertReceives("GET " + jmxurl + " '%s' java.lang:type=Runtime SpecVendor",
+                arrayContaining(equalTo(RESP_OK), anything()));
+    }
+
+    /**
+     * @return the status line, the headers, an empty line and then the lines of the body
+     */
+    private static List<String> readHttpResponse(BufferedReader in) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        int length = 0;
+        String line;
+        do {
+            line = in.readLine();
+            lines.add(line);
+            if (line.startsWith("Content-Length: ")) {
+                length = Integer.parseInt(line.substring("Content-Length: ".length()));
+            }
+        } while (line.length() > 0);
+        char[] body = new char[length];
+        int read = 0;
+        while (read < length) {
+            read += in.read(body, read, length - read);
+        }
+        lines.addAll(Arrays.asList(new String(body).split("\n")));
+        return lines;
+    }
 }